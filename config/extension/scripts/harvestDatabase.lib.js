@@ -25,6 +25,8 @@ function main(harvestNode, frequency) {
 	logger.log("Welcome in main!");
 	try{
 		if (reporting.isHarvestEnabled()) {
+			// pick up changes made to the reporting tables since the last run
+			reporting.invalidateTableColumns();
 			
 			var harvestDefinitions;
 			
@@ -113,123 +115,91 @@ function trim(instring) {
 // ------------------------------------------------------------------------
 
 /**
- * get the array of queries
+ * harvest the table=query lines of the definition into the reporting database.
+ * Keys containing a dot are table options, like
+ *   document.writeMode=BULK
+ *   document.index.byOwner=cm_owner,cm_modified
+ *   document.commitSize=5000
+ *   document.harvestMode=CHANGES (or EVENTS)
+ *   document.queryConsistency=TRANSACTIONAL_IF_POSSIBLE
+ * Paging, extracting and writing is done by the Java HarvestEngine.
  * 
  * @param harvestDefinition
  *            ScriptNode containing *all* definitions
- * @returns Properties object
  */
-function getReportingQueries(harvestDefinition) {
-	var result = new Object();
-	if ((harvestDefinition.properties.content!=null) && 
-			(harvestDefinition.properties.content!=null) && 
-			(harvestDefinition.properties.content.size>0)){
-		
-		var content = new String();
-		content = harvestDefinition.properties.content.content;
-
-		if ((content!=null) && (content !=undefined)){
-
-			var lines = content.split("\n");
-		//logger.log("%%5");
-			var index; // numeric index of the string array
-			var line = new String(); // to be string value of each entry in string array
-			for ( var index in lines) {
-				line = lines[index];
-				if ((line!=null) && 
-					(line!=undefined) &&
-					!(trim(line).indexOf("#") == 0)) {
-					var keyvalue = line.split("=");
-					logger.log("## storing key=" + trim(keyvalue[0]) + " value="
-							+ trim(keyvalue[1]));
-					result[trim(keyvalue[0])] = trim(keyvalue[1]);
-				} // end if line.startwWith
-			} // end for (line in lines)
-		} // end if content != null
-	} // end content.size>0
-	else {
-		logger.log("NO GO!");
-	}
-	return result;
-}
-
-// ------------------------------------------------------------------------
-
 function processQueryTables(harvestDefinition) {
-	// get the Properties object with tablename=query values
-	var queries = getReportingQueries(harvestDefinition);
-    //if (queries.length>0){
-		// auto create tables that are needed
-		var tableNames = "";
-		var tableName;
-		for (tableName in queries) {
-			if ((tableName!=null) && (tableName!=undefined) && (tableName.length>3)){
-				if (tableNames.length > 0)
-					tableNames += ",";
-				tableNames += tableName;
-			}
-		}
-		logger.log("Querytables, Creating tables: " + tableNames);
-
-		// only needed for JasperSoft
-		// reporting.setDataType("JNDI");
-
-		startQueries(queries);
-
-    //} // end queries.length>0
+	logger.log("processQueryTables: " + harvestDefinition.name);
+	reporting.harvestQueries(harvestDefinition);
 } // end function
-    
 
 // ------------------------------------------------------------------------
 
 function processUsersAndGroups(harvestDefinition) {
 	// ------------- process Person objects -----------------
-	// we need to set this date if the run to fill the reporting DB was
-	// successful
-	if (!reporting.tableIsRunning("person")){
-		var thisTimestamp = new Date();
-		reporting.dropTables("person");
-		reporting.createEmptyTables("person");
-	
-		// update the status of the status table
-		reporting.setLastTimestampStatusRunning("person");
-	
-		reporting.processPerson("person");
-	
-		// persist the date of this successful run
-		setQueryDate("person", thisTimestamp);
-	}
+	refreshTable("person", function(shadowTable) {
+		return reporting.processPerson(shadowTable);
+	});
 	
 	// ------------- process Group objects -----------------
-	// we need to set this date if the run to fill the reporting DB was
-	// successful
-	if (!reporting.tableIsRunning("groups")){
-		thisTimestamp = new Date();
-		reporting.dropTables("groups");
-		reporting.createEmptyTables("groups");
+	refreshTable("groups", function(shadowTable) {
+		return reporting.processGroups(shadowTable);
+	});
 	
-		// update the status of the status table
-		reporting.setLastTimestampStatusRunning("groups");
-	
-		reporting.processGroups("groups");
-	
-		// persist the date of this successful run
-		setQueryDate("groups", thisTimestamp);
-	}
 	// ------------- process SitePerson details -----------------
-	// we need to set this date if the run to fill the reporting DB was
-	// successful
-	if (!reporting.tableIsRunning("siteperson")){
-		thisTimestamp = new Date();
-		reporting.dropTables("siteperson");
-		reporting.createEmptyTables("siteperson");
-		// update the status of the status table
-		reporting.setLastTimestampStatusRunning("siteperson");
-	
-		reporting.processSitePerson("siteperson");
-	
+	refreshTable("siteperson", function(shadowTable) {
+		return reporting.processSitePerson(shadowTable);
+	});
+}
+
+/**
+ * Rebuild the table in a shadow table, and swap it in only if fill(shadowTable)
+ * returned true. A failed run keeps the current table, and the date of the
+ * last successful run. The shadow table belongs to the run holding the lease:
+ * it is created once the lease is taken, and swapped in or dropped only while
+ * the lease is still held.
+ * 
+ * @param tablename
+ *            the table to rebuild
+ * @param fill
+ *            function filling the shadow table, returns false if it failed
+ */
+function refreshTable(tablename, fill) {
+	var thisTimestamp = new Date();
+
+	// take the table for this run, and set it Running
+	var lease = reporting.setLastTimestampStatusRunning(tablename);
+	if (lease == null) {
+		logger.log("refreshTable: " + tablename + " is running in another run, skipped");
+		return;
+	}
+
+	var shadowTable = null;
+	var done = false;
+	try {
+		// build the new content aside, readers keep seeing the current table
+		shadowTable = reporting.createShadowTable(tablename);
+		if (!fill(shadowTable)) {
+			logger.log("refreshTable: " + tablename + " failed, keeping the current table");
+		} else if (!lease.isHeld()) {
+			logger.log("refreshTable: lost the lease on " + tablename + ", keeping the current table");
+		} else {
+			reporting.swapShadowTable(tablename);
+			done = true;
+		}
+	} catch (e) {
+		logger.log("refreshTable: " + tablename + " failed, keeping the current table: " + e);
+	}
+
+	if (done) {
 		// persist the date of this successful run
-		setQueryDate("siteperson", thisTimestamp);
+		setQueryDate(tablename, thisTimestamp, lease);
+	} else {
+		// once the lease is lost, the shadow table may be another run's
+		if ((shadowTable != null) && lease.isHeld()) {
+			reporting.dropTables(shadowTable);
+		}
+		// Done, with the date of the last successful run
+		reporting.releaseLease(lease, null);
 	}
 }
 
@@ -247,25 +217,32 @@ function processAuditingExport(harvestDefinition) {
 			
 			if ((feed!=null) && 
 					(feed!=undefined) && 
-					(feed.length>3) && 
-					!reporting.tableIsRunning(feed.toLowerCase())){
+					(feed.length>3)){
 
 				logger.log("processAuditingExport with feed: " + feed);
 				var table = feed.toLowerCase();
 				table = table.replace(/ /g,"_");
 				logger.log("processAuditingExport with table: " + table);
-				reporting.createEmptyTables(table);
 
 				// we need to set this date if the run to fill the reporting DB was
 				// successful
 				var thisTimestamp = new Date();
 
-				// update the status of the status table
-				reporting.setLastTimestampStatusRunning(table);
-				logger.log("START RUNNING processAuditingExport with " + feed);
-				reporting.processAuditingExport(feed);
-				// persist the date of this successful run
-				setQueryDate(table, thisTimestamp);
+				// take the table for this run, skip it if another run has it
+				var lease = reporting.setLastTimestampStatusRunning(table);
+				if (lease != null) {
+					try {
+						reporting.createEmptyTables(table);
+						logger.log("START RUNNING processAuditingExport with " + feed);
+						reporting.processAuditingExport(feed);
+					} catch (e) {
+						// Done, with the date of the last successful run
+						reporting.releaseLease(lease, null);
+						throw e;
+					}
+					// persist the date of this successful run
+					setQueryDate(table, thisTimestamp, lease);
+				}
 			} // end if feed !=null
 		} // end for table in tables
 	}
@@ -293,28 +270,33 @@ function processCategories(harvestDefinition) {
 		for ( var c = 0; c < categories.length; c++) {
 			var orig_tablename = categories[c].name.toLowerCase();
 			var tablename = orig_tablename.replace(/ /g,"_");
-			if (!reporting.tableIsRunning(tablename)){
+			// we need to set this date if the run to fill the reporting DB was
+			// successful
+			var thisTimestamp = new Date();
+
+			// take the table for this run, skip it if another run has it
+			var lease = reporting.setLastTimestampStatusRunning(tablename);
+			if (lease != null){
 				
-				logger.log("There we go: " + tablename);
-				reporting.dropTables(tablename);
-				logger.log("Categories, Creating table: "+tablename);
-				reporting.createEmptyTables(tablename);
-	
-				// we need to set this date if the run to fill the reporting DB was
-				// successful
-				var thisTimestamp = new Date();
-	
-				// update the status of the status table
-				reporting.setLastTimestampStatusRunning(tablename);
-	
-				reporting.processCategoriesAsPath(orig_tablename, // table
-															// name,
-				categories[c].name, // RootCategoryName
-				categories[c].name.toLowerCase() + "Path"); // reporting_table_column_name
+				try {
+					logger.log("There we go: " + tablename);
+					reporting.dropTables(tablename);
+					logger.log("Categories, Creating table: "+tablename);
+					reporting.createEmptyTables(tablename);
+		
+					reporting.processCategoriesAsPath(orig_tablename, // table
+																// name,
+					categories[c].name, // RootCategoryName
+					categories[c].name.toLowerCase() + "Path"); // reporting_table_column_name
+				} catch (e) {
+					// Done, with the date of the last successful run
+					reporting.releaseLease(lease, null);
+					throw e;
+				}
 	
 				// persist the date of this successful run
-				setQueryDate(tablename, thisTimestamp);
-			} // end if if (!reporting.tableIsRunning())
+				setQueryDate(tablename, thisTimestamp, lease);
+			} // end if (lease != null)
 		}
 	}
 }
@@ -332,7 +314,13 @@ function stringLength(input) {
 
 // --------------------------------------------------------------------------
 
-function setQueryDate(tablename, timestamp) {
+/**
+ * Set the table Done, with timestamp as the date of this successful run
+ * 
+ * @param lease
+ *            the lease of this run on the table, ended here
+ */
+function setQueryDate(tablename, timestamp, lease) {
 	logger.log("Enter setQueryDate for timestamp=" + timestamp + " and table="
 			+ tablename);
 	// prepare the new time string
@@ -352,168 +340,7 @@ function setQueryDate(tablename, timestamp) {
 				+ stringLength(timestamp.getMinutes()) + ":"
 				+ stringLength(timestamp.getSeconds());
 	}
-	reporting.setLastTimestampAndStatusDone(tablename, timeString);
+	reporting.releaseLease(lease, timeString);
 	logger.log("Enter setQueryDate for timeString=" + timeString);
 
 }
-
-// --------------------------------------------------------------------------
-// startQueries
-// --------------------------------------------------------------------------
-
-function startQueries(queries) {
-	var storeRefs = reporting.getStoreList().split(",");
-
-	for (s = 0; s < storeRefs.length; s++) {
-		try{
-			logger.log("in startQueries");
-			for ( var table in queries) {
-	
-				var letsGo = true; // allow the initial run
-				var dbid = "0"; // the initial value of the highest dbid of the
-								// current run
-				var query = ""; // the final query, the configured base query
-								// expanded with modified-date and node-dbid
-				var results; // array containing the resultset of the query
-				var counter = 0; // counts the total number of objects for the
-								// given query/table
-				reporting.createEmptyTables(table);
-				
-				if (!reporting.tableIsRunning(table)){
-					dateQuery = reporting.getLastTimestamp(table);
-					reporting.setLastTimestampStatusRunning(table);
-					if ("" != dateQuery) {
-						dateQuery = " AND @cm\\:modified:[" + dateQuery + " TO NOW]";
-					}
-		
-					logger.log("@@ new dateQuery=" + dateQuery);
-		
-					// we need to set this date if the run to fill the reporting DB was
-					// successful
-					var thisTimestamp = new Date();
-		
-					// process multiple queries, because the max result set is set to
-					// 1000 (=default; or bound by time)
-					// either way, we do not know how many queries we need to fire
-					// before we capture all objects
-					// that should be stored in the Reporting Database
-					while (letsGo) {
-						// query = queries[table] + query + " AND NOT
-						// @sys:node-uuid=NULL " + dateQuery;
-						query = queries[table] + query + dateQuery;
-		
-						logger.log("Query: " + query);
-						// execute the actual query
-						results = search.luceneSearch(storeRefs[s], query,
-								"@sys:node-dbid", true);
-						// logger.log("@@@@ Results=" + (results!=null));
-						// logger.log("@@@@ Length =" + results.length);
-						letsGo = (letsGo && (results != null) && (results.length > 0));
-						// logger.log("@@@@ letsGo=" + letsGo);
-		
-						if (letsGo) {
-			
-							for ( var j = 0; j < results.length; j++) {
-								try { // prevent annoying breaking exception if
-										// content not exists
-									var result = results[j];
-									logger.log("Processing " + result.name);
-									if ((result != null) && (result != undefined)) {
-										try {
-		
-											if (result.isVersioned /*
-																	 * &&
-																	 * (result.properties["cm:versionLabel"]!="0.1" )
-																	 */) {
-												logger
-														.log("############### WE HAVE A VERSION ##################");
-												var version;
-												var versionNode;
-												var versions = result.versionHistory;
-												logger.log("versions.length="
-														+ versions.length);
-												if (versions.length > 1) {
-		
-													for ( var v = 0; v < versions.length; v++) {
-														version = versions[versions.length
-																- v - 1];
-														versionNode = version.node;
-														//reporting.setTable(table);
-														reporting.addToQueue(result,
-																versionNode);
-														counter++;
-													}
-		
-												} else {
-													//reporting.setTable(table);
-													reporting.addToQueue(result);
-													counter++;
-												}
-		
-											} else {
-												//reporting.setTable(table);
-												reporting.addToQueue(result);
-												counter++;
-											}
-		
-										} catch (exception) {
-											// object appears null-ish
-											logger.log("ERROR: " + exception);
-										}
-									} // end if(result)
-								} catch (exception) {
-									logger
-											.log("There is a problem, but we're going to ignore it!");
-								}
-							} // end for
-							reporting.executeQueue(table);
-							reporting.resetAll();
-							dbid = results[results.length - 1].properties["sys:node-dbid"] + 1;
-							// modify the query for the next run
-							query = " AND @sys\\:node-dbid:[" + dbid + " TO MAX]";
-							logger.log("Number of objects found: " + counter
-									+ " New query: " + query);
-						} // end if results letsGo
-						else {
-							logger.log("No results for query " + query);
-							letsGo = false;
-						}
-		
-						if (results) {
-							logger
-									.log("#### Number of results (lets see if we continue: "
-											+ results.length);
-						} else {
-							logger.log("#### results appears NULL...");
-						}
-		
-						if ((results != null) && (results.length > 0)) {
-							// get the highest dbid found in the current search (next
-							// search should start from here)
-							dbid = results[results.length - 1].properties["sys:node-dbid"] + 1;
-							// modify the query for the next run
-							query = " AND @sys\\:node-dbid:[" + dbid + " TO MAX]";
-							logger.log("Number of objects found: " + counter
-									+ " New query: " + query);
-						} else {
-							// there is no next search...
-							letsGo = false;
-							query = " AND @sys\\:node-dbid:0";
-							logger.log("#### LETS-GO = false, afnokken...");
-						} // end if results.length
-					
-					} // end while
-					logger.log("Processed " + counter + " items for table " + table
-							+ ". Done now");
-		
-					// persist the date of this successful run
-					setQueryDate(table, thisTimestamp);
-				} // end if (!reporting.tableIsRunning())
-			} // end for tables
-		} catch (exception){
-			// do nothing. prevent org.springframework.transaction.UnexpectedRollbackException...
-		}
-			logger.log("Done all tables in Store " + storeRefs[s]);
-	} // end for storeRefs
-	logger.log("Done all stores");
-} // end function startQueries
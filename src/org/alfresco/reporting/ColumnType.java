@@ -0,0 +1,170 @@
+/**
+ * Copyright (C) 2011 - 2013 Alfresco Business Reporting project
+ *
+ * This file is part of the Alfresco Business Reporting project.
+ *
+ * Licensed under the GNU LGPL, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.gnu.org/licenses/lgpl.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.alfresco.reporting;
+
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A parsed column definition like VARCHAR(500), BIGINT or DATETIME.
+ * Instances are immutable and shared; each definition String is parsed
+ * only once.
+ */
+public final class ColumnType {
+
+	public enum Kind { VARCHAR, BIGINT, INTEGER, BOOLEAN, DOUBLE, DATETIME, OTHER }
+
+	private static Log logger = LogFactory.getLog(ColumnType.class);
+	private static final ConcurrentHashMap<String, ColumnType> cache = new ConcurrentHashMap<String, ColumnType>();
+
+	private final String definition;
+	private final Kind kind;
+	private final int length;
+	private final int sqlType;
+
+	private ColumnType(String definition){
+		this.definition = definition;
+		String upper = definition.toUpperCase();
+		int len = -1;
+		if (upper.contains("VARCHAR")){
+			kind = Kind.VARCHAR;
+			try{
+				len = Integer.parseInt(definition.substring(definition.indexOf('(')+1, definition.indexOf(')')).trim());
+			} catch (RuntimeException e){
+				logger.warn("Cannot determine the length of " + definition);
+			}
+			sqlType = Types.VARCHAR;
+		} else if ("BIGINT".equals(upper)){
+			kind = Kind.BIGINT;
+			sqlType = Types.BIGINT;
+		} else if ("INTEGER".equals(upper)){
+			kind = Kind.INTEGER;
+			sqlType = Types.INTEGER;
+		} else if ("BOOLEAN".equals(upper)){
+			kind = Kind.BOOLEAN;
+			sqlType = Types.BOOLEAN;
+		} else if ("DOUBLE PRECISION".equals(upper) || "FLOAT".equals(upper)){
+			kind = Kind.DOUBLE;
+			sqlType = Types.DOUBLE;
+		} else if ("DATETIME".equals(upper) || "DATE".equals(upper) || "TIMESTAMP".equals(upper)){
+			kind = Kind.DATETIME;
+			sqlType = Types.TIMESTAMP;
+		} else {
+			kind = Kind.OTHER;
+			sqlType = Types.VARCHAR;
+		}
+		length = len;
+	}
+
+	/**
+	 * @param definition the SQL type, like VARCHAR(100)
+	 * @return the (shared) parsed type
+	 */
+	public static ColumnType forDefinition(String definition){
+		ColumnType type = cache.get(definition);
+		if (type==null){
+			type = new ColumnType(definition.trim());
+			ColumnType existing = cache.putIfAbsent(definition, type);
+			if (existing!=null) type = existing;
+		}
+		return type;
+	}
+
+	public String getDefinition(){
+		return definition;
+	}
+
+	public Kind getKind(){
+		return kind;
+	}
+
+	/**
+	 * @return the maximum length of a VARCHAR, -1 otherwise
+	 */
+	public int getLength(){
+		return length;
+	}
+
+	/**
+	 * @return the java.sql.Types constant to bind nulls with
+	 */
+	public int getSqlType(){
+		return sqlType;
+	}
+
+	/**
+	 * Convert the String representation of a value into the Java type
+	 * that is bound for this column: String, Long, Integer, Boolean, Double
+	 * or (for dates given in milliseconds) Timestamp. Dates in any other
+	 * format stay a String and are parsed by the database.
+	 *
+	 * @return the typed value, or null if it represents an SQL NULL
+	 */
+	public Object convert(String value){
+		if ((value==null) || "-".equals(value)) return null;
+		if ((kind!=Kind.VARCHAR) && (value.length()==0)) return null;
+
+		try{
+			switch (kind){
+				case VARCHAR:
+					if ((length>0) && (value.length()>length)){
+						value = value.substring(0, (length>4) ? length-4 : length);
+					}
+					return value;
+				case BIGINT:
+					return Long.valueOf(value);
+				case INTEGER:
+					return Integer.valueOf(value);
+				case BOOLEAN:
+					return Boolean.valueOf("true".equalsIgnoreCase(value) || "1".equals(value));
+				case DOUBLE:
+					return Double.valueOf(value);
+				case DATETIME:
+					if (isDigits(value)){
+						return new Timestamp(Long.parseLong(value));
+					}
+					return value;
+				default:
+					return value;
+			}
+		} catch (NumberFormatException nfe){
+			if (logger.isDebugEnabled())
+				logger.debug("convert: cannot convert '" + value + "' into " + definition + ", storing NULL");
+			return null;
+		}
+	}
+
+	private static boolean isDigits(String value){
+		for (int i=0;i<value.length();i++){
+			char c = value.charAt(i);
+			if ((c<'0') || (c>'9')){
+				if ((i>0) || (c!='-')) return false;
+			}
+		}
+		return true;
+	}
+
+	public String toString(){
+		return definition;
+	}
+}
@@ -32,6 +32,59 @@ public class Constants {
 	public final static String property_blacklist = "reporting.harvest.blacklist"; // the keys that -can- be blocked
 	public final static String property_blockkeys = "reporting.harvest.blockkeys"; // the keys that *must* be blocked by definition
 	public final static String property_storelist = "reporting.harvest.stores";
+	public final static String property_batchSize = "reporting.harvest.batchSize"; // number of rows per JDBC batch
+	public final static String property_dialect = "reporting.db.hibernate.dialect";
+	public final static String property_bulkSize = "reporting.harvest.bulkSize"; // number of rows per bulk load
+	public final static String property_commitSize = "reporting.harvest.commitSize"; // rows per reporting transaction
+	public final static String property_commitInterval = "reporting.harvest.commitInterval"; // ms a reporting transaction may stay open
+	public final static String property_autoIndex = "reporting.db.autoIndex"; // create the indexes the harvest needs
+	// connection pool, for the JDBC url configuration
+	public final static String property_pool_maxActive = "reporting.db.pool.maxActive";
+	public final static String property_pool_maxIdle = "reporting.db.pool.maxIdle";
+	public final static String property_pool_minIdle = "reporting.db.pool.minIdle";
+	public final static String property_pool_maxWait = "reporting.db.pool.maxWait"; // ms
+	public final static String property_pool_validationQuery = "reporting.db.pool.validationQuery";
+	public final static String property_pool_validationTimeout = "reporting.db.pool.validationTimeout"; // seconds
+	public final static String property_pool_evictionInterval = "reporting.db.pool.evictionInterval"; // ms
+	public final static String property_pool_minEvictableIdleTime = "reporting.db.pool.minEvictableIdleTime"; // ms
+	public final static String property_pool_statementCacheSize = "reporting.db.pool.statementCacheSize"; // per connection
+	// the harvest pipeline
+	public final static String property_harvest_threads = "reporting.harvest.threads"; // threads extracting rows
+	public final static String property_harvest_queueSize = "reporting.harvest.queueSize"; // chunks waiting between stages
+	public final static String property_harvest_chunkSize = "reporting.harvest.chunkSize"; // nodes per chunk
+	public final static String property_harvest_leaseTimeout = "reporting.harvest.leaseTimeout"; // ms without heartbeat before a lease expires
+	public final static String property_harvest_pathCacheSize = "reporting.harvest.pathCacheSize"; // folders with a known path and site
+	public final static String property_harvest_changeFeedLag = "reporting.harvest.changeFeed.lag"; // ms before a committed transaction is harvested
+	public final static String property_harvest_queueEnabled = "reporting.harvest.queue.enabled"; // queue changed nodes for harvestMode=EVENTS
+	public final static String property_harvest_queueBatchSize = "reporting.harvest.queue.batchSize"; // queued nodes per drain
+	public final static String property_harvest_queuePending = "reporting.harvest.queue.pending"; // committed transactions waiting to be queued
+	public final static String property_harvest_queueTimeout = "reporting.harvest.queue.timeout"; // ms a commit waits if pending is reached
+	public final static String property_harvest_pageSize = "reporting.harvest.pageSize"; // results per search
+	public final static String property_harvest_queryConsistency = "reporting.harvest.queryConsistency"; // TRANSACTIONAL(_IF_POSSIBLE) for metadata queries
+	public final static String property_harvest_checkpointInterval = "reporting.harvest.checkpointInterval"; // ms between two checkpoints of a harvest
+	
+	public final static int DEFAULT_BATCH_SIZE = 500;
+	public final static int DEFAULT_BULK_SIZE = 50000;
+	public final static int DEFAULT_COMMIT_SIZE = 1000;
+	public final static int DEFAULT_COMMIT_INTERVAL = 5000;
+	public final static int DEFAULT_HARVEST_THREADS = 4;
+	public final static int DEFAULT_HARVEST_QUEUE_SIZE = 8;
+	public final static int DEFAULT_HARVEST_CHUNK_SIZE = 100;
+	public final static int DEFAULT_HARVEST_PAGE_SIZE = 1000; // the Lucene default
+	public final static int DEFAULT_LEASE_TIMEOUT = 600000;
+	public final static int DEFAULT_PATH_CACHE_SIZE = 10000;
+	public final static int DEFAULT_CHANGE_FEED_LAG = 60000;
+	public final static int DEFAULT_QUEUE_BATCH_SIZE = 1000;
+	public final static int DEFAULT_CHECKPOINT_INTERVAL = 60000;
+	
+	// write modes per table, set in the harvest definition as <table>.writeMode=BULK
+	public final static String WRITE_MODE_BATCH = "BATCH";
+	public final static String WRITE_MODE_BULK = "BULK";
+	
+	// harvest modes per table, set in the harvest definition as <table>.harvestMode=CHANGES
+	public final static String HARVEST_MODE_QUERY = "QUERY"; // the query, from the last run date on
+	public final static String HARVEST_MODE_CHANGES = "CHANGES"; // the nodes changed in the transactions since the last run
+	public final static String HARVEST_MODE_EVENTS = "EVENTS"; // by query, and the nodes queued by the behaviours in between
 	
 	//location of configuration files
 	/**
@@ -93,6 +146,12 @@ public class Constants {
 	 */
 	public final static String TABLE_LASTRUN = "lastsuccessfulrun";
 	
+	/**
+	 * table name of the nodes queued by the behaviours, for tables with 
+	 * &lt;table&gt;.harvestMode=EVENTS
+	 */
+	public final static String TABLE_HARVEST_QUEUE = "harvestqueue";
+	
 	/**
 	 * column name, contains timestamp in DATE_FORMAT_DATABASE
 	 */
@@ -104,4 +163,37 @@ public class Constants {
 	public final static String COLUMN_STATUS = "status";  
 	
 	public final static String COLUMN_TABLENAME = "tablename";
+	
+	/**
+	 * column names of the harvest lease: owner (node:id), acquisition and last 
+	 * heartbeat, in ms
+	 */
+	public final static String COLUMN_LEASE_OWNER = "leaseowner";
+	public final static String COLUMN_LEASE_ACQUIRED = "leaseacquired";
+	public final static String COLUMN_LEASE_HEARTBEAT = "leaseheartbeat";
+	
+	/**
+	 * column names of the change feed watermark: id and commit time (ms) of
+	 * the last repository transaction harvested
+	 */
+	public final static String COLUMN_LAST_TXN_ID = "lasttxnid";
+	public final static String COLUMN_LAST_TXN_COMMIT_TIME = "lasttxncommittime";
+	
+	/**
+	 * column names of the checkpoint of an unfinished harvest by query: the
+	 * store, the sys:node-dbid to resume from, and when (ms) the run started
+	 */
+	public final static String COLUMN_CHECKPOINT_STORE = "checkpointstore";
+	public final static String COLUMN_CHECKPOINT_DBID = "checkpointdbid";
+	public final static String COLUMN_CHECKPOINT_STARTED = "checkpointstarted";
+	
+	/**
+	 * postfix of the table a full refresh is built in, before it is swapped in
+	 */
+	public final static String SHADOW_TABLE_POSTFIX = "__new";
+	
+	/**
+	 * postfix of the previous copy of a full refresh table, kept for one cycle
+	 */
+	public final static String OLD_TABLE_POSTFIX = "__old";
 }
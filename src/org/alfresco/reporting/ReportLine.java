@@ -18,171 +18,236 @@
 
 package org.alfresco.reporting;
 
+import java.sql.Timestamp;
 import java.text.SimpleDateFormat;
+import java.util.BitSet;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.NoSuchElementException;
 import java.util.Properties;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+/**
+ * One row of a reporting table. The columns are slots in the TableSchema of
+ * the table; the values are kept typed (String, Long, Integer, Boolean,
+ * Double, Timestamp) as produced by ColumnType.convert().
+ *
+ * A ReportLine is meant to be reused: reset() clears the values without
+ * reallocating anything. Not thread safe.
+ */
 public class ReportLine {
 
-	private Properties types = new Properties();
-	private Properties values = new Properties();
+	/**
+	 * placeholder for a null value, as returned by getValue()
+	 */
+	public final static String NULL_VALUE = "~~NULL~~";
+
 	private String table = "";
-	private final SimpleDateFormat sdf = new SimpleDateFormat(Constants.DATE_FORMAT_DATABASE);// "yyyy-MM-dd hh:mm:ss");
+	private TableSchema schema;
+	private Object[] values = new Object[16];
+	private final BitSet present = new BitSet();
+	private int count = 0;
+	private SimpleDateFormat sdf;
 	private static Log logger = LogFactory.getLog(ReportLine.class);
-	
+
 	public ReportLine(String table){
-		this.table = table;
+		setTable(table);
 	}
-	
+
 	public void reset(){
-		types  = new Properties();
-		values = new Properties();
+		for (int i=present.nextSetBit(0); i>=0; i=present.nextSetBit(i+1)){
+			values[i] = null;
+		}
+		present.clear();
+		count = 0;
 	}
-	
+
 	public void setLine(String key, String type, String value, Properties replacementTypes){
-		if (value==null){
-			value="~~NULL~~";
-		}
 		if ((key!=null) && (type!=null)){
-			type = type.trim();
-			value= value.trim();
-			
 			// validate if the current definition is overridden...
-			if (replacementTypes.containsKey(key)){
-				type = replacementTypes.getProperty(key, "-").trim();
+			String replacement = replacementTypes.getProperty(key);
+			if (replacement!=null){
+				type = replacement;
 			}
-			if (type.toUpperCase().contains("VARCHAR")){
-				int length = Integer.parseInt(type.substring(8,type.length()-1));
-				if (value.length()>length){
-					value = value.substring(0,length-4);
-					logger.debug("chopped " + key + " length to " + length + " for " + value);
-				}
+			setLine(key, ColumnType.forDefinition(type.trim()), value);
+		}
+	}
+
+	/**
+	 * Set a String value of a column whose type is already resolved
+	 * (replacement type included), converting it into the Java type.
+	 */
+	public void setLine(String key, ColumnType columnType, String value){
+		Object typed = null;
+		if ((value!=null) && !NULL_VALUE.equals(value)){
+			value = value.trim();
+			typed = columnType.convert(value);
+			if (logger.isDebugEnabled() && (typed instanceof String) && (((String)typed).length()<value.length())){
+				logger.debug("chopped " + key + " length to " + columnType.getLength() + " for " + typed);
 			}
-			types.setProperty(key, type);
-			values.setProperty(key, value);
 		}
+		setValue(key, columnType, typed);
+	}
+
+	/**
+	 * Set an already typed value, no conversion is done.
+	 * @param key the column
+	 * @param type the column type
+	 * @param value String, Long, Integer, Boolean, Double, Timestamp or null
+	 */
+	public void setValue(String key, ColumnType type, Object value){
+		int ordinal = schema.define(key, type);
+		if (ordinal>=values.length){
+			Object[] newValues = new Object[Math.max(ordinal+1, values.length*2)];
+			System.arraycopy(values, 0, newValues, 0, values.length);
+			values = newValues;
+		}
+		if (!present.get(ordinal)){
+			present.set(ordinal);
+			count++;
+		}
+		values[ordinal] = value;
 	}
-	
+
 	public void setTable(String table){
 		this.table = table;
+		this.schema = TableSchema.forTable(table);
+		reset();
+	}
+
+	public TableSchema getSchema(){
+		return schema;
+	}
+
+	/**
+	 * @return the ordinals of the columns that are set. Do not modify.
+	 */
+	public BitSet getPresent(){
+		return present;
 	}
-	
+
 	public String getType(String key){
-		return types.getProperty(key);
+		int ordinal = schema.ordinalOf(key);
+		if ((ordinal<0) || !present.get(ordinal)) return null;
+		return schema.getType(ordinal).getDefinition();
 	}
-	
+
 	public boolean hasValue(String key){
-		String returnString = values.getProperty(key);
-		return (returnString != null);
+		int ordinal = schema.ordinalOf(key);
+		return (ordinal>=0) && present.get(ordinal);
+	}
+
+	/**
+	 * @return the typed value of the column, null if not set or NULL
+	 */
+	public Object getObject(String key){
+		int ordinal = schema.ordinalOf(key);
+		if ((ordinal<0) || (ordinal>=values.length)) return null;
+		return values[ordinal];
+	}
+
+	public Object getObject(int ordinal){
+		return values[ordinal];
 	}
-	
+
 	public String getValue(String key){
-		String returnString = values.getProperty(key);
+		String returnString = getRawValue(key);
 		if (returnString!=null){
-			returnString = returnString.replaceAll("'", "_").replaceAll("\"","_");
+			returnString = returnString.replace('\'', '_').replace('"','_');
 		}
 		return returnString;
 	}
-	
+
+	/**
+	 * Get the value as a String, without replacing quotes. Use this
+	 * when the value is bound as a parameter instead of concatenated into SQL
+	 * @param key
+	 * @return the value, NULL_VALUE if it is NULL, or null if not set
+	 */
+	public String getRawValue(String key){
+		int ordinal = schema.ordinalOf(key);
+		if ((ordinal<0) || !present.get(ordinal)) return null;
+		Object value = values[ordinal];
+		if (value==null) return NULL_VALUE;
+		if (value instanceof Timestamp) return Long.toString(((Timestamp)value).getTime());
+		return value.toString();
+	}
+
 	public int size(){
-		return types.size();
+		return count;
 	}
-	
-	public Enumeration getKeys(){
-		return types.keys();
+
+	public Enumeration<String> getKeys(){
+		return new Enumeration<String>(){
+			private int next = present.nextSetBit(0);
+
+			public boolean hasMoreElements(){
+				return next>=0;
+			}
+
+			public String nextElement(){
+				if (next<0) throw new NoSuchElementException();
+				String name = schema.getName(next);
+				next = present.nextSetBit(next+1);
+				return name;
+			}
+		};
 	}
-	
+
 	public String getTable(){
 		return table;
 	}
-	
+
 	/**
 	 * generate "a=1, b=2, c=3"
 	 * @return String of set
 	 */
 	public String getUpdateSet(){
-		String returnString = "";
-		String ignoreKey="sys_node_uuid"; // comma seperated list of values. sys:node-uuid is key that is used to check if the row already exists
-		Enumeration<String> keys = getKeys();
-		while (keys.hasMoreElements()){
-			String key = (String)keys.nextElement();
-			if (ignoreKey.indexOf(key)<0){
-				if (returnString!=""){returnString+=", ";}
-				String value = getValue(key);
-				String type  = getType(key);
-				returnString += key + "="+ formatValue(type, value);
+		StringBuilder returnString = new StringBuilder();
+		String ignoreKey="sys_node_uuid"; // sys:node-uuid is key that is used to check if the row already exists
+		for (int i=present.nextSetBit(0); i>=0; i=present.nextSetBit(i+1)){
+			String key = schema.getName(i);
+			if (!ignoreKey.equals(key)){
+				if (returnString.length()>0){returnString.append(", ");}
+				returnString.append(key).append('=');
+				formatValue(returnString, i);
 			}
 		}
-		return returnString;
+		return returnString.toString();
 	}
-	
-	private String formatValue(String type, String value){
-		String returnString = "''";
-		
-		if ("~~NULL~~".equals(value) || "-".equals(value)){
-			returnString="NULL";
+
+	private void formatValue(StringBuilder sb, int ordinal){
+		Object value = values[ordinal];
+		if (value==null){
+			sb.append("NULL");
+		} else if (value instanceof String){
+			sb.append('\'').append(((String)value).replace('\'', '_').replace('"','_')).append('\'');
+		} else if (value instanceof Timestamp){
+			if (sdf==null) sdf = new SimpleDateFormat(Constants.DATE_FORMAT_DATABASE);
+			sb.append('\'').append(sdf.format((Date)value).replace(' ','T')).append('\'');
 		} else {
-			
-			if ("BIGINT,BOOLEAN".indexOf(type)>-1){
-	
-				returnString =  value;
-				
-			} else {
-				if ("DATETIME".equals(type) || "DATE".equals(type)){
-				
-					try{
-						Date myDate  = new Date(Long.parseLong(value));
-						returnString =  "'" + sdf.format(myDate).replace(" ","T")+"'";
-					} catch (Exception e) {
-						returnString =  "'"+value+"'";	
-					}
-					
-				} else {
-					if ("INTEGER".equals(type) || "DOUBLE PRECISION".equals(type) || 
-									"BIGINT".equals(type) || "FLOAT".equals(type)) {
-							returnString=value;
-					} else { // it is a VARCHAR 
-						returnString =  "'"+value+"'";
-					}
-				}
-			}
-		} // end else value==null
-		
-		if (!type.contains("VARCHAR") && "".equals(value)){
-			returnString="NULL";
+			sb.append(value);
 		}
-		return returnString;
 	}
-	
+
 
 	public String getInsertListOfKeys(){
-		String returnString = "";
-		String key = "";
-		@SuppressWarnings("unchecked")
-		Enumeration<String> keys = getKeys();
-		while (keys.hasMoreElements()){
-			if (returnString!=""){returnString+=", ";}
-			key = keys.nextElement(); 
-			returnString += key;
+		StringBuilder returnString = new StringBuilder();
+		for (int i=present.nextSetBit(0); i>=0; i=present.nextSetBit(i+1)){
+			if (returnString.length()>0){returnString.append(", ");}
+			returnString.append(schema.getName(i));
 		}
-		return returnString;
+		return returnString.toString();
 	}
-	
+
 	public String getInsertListOfValues(){
-		String returnString = "";
-		@SuppressWarnings("rawtypes")
-		Enumeration keys = getKeys();
-		while (keys.hasMoreElements()){
-			String key = (String)keys.nextElement();
-			if (returnString!=""){returnString+=", ";}
-			String value = getValue(key);
-			String type  = getType(key);
-			returnString += formatValue(type, value);
+		StringBuilder returnString = new StringBuilder();
+		for (int i=present.nextSetBit(0); i>=0; i=present.nextSetBit(i+1)){
+			if (returnString.length()>0){returnString.append(", ");}
+			formatValue(returnString, i);
 		}
-		return returnString;
+		return returnString.toString();
 	}
 }
@@ -66,6 +66,9 @@ public class ReportingModel {
 	
 	public static final QName PROP_REPORTING_HARVEST_ENABLED  = 
 			QName.createQName(REPORTING_URI, "harvestEnabled");
+	
+	public static final QName PROP_REPORTING_QUERYTABLES_ENABLED  = 
+			QName.createQName(REPORTING_URI, "queryTablesEnabled");
 
 	public static final QName PROP_REPORTING_ROOT_QUERY_LANGUAGE =
 			QName.createQName(REPORTING_URI, "globalExecutionLanguage");
@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2011 - 2013 Alfresco Business Reporting project
+ *
+ * This file is part of the Alfresco Business Reporting project.
+ *
+ * Licensed under the GNU LGPL, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.gnu.org/licenses/lgpl.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.alfresco.reporting;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The columns of a reporting table as seen by ReportLine. Each column gets an
+ * ordinal slot the first time it is set, and keeps it for the lifetime of the
+ * schema. Lookups are lock free; adding a column copies the (small) arrays.
+ *
+ * One schema is shared per table name, see forTable().
+ */
+public final class TableSchema {
+
+	private static final ConcurrentHashMap<String, TableSchema> schemas = new ConcurrentHashMap<String, TableSchema>();
+
+	private final String table;
+	private final ConcurrentHashMap<String, Integer> ordinals = new ConcurrentHashMap<String, Integer>();
+	private volatile String[] names = new String[0];
+	private volatile ColumnType[] types = new ColumnType[0];
+
+	private TableSchema(String table){
+		this.table = table;
+	}
+
+	/**
+	 * @return the shared schema of the given table
+	 */
+	public static TableSchema forTable(String table){
+		TableSchema schema = schemas.get(table);
+		if (schema==null){
+			schema = new TableSchema(table);
+			TableSchema existing = schemas.putIfAbsent(table, schema);
+			if (existing!=null) schema = existing;
+		}
+		return schema;
+	}
+
+	/**
+	 * Forget the schema of a table, e.g. when it is dropped
+	 */
+	public static void remove(String table){
+		schemas.remove(table);
+	}
+
+	public String getTable(){
+		return table;
+	}
+
+	/**
+	 * @return the ordinal of the column, or -1 if it has never been set
+	 */
+	public int ordinalOf(String column){
+		Integer ordinal = ordinals.get(column);
+		return (ordinal==null) ? -1 : ordinal.intValue();
+	}
+
+	/**
+	 * Get the ordinal of a column, adding it if it is new. If the type
+	 * differs from the known one (a replacement type), the new one wins.
+	 */
+	public int define(String column, ColumnType type){
+		Integer ordinal = ordinals.get(column);
+		if ((ordinal!=null) && (types[ordinal.intValue()]==type)){
+			return ordinal.intValue();
+		}
+		synchronized (this){
+			ordinal = ordinals.get(column);
+			if (ordinal==null){
+				int size = names.length;
+				String[] newNames = new String[size+1];
+				ColumnType[] newTypes = new ColumnType[size+1];
+				System.arraycopy(names, 0, newNames, 0, size);
+				System.arraycopy(types, 0, newTypes, 0, size);
+				newNames[size] = column;
+				newTypes[size] = type;
+				types = newTypes;
+				names = newNames;
+				ordinal = Integer.valueOf(size);
+				ordinals.put(column, ordinal);
+			} else if (types[ordinal.intValue()]!=type){
+				ColumnType[] newTypes = types.clone();
+				newTypes[ordinal.intValue()] = type;
+				types = newTypes;
+			}
+			return ordinal.intValue();
+		}
+	}
+
+	public int size(){
+		return names.length;
+	}
+
+	public String getName(int ordinal){
+		return names[ordinal];
+	}
+
+	public ColumnType getType(int ordinal){
+		return types[ordinal];
+	}
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2011 - 2013 Alfresco Business Reporting project
+ *
+ * This file is part of the Alfresco Business Reporting project.
+ *
+ * Licensed under the GNU LGPL, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.gnu.org/licenses/lgpl.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.alfresco.reporting.behaviour;
+
+import java.io.Serializable;
+import java.util.Map;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.node.NodeServicePolicies.OnMoveNodePolicy;
+import org.alfresco.repo.node.NodeServicePolicies.OnUpdatePropertiesPolicy;
+import org.alfresco.repo.policy.JavaBehaviour;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.repo.policy.Behaviour.NotificationFrequency;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.reporting.harvest.PathCache;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Clears the PathCache of the harvest when a folder (or site) is moved or
+ * renamed: the display path, and maybe the site, of everything below it
+ * changed. The cache is cleared once the transaction committed; nothing is
+ * done for a transaction that rolls back.
+ */
+public class OnMoveRenameFolder_ClearPathCache implements OnMoveNodePolicy, OnUpdatePropertiesPolicy {
+
+	private static final String KEY_CLEAR = OnMoveRenameFolder_ClearPathCache.class.getName() + ".clear";
+
+	protected PolicyComponent policyComponent;
+	protected PathCache pathCache;
+	
+	private static Log logger = LogFactory.getLog(OnMoveRenameFolder_ClearPathCache.class);
+	
+	public void initialise() {
+		this.policyComponent.bindClassBehaviour(QName.createQName(
+				NamespaceService.ALFRESCO_URI, "onMoveNode"),
+				ContentModel.TYPE_FOLDER,
+				new JavaBehaviour(this, "onMoveNode", NotificationFrequency.EVERY_EVENT));
+		this.policyComponent.bindClassBehaviour(QName.createQName(
+				NamespaceService.ALFRESCO_URI, "onUpdateProperties"),
+				ContentModel.TYPE_FOLDER,
+				new JavaBehaviour(this, "onUpdateProperties", NotificationFrequency.EVERY_EVENT));
+	}
+	
+	@Override
+	public void onMoveNode(ChildAssociationRef oldChildAssocRef, ChildAssociationRef newChildAssocRef) {
+		logger.debug("onMoveNode: " + newChildAssocRef.getChildRef());
+		clearAfterCommit();
+	}
+	
+	@Override
+	public void onUpdateProperties(NodeRef nodeRef, Map<QName, Serializable> before, Map<QName, Serializable> after) {
+		// before is empty for a new folder, nothing is cached below it yet
+		if (!before.containsKey(ContentModel.PROP_NAME)) return;
+		Serializable oldName = before.get(ContentModel.PROP_NAME);
+		Serializable newName = after.get(ContentModel.PROP_NAME);
+		if ((oldName==null) ? (newName!=null) : !oldName.equals(newName)){
+			logger.debug("onUpdateProperties: renamed " + nodeRef);
+			clearAfterCommit();
+		}
+	}
+	
+	/**
+	 * Clear the cache after the transaction committed, once per transaction
+	 */
+	private void clearAfterCommit(){
+		if (AlfrescoTransactionSupport.getResource(KEY_CLEAR)!=null) return;
+		AlfrescoTransactionSupport.bindResource(KEY_CLEAR, Boolean.TRUE);
+		AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter(){
+			@Override
+			public void afterCommit(){
+				pathCache.clear();
+			}
+		});
+	}
+	
+	public void setPolicyComponent(PolicyComponent policyComponent) {
+		this.policyComponent = policyComponent;
+	}
+	
+	public void setPathCache(PathCache pathCache) {
+		this.pathCache = pathCache;
+	}
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright (C) 2011 - 2013 Alfresco Business Reporting project
+ *
+ * This file is part of the Alfresco Business Reporting project.
+ *
+ * Licensed under the GNU LGPL, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.gnu.org/licenses/lgpl.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.alfresco.reporting.behaviour;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.node.NodeServicePolicies.OnCreateNodePolicy;
+import org.alfresco.repo.node.NodeServicePolicies.OnDeleteNodePolicy;
+import org.alfresco.repo.node.NodeServicePolicies.OnMoveNodePolicy;
+import org.alfresco.repo.node.NodeServicePolicies.OnUpdateNodePolicy;
+import org.alfresco.repo.policy.JavaBehaviour;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.repo.policy.Behaviour.NotificationFrequency;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.repo.version.VersionServicePolicies.AfterCreateVersionPolicy;
+import org.alfresco.reporting.db.DatabaseHelperBean;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.version.Version;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Queues the cm:cmobject nodes that are created, updated, moved, deleted or
+ * versioned, for the tables with harvestMode=EVENTS. The nodes of a 
+ * transaction are collected, and queued once it committed; a transaction
+ * that rolls back queues nothing. Only bound if reporting.harvest.queue.enabled.
+ */
+public class OnNodeChange_QueueForHarvest implements OnCreateNodePolicy, OnUpdateNodePolicy, 
+		OnDeleteNodePolicy, OnMoveNodePolicy, AfterCreateVersionPolicy {
+
+	private static final String KEY_QUEUED = OnNodeChange_QueueForHarvest.class.getName() + ".queued";
+	
+	protected PolicyComponent policyComponent;
+	protected DatabaseHelperBean databaseHelperBean;
+	
+	private static Log logger = LogFactory.getLog(OnNodeChange_QueueForHarvest.class);
+	
+	public void initialise() {
+		if (!databaseHelperBean.isQueueEnabled()){
+			logger.info("initialise: the harvest queue is not enabled");
+			return;
+		}
+		bind("onCreateNode");
+		bind("onUpdateNode");
+		bind("onDeleteNode");
+		bind("onMoveNode");
+		this.policyComponent.bindClassBehaviour(QName.createQName(
+				NamespaceService.ALFRESCO_URI, "afterCreateVersion"),
+				ContentModel.TYPE_CMOBJECT,
+				new JavaBehaviour(this, "afterCreateVersion", NotificationFrequency.EVERY_EVENT));
+	}
+	
+	private void bind(String policy){
+		this.policyComponent.bindClassBehaviour(QName.createQName(
+				NamespaceService.ALFRESCO_URI, policy),
+				ContentModel.TYPE_CMOBJECT,
+				new JavaBehaviour(this, policy, NotificationFrequency.EVERY_EVENT));
+	}
+	
+	@Override
+	public void onCreateNode(ChildAssociationRef childAssocRef) {
+		queue(childAssocRef.getChildRef());
+	}
+	
+	@Override
+	public void onUpdateNode(NodeRef nodeRef) {
+		queue(nodeRef);
+	}
+	
+	@Override
+	public void onDeleteNode(ChildAssociationRef childAssocRef, boolean isNodeArchived) {
+		NodeRef nodeRef = childAssocRef.getChildRef();
+		// the harvest closes its rows
+		queue(nodeRef);
+		if (isNodeArchived){
+			// and harvests it in the archive store
+			queue(new NodeRef(StoreRef.STORE_REF_ARCHIVE_SPACESSTORE, nodeRef.getId()));
+		}
+	}
+	
+	@Override
+	public void onMoveNode(ChildAssociationRef oldChildAssocRef, ChildAssociationRef newChildAssocRef) {
+		queue(newChildAssocRef.getChildRef());
+	}
+	
+	@Override
+	public void afterCreateVersion(NodeRef versionableNode, Version version) {
+		queue(versionableNode);
+	}
+	
+	/**
+	 * Add the node to the nodes of this transaction, queued after commit
+	 */
+	@SuppressWarnings("unchecked")
+	private void queue(NodeRef nodeRef){
+		Set<String> queued = (Set<String>)AlfrescoTransactionSupport.getResource(KEY_QUEUED);
+		if (queued==null){
+			final Set<String> nodeRefs = new LinkedHashSet<String>();
+			AlfrescoTransactionSupport.bindResource(KEY_QUEUED, nodeRefs);
+			AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter(){
+				@Override
+				public void afterCommit(){
+					if (logger.isDebugEnabled()) logger.debug("afterCommit: queueing " + nodeRefs.size() + " nodes");
+					databaseHelperBean.enqueueNodes(nodeRefs);
+				}
+			});
+			queued = nodeRefs;
+		}
+		queued.add(nodeRef.toString());
+	}
+	
+	public void setPolicyComponent(PolicyComponent policyComponent) {
+		this.policyComponent = policyComponent;
+	}
+	
+	public void setDatabaseHelperBean(DatabaseHelperBean databaseHelperBean) {
+		this.databaseHelperBean = databaseHelperBean;
+	}
+}
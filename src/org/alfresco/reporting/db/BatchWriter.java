@@ -0,0 +1,404 @@
+/**
+ * Copyright (C) 2011 - 2013 Alfresco Business Reporting project
+ *
+ * This file is part of the Alfresco Business Reporting project.
+ *
+ * Licensed under the GNU LGPL, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.gnu.org/licenses/lgpl.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.alfresco.reporting.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.alfresco.reporting.ColumnType;
+import org.alfresco.reporting.ReportLine;
+import org.alfresco.reporting.TableSchema;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Writes ReportLines into the reporting database using parameterized
+ * INSERT and UPDATE statements. One PreparedStatement is cached per table,
+ * operation and set of columns. Rows are added to the JDBC batch of that
+ * statement and sent to the database with executeBatch once batchSize rows
+ * are pending, or when flush() is called.
+ *
+ * Values are bound typed (as kept in the ReportLine), so there is no need 
+ * to escape quotes in the values anymore.
+ *
+ * insertVersion() collects the rows of UPDATE_VERSIONED tables; at flush the
+ * VersionEngine sorts out new versions and closes the old ones for all of
+ * them at once, after which the new rows are inserted in a batch.
+ *
+ * upsert() uses the native upsert of the dialect (ON DUPLICATE KEY UPDATE,
+ * ON CONFLICT) on the unique key on sys_node_uuid that the DatabaseHelperBean
+ * creates. If the dialect or table cannot have one, it falls back to
+ * rowExists followed by an update or insert.
+ *
+ * A BatchWriter is bound to a single Connection and is not thread safe.
+ * Always call close() when done, it flushes the pending rows.
+ */
+public class BatchWriter implements RowWriter {
+
+	private static Log logger = LogFactory.getLog(BatchWriter.class);
+
+	private static final String KEY_COLUMN = "sys_node_uuid";
+	private static final int OPERATION_INSERT = 0;
+	private static final int OPERATION_UPDATE = 1;
+	private static final int OPERATION_UPSERT = 2;
+
+	// the validity columns are only set when a row is inserted, like updateIntoTable did
+	private static final Set<String> KEEP_ON_UPDATE = Collections.unmodifiableSet(
+			new HashSet<String>(Arrays.asList(new String[]{"isLatest", "validFrom", "validUntil"})));
+
+	private final DatabaseHelperBean dbhb;
+	private final Connection conn;
+	private final ReportingDialect dialect;
+	private final UpsertDialect upsert;
+	private final int batchSize;
+	private Statement probe;
+
+	// sys_node_uuid values in the current (not yet executed) batch
+	private final Set<String> pendingKeys = new HashSet<String>();
+
+	// per operation: table -> (columns that are set -> statement)
+	@SuppressWarnings("unchecked")
+	private final Map<String, Map<BitSet, CachedStatement>>[] statements = new Map[]{
+		new HashMap<String, Map<BitSet, CachedStatement>>(),
+		new HashMap<String, Map<BitSet, CachedStatement>>(),
+		new HashMap<String, Map<BitSet, CachedStatement>>()};
+	// flush the statements in the order they were first used
+	private final List<CachedStatement> statementOrder = new ArrayList<CachedStatement>();
+	private int pending = 0;
+
+	// rows for insertVersion, per table
+	private final Map<String, List<BufferedRow>> versionRows = new LinkedHashMap<String, List<BufferedRow>>();
+	private final Map<String, TableSchema> versionSchemas = new HashMap<String, TableSchema>();
+	private VersionEngine versionEngine;
+
+	/**
+	 * A PreparedStatement together with the ordinals of the columns to bind
+	 */
+	private static class CachedStatement{
+		PreparedStatement ps;
+		int[] ordinals;
+		int pending = 0;
+	}
+
+	public BatchWriter(DatabaseHelperBean dbhb, Connection conn, int batchSize){
+		this.dbhb = dbhb;
+		this.conn = conn;
+		this.dialect = dbhb.getDialect();
+		this.upsert = dialect.getUpsert();
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * Add an INSERT of the given ReportLine to the batch. The validity columns
+	 * (isLatest, validFrom, validUntil) are set just like insertIntoTable does.
+	 *
+	 * @param rl the line to insert
+	 * @throws SQLException
+	 */
+	public void insert(ReportLine rl) throws SQLException{
+		dbhb.setValidityColumns(rl);
+		CachedStatement cs = getStatement(rl.getTable(), rl.getSchema(), rl.getPresent(), OPERATION_INSERT);
+		bind(cs, rl);
+		addBatch(cs, rl);
+	}
+
+	/**
+	 * Add an UPDATE of the given ReportLine to the batch. The row is
+	 * identified by its sys_node_uuid.
+	 *
+	 * @param rl the line to update
+	 * @throws SQLException
+	 */
+	public void update(ReportLine rl) throws SQLException{
+		CachedStatement cs = getStatement(rl.getTable(), rl.getSchema(), rl.getPresent(), OPERATION_UPDATE);
+		bind(cs, rl);
+		int keyOrdinal = rl.getSchema().ordinalOf(KEY_COLUMN);
+		bindValue(cs.ps, cs.ordinals.length+1, rl.getSchema().getType(keyOrdinal), rl.getObject(keyOrdinal));
+		addBatch(cs, rl);
+	}
+
+	/**
+	 * Insert the given ReportLine, or update the row having the same
+	 * sys_node_uuid if it exists already.
+	 *
+	 * @param rl the line to store
+	 * @throws SQLException
+	 */
+	public void upsert(ReportLine rl) throws SQLException{
+		if ((upsert!=null) && dbhb.hasUniqueKey(rl.getTable())){
+			dbhb.setValidityColumns(rl);
+			CachedStatement cs = getStatement(rl.getTable(), rl.getSchema(), rl.getPresent(), OPERATION_UPSERT);
+			bind(cs, rl);
+			addBatch(cs, rl);
+		} else {
+			if (isPending(rl.getRawValue(KEY_COLUMN))){
+				// the probe must see the rows we batched so far
+				flush();
+			}
+			if (dbhb.rowExists(getProbe(), rl)){
+				update(rl);
+			} else {
+				insert(rl);
+			}
+		}
+	}
+
+	/**
+	 * Collect the line as a new version. The version bookkeeping and the 
+	 * insert take place at flush, for all collected lines at once.
+	 */
+	public void insertVersion(ReportLine rl) throws SQLException{
+		dbhb.setValidityColumns(rl);
+		List<BufferedRow> rows = versionRows.get(rl.getTable());
+		if (rows==null){
+			rows = new ArrayList<BufferedRow>();
+			versionRows.put(rl.getTable(), rows);
+			versionSchemas.put(rl.getTable(), rl.getSchema());
+		}
+		rows.add(new BufferedRow(rl));
+		pending++;
+		String key = rl.getRawValue(KEY_COLUMN);
+		if (key!=null){
+			pendingKeys.add(key);
+		}
+		if (pending>=batchSize){
+			flush();
+		}
+	}
+
+	/**
+	 * @return true if a row with this sys_node_uuid is waiting in the current batch
+	 */
+	public boolean isPending(String uuid){
+		return (uuid!=null) && pendingKeys.contains(uuid);
+	}
+
+	/**
+	 * Execute all pending batches
+	 * @throws SQLException
+	 */
+	public void flush() throws SQLException{
+		if (pending==0) return;
+
+		if (!versionRows.isEmpty()){
+			if (versionEngine==null){
+				versionEngine = new VersionEngine(conn, dialect);
+			}
+			for (Map.Entry<String, List<BufferedRow>> entry : versionRows.entrySet()){
+				String table = entry.getKey();
+				TableSchema schema = versionSchemas.get(table);
+				for (BufferedRow row : versionEngine.merge(table, schema, entry.getValue())){
+					CachedStatement cs = getStatement(table, schema, row.columns, OPERATION_INSERT);
+					bind(cs, schema, row);
+					cs.ps.addBatch();
+					cs.pending++;
+				}
+			}
+			versionRows.clear();
+			versionSchemas.clear();
+		}
+
+		for (CachedStatement cs : statementOrder){
+			if (cs.pending>0){
+				cs.ps.executeBatch();
+				cs.pending = 0;
+			}
+		}
+		if (logger.isDebugEnabled())
+			logger.debug("flush: executed " + pending + " rows");
+		pending = 0;
+		pendingKeys.clear();
+	}
+
+	public void discard(){
+		for (CachedStatement cs : statementOrder){
+			if (cs.pending>0){
+				try{
+					cs.ps.clearBatch();
+				} catch (SQLException e){
+					// nothing we can do
+				}
+				cs.pending = 0;
+			}
+		}
+		versionRows.clear();
+		versionSchemas.clear();
+		pendingKeys.clear();
+		pending = 0;
+	}
+
+	/**
+	 * Flush the pending rows and release all cached statements
+	 * @throws SQLException
+	 */
+	public void close() throws SQLException{
+		try{
+			flush();
+		} finally {
+			for (CachedStatement cs : statementOrder){
+				try{
+					cs.ps.close();
+				} catch (SQLException e){
+					// nothing we can do
+				}
+			}
+			statementOrder.clear();
+			for (Map<String, Map<BitSet, CachedStatement>> perTable : statements){
+				perTable.clear();
+			}
+			if (probe!=null){
+				try{
+					probe.close();
+				} catch (SQLException e){
+					// nothing we can do
+				}
+				probe = null;
+			}
+		}
+	}
+
+	public int getBatchSize(){
+		return batchSize;
+	}
+
+	// ------------------------------------------------------------------------
+
+	private Statement getProbe() throws SQLException{
+		if (probe==null){
+			probe = conn.createStatement();
+		}
+		return probe;
+	}
+
+	private void addBatch(CachedStatement cs, ReportLine rl) throws SQLException{
+		cs.ps.addBatch();
+		cs.pending++;
+		pending++;
+		String key = rl.getRawValue(KEY_COLUMN);
+		if (key!=null){
+			pendingKeys.add(key);
+		}
+		if (pending>=batchSize){
+			flush();
+		}
+	}
+
+	/**
+	 * The statement is looked up by the set of column ordinals of the line, 
+	 * so the same set of columns always maps onto the same statement, no 
+	 * matter the order they were set in the ReportLine
+	 */
+	private CachedStatement getStatement(String table, TableSchema schema, BitSet present, int operation) throws SQLException{
+		Map<BitSet, CachedStatement> perColumns = statements[operation].get(table);
+		if (perColumns==null){
+			perColumns = new HashMap<BitSet, CachedStatement>();
+			statements[operation].put(table, perColumns);
+		}
+		CachedStatement cs = perColumns.get(present);
+		if (cs==null){
+			int keyOrdinal = (operation==OPERATION_UPDATE) ? schema.ordinalOf(KEY_COLUMN) : -1;
+			int[] ordinals = new int[present.cardinality() - ((keyOrdinal>=0 && present.get(keyOrdinal)) ? 1 : 0)];
+			String[] columns = new String[ordinals.length];
+			int c=0;
+			for (int i=present.nextSetBit(0); i>=0; i=present.nextSetBit(i+1)){
+				if (i==keyOrdinal) continue;
+				ordinals[c] = i;
+				columns[c++] = schema.getName(i);
+			}
+
+			String sql;
+			if (operation==OPERATION_INSERT){
+				sql = dialect.buildInsert(table, columns).toString();
+			} else if (operation==OPERATION_UPSERT){
+				sql = upsert.buildUpsert(table, columns, KEY_COLUMN, KEEP_ON_UPDATE);
+			} else {
+				sql = buildUpdate(table, columns);
+			}
+			if (logger.isDebugEnabled())
+				logger.debug("getStatement: preparing " + sql);
+			cs = new CachedStatement();
+			cs.ps = conn.prepareStatement(sql);
+			cs.ordinals = ordinals;
+			perColumns.put((BitSet)present.clone(), cs);
+			statementOrder.add(cs);
+		}
+		return cs;
+	}
+
+	private String buildUpdate(String table, String[] columns){
+		StringBuilder sql = new StringBuilder("UPDATE ").append(dialect.quote(table)).append(" SET ");
+		for (int i=0;i<columns.length;i++){
+			if (i>0) sql.append(", ");
+			sql.append(columns[i]).append("=?");
+		}
+		sql.append(" WHERE ").append(KEY_COLUMN).append("=?");
+		return sql.toString();
+	}
+
+	private void bind(CachedStatement cs, ReportLine rl) throws SQLException{
+		TableSchema schema = rl.getSchema();
+		int[] ordinals = cs.ordinals;
+		for (int i=0;i<ordinals.length;i++){
+			bindValue(cs.ps, i+1, schema.getType(ordinals[i]), rl.getObject(ordinals[i]));
+		}
+	}
+
+	private void bind(CachedStatement cs, TableSchema schema, BufferedRow row) throws SQLException{
+		int[] ordinals = cs.ordinals;
+		for (int i=0;i<ordinals.length;i++){
+			bindValue(cs.ps, i+1, schema.getType(ordinals[i]), row.get(ordinals[i]));
+		}
+	}
+
+	/**
+	 * Bind a typed value as produced by ColumnType.convert()
+	 */
+	static void bindValue(PreparedStatement ps, int index, ColumnType type, Object value) throws SQLException{
+		if (value==null){
+			ps.setNull(index, type.getSqlType());
+		} else if (value instanceof String){
+			ps.setString(index, (String)value);
+		} else if (value instanceof Long){
+			ps.setLong(index, ((Long)value).longValue());
+		} else if (value instanceof Integer){
+			ps.setInt(index, ((Integer)value).intValue());
+		} else if (value instanceof Boolean){
+			ps.setBoolean(index, ((Boolean)value).booleanValue());
+		} else if (value instanceof Double){
+			ps.setDouble(index, ((Double)value).doubleValue());
+		} else if (value instanceof Timestamp){
+			ps.setTimestamp(index, (Timestamp)value);
+		} else {
+			ps.setObject(index, value);
+		}
+	}
+}
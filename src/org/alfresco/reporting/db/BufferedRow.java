@@ -0,0 +1,69 @@
+/**
+ * Copyright (C) 2011 - 2013 Alfresco Business Reporting project
+ *
+ * This file is part of the Alfresco Business Reporting project.
+ *
+ * Licensed under the GNU LGPL, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.gnu.org/licenses/lgpl.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.alfresco.reporting.db;
+
+import java.util.BitSet;
+
+import org.alfresco.reporting.ReportLine;
+import org.alfresco.reporting.TableSchema;
+
+/**
+ * A copy of the values of a ReportLine, for writers that hold on to rows
+ * while the ReportLine itself is reused.
+ */
+class BufferedRow {
+	final BitSet columns;
+	Object[] values;
+
+	BufferedRow(ReportLine rl){
+		columns = (BitSet)rl.getPresent().clone();
+		values = new Object[Math.max(columns.length(), rl.getSchema().size())];
+		for (int i=columns.nextSetBit(0); i>=0; i=columns.nextSetBit(i+1)){
+			values[i] = rl.getObject(i);
+		}
+	}
+
+	/**
+	 * Put the values back into a (reused) ReportLine
+	 */
+	void copyTo(ReportLine rl, String table, TableSchema schema){
+		rl.setTable(table);
+		for (int i=columns.nextSetBit(0); i>=0; i=columns.nextSetBit(i+1)){
+			rl.setValue(schema.getName(i), schema.getType(i), values[i]);
+		}
+	}
+
+	Object get(int ordinal){
+		return ((ordinal>=0) && (ordinal<values.length)) ? values[ordinal] : null;
+	}
+
+	boolean has(int ordinal){
+		return (ordinal>=0) && columns.get(ordinal);
+	}
+
+	void set(int ordinal, Object value){
+		if (ordinal>=values.length){
+			Object[] newValues = new Object[ordinal+1];
+			System.arraycopy(values, 0, newValues, 0, values.length);
+			values = newValues;
+		}
+		columns.set(ordinal);
+		values[ordinal] = value;
+	}
+}
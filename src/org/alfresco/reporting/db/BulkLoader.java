@@ -0,0 +1,172 @@
+/**
+ * Copyright (C) 2011 - 2013 Alfresco Business Reporting project
+ *
+ * This file is part of the Alfresco Business Reporting project.
+ *
+ * Licensed under the GNU LGPL, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.gnu.org/licenses/lgpl.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.alfresco.reporting.db;
+
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Streams tab separated rows into a table using the native bulk load of the
+ * database: LOAD DATA LOCAL INFILE on MySQL, COPY FROM STDIN on PostgreSQL.
+ * Both read the same text format: tab separated, newline terminated,
+ * backslash escaped, \N for NULL.
+ *
+ * The JDBC drivers are not a compile time dependency of the module, so
+ * the driver specific API is called by reflection.
+ */
+public abstract class BulkLoader {
+
+	private static Log logger = LogFactory.getLog(BulkLoader.class);
+
+	/**
+	 * Load the rows in the stream into the given columns of the table
+	 * @param table the (unquoted) table name
+	 * @param columns comma separated list of columns
+	 * @param rows the rows in the bulk text format, UTF-8
+	 * @return the number of rows loaded, -1 if unknown
+	 */
+	public abstract long load(String table, String columns, InputStream rows) throws SQLException;
+
+	/**
+	 * @return a loader for the connection, or null if the driver does not
+	 *         support streaming bulk loads
+	 */
+	public static BulkLoader forConnection(ReportingDialect dialect, Connection conn){
+		try{
+			if (dialect==ReportingDialect.MYSQL){
+				return new MySQLLoader(conn);
+			}
+			if (dialect==ReportingDialect.POSTGRESQL){
+				return new PostgreSQLLoader(conn);
+			}
+		} catch (Exception e){
+			logger.warn("Bulk load is not available for " + dialect + ": " + e);
+		}
+		return null;
+	}
+
+	private static Class<?> loadClass(Connection conn, String... names) throws ClassNotFoundException{
+		ClassNotFoundException notFound = null;
+		for (String name : names){
+			try{
+				return Class.forName(name, true, conn.getClass().getClassLoader());
+			} catch (ClassNotFoundException e){
+				notFound = e;
+			}
+			try{
+				return Class.forName(name);
+			} catch (ClassNotFoundException e){
+				notFound = e;
+			}
+		}
+		throw notFound;
+	}
+
+	private static SQLException unwrap(Exception e){
+		Throwable cause = e;
+		if ((e instanceof InvocationTargetException) && (e.getCause()!=null)){
+			cause = e.getCause();
+		}
+		if (cause instanceof SQLException){
+			return (SQLException)cause;
+		}
+		SQLException se = new SQLException("Bulk load failed: " + cause.getMessage());
+		se.initCause(cause);
+		return se;
+	}
+
+	// ------------------------------------------------------------------------
+
+	/**
+	 * LOAD DATA LOCAL INFILE, reading from an InputStream set on the
+	 * Connector/J statement. The server needs local_infile enabled,
+	 * Connector/J 8 also needs allowLoadLocalInfile=true on the JDBC url.
+	 */
+	private static class MySQLLoader extends BulkLoader{
+		private final Connection conn;
+		private final Class<?> statementClass;
+		private final Method setStream;
+
+		MySQLLoader(Connection conn) throws Exception{
+			this.conn = conn;
+			this.statementClass = loadClass(conn, "com.mysql.cj.jdbc.JdbcStatement", "com.mysql.jdbc.Statement");
+			this.setStream = statementClass.getMethod("setLocalInfileInputStream", InputStream.class);
+		}
+
+		public long load(String table, String columns, InputStream rows) throws SQLException{
+			String sql = "LOAD DATA LOCAL INFILE 'stream' INTO TABLE `" + table + "` CHARACTER SET utf8 " +
+					"FIELDS TERMINATED BY '\\t' ESCAPED BY '\\\\' LINES TERMINATED BY '\\n' (" + columns + ")";
+			Statement stmt = conn.createStatement();
+			try{
+				Object target = stmt.isWrapperFor(statementClass) ? stmt.unwrap(statementClass) : stmt;
+				setStream.invoke(target, rows);
+				return stmt.executeUpdate(sql);
+			} catch (IllegalAccessException e){
+				throw unwrap(e);
+			} catch (InvocationTargetException e){
+				throw unwrap(e);
+			} finally {
+				stmt.close();
+			}
+		}
+	}
+
+	/**
+	 * COPY ... FROM STDIN through the CopyManager of the PostgreSQL driver
+	 */
+	private static class PostgreSQLLoader extends BulkLoader{
+		private final Connection conn;
+		private final Class<?> connectionClass;
+		private final Constructor<?> copyManager;
+		private final Method copyIn;
+
+		PostgreSQLLoader(Connection conn) throws Exception{
+			this.conn = conn;
+			this.connectionClass = loadClass(conn, "org.postgresql.core.BaseConnection");
+			Class<?> copyManagerClass = loadClass(conn, "org.postgresql.copy.CopyManager");
+			this.copyManager = copyManagerClass.getConstructor(connectionClass);
+			this.copyIn = copyManagerClass.getMethod("copyIn", String.class, InputStream.class);
+			if (!conn.isWrapperFor(connectionClass)){
+				throw new SQLException("Not a PostgreSQL connection: " + conn.getClass().getName());
+			}
+		}
+
+		public long load(String table, String columns, InputStream rows) throws SQLException{
+			String sql = "COPY \"" + table + "\" (" + columns + ") FROM STDIN";
+			try{
+				Object manager = copyManager.newInstance(conn.unwrap(connectionClass));
+				return ((Number)copyIn.invoke(manager, sql, rows)).longValue();
+			} catch (InstantiationException e){
+				throw unwrap(e);
+			} catch (IllegalAccessException e){
+				throw unwrap(e);
+			} catch (InvocationTargetException e){
+				throw unwrap(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,425 @@
+/**
+ * Copyright (C) 2011 - 2013 Alfresco Business Reporting project
+ *
+ * This file is part of the Alfresco Business Reporting project.
+ *
+ * Licensed under the GNU LGPL, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.gnu.org/licenses/lgpl.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.alfresco.reporting.db;
+
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.alfresco.reporting.ColumnType;
+import org.alfresco.reporting.ReportLine;
+import org.alfresco.reporting.TableSchema;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * RowWriter for the BULK write mode. Rows are buffered in memory and written
+ * with the native bulk load of the database (see BulkLoader), bulkSize rows
+ * at a time:
+ * <ul>
+ * <li>insert: loaded straight into the table</li>
+ * <li>upsert: loaded into a staging table, then merged on the unique key
+ *     of sys_node_uuid (INSERT ... SELECT with the dialect upsert)</li>
+ * <li>insertVersion: the versions of a node within the buffer are chained
+ *     (isLatest, validUntil) before loading them into a staging table. From
+ *     there the rows that are stored already are removed, the current latest
+ *     rows are closed and the rest is inserted, all set based.</li>
+ * </ul>
+ * A row that lacks a column that other rows of the same load have, gets
+ * NULL for that column (isLatest: true).
+ * Plain updates, and upserts into tables without the unique key, are
+ * passed on to a BatchWriter. Needs a dialect with staging tables
+ * (ReportingDialect.getUpsert()).
+ *
+ * Bound to a single Connection and not thread safe. Always call close().
+ */
+public class BulkWriter implements RowWriter {
+
+	private static Log logger = LogFactory.getLog(BulkWriter.class);
+
+	private static final String KEY_COLUMN = "sys_node_uuid";
+	private static final String STAGE_POSTFIX = "__stage";
+	private static final ColumnType TYPE_BOOLEAN = ColumnType.forDefinition("BOOLEAN");
+	private static final ColumnType TYPE_DATETIME = ColumnType.forDefinition("DATETIME");
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// the validity columns are only set when a row is inserted
+	private static final Set<String> KEEP_ON_UPDATE = Collections.unmodifiableSet(
+			new HashSet<String>(Arrays.asList(new String[]{"isLatest", "validFrom", "validUntil"})));
+
+	private static final int MODE_INSERT = 0;
+	private static final int MODE_UPSERT = 1;
+	private static final int MODE_VERSION = 2;
+
+	private final DatabaseHelperBean dbhb;
+	private final Connection conn;
+	private final ReportingDialect dialect;
+	private final UpsertDialect upsert;
+	private final BulkLoader loader;
+	private final BatchWriter fallback;
+	private final int bulkSize;
+
+	// table -> buffered rows, per mode
+	private final Map<String, TableBuffer> buffers = new LinkedHashMap<String, TableBuffer>();
+	private final Set<String> pendingKeys = new HashSet<String>();
+	private int pending = 0;
+
+	private static class TableBuffer{
+		final TableSchema schema;
+		@SuppressWarnings("unchecked")
+		final List<BufferedRow>[] rows = new List[]{new ArrayList<BufferedRow>(), new ArrayList<BufferedRow>(), new ArrayList<BufferedRow>()};
+
+		TableBuffer(TableSchema schema){
+			this.schema = schema;
+		}
+	}
+
+	BulkWriter(DatabaseHelperBean dbhb, Connection conn, BulkLoader loader, int bulkSize){
+		this.dbhb = dbhb;
+		this.conn = conn;
+		this.dialect = dbhb.getDialect();
+		this.upsert = dialect.getUpsert();
+		if (upsert==null){
+			throw new IllegalArgumentException("No staging tables for the " + dialect + " dialect");
+		}
+		this.loader = loader;
+		this.bulkSize = Math.max(1, bulkSize);
+		this.fallback = dbhb.createBatchWriter(conn);
+	}
+
+	public void insert(ReportLine rl) throws SQLException{
+		dbhb.setValidityColumns(rl);
+		add(rl, MODE_INSERT);
+	}
+
+	public void update(ReportLine rl) throws SQLException{
+		if (isPending(rl.getRawValue(KEY_COLUMN))){
+			flush();
+		}
+		fallback.update(rl);
+	}
+
+	public void upsert(ReportLine rl) throws SQLException{
+		if (dbhb.hasUniqueKey(rl.getTable())){
+			dbhb.setValidityColumns(rl);
+			add(rl, MODE_UPSERT);
+		} else {
+			if (isPending(rl.getRawValue(KEY_COLUMN))){
+				flush();
+			}
+			fallback.upsert(rl);
+		}
+	}
+
+	public void insertVersion(ReportLine rl) throws SQLException{
+		dbhb.setValidityColumns(rl);
+		// make sure the chaining columns have an ordinal
+		rl.getSchema().define("isLatest", TYPE_BOOLEAN);
+		rl.getSchema().define("validUntil", TYPE_DATETIME);
+		add(rl, MODE_VERSION);
+	}
+
+	public boolean isPending(String uuid){
+		return (uuid!=null) && (pendingKeys.contains(uuid) || fallback.isPending(uuid));
+	}
+
+	public void flush() throws SQLException{
+		fallback.flush();
+		if (pending==0) return;
+
+		long start = System.currentTimeMillis();
+		for (Map.Entry<String, TableBuffer> entry : buffers.entrySet()){
+			String table = entry.getKey();
+			TableBuffer buffer = entry.getValue();
+			if (!buffer.rows[MODE_INSERT].isEmpty()){
+				loadInsert(table, buffer);
+			}
+			if (!buffer.rows[MODE_UPSERT].isEmpty()){
+				loadUpsert(table, buffer);
+			}
+			if (!buffer.rows[MODE_VERSION].isEmpty()){
+				loadVersions(table, buffer);
+			}
+		}
+		if (logger.isDebugEnabled())
+			logger.debug("flush: bulk loaded " + pending + " rows in " + (System.currentTimeMillis()-start) + "ms");
+		buffers.clear();
+		pendingKeys.clear();
+		pending = 0;
+	}
+
+	public void discard(){
+		buffers.clear();
+		pendingKeys.clear();
+		pending = 0;
+		fallback.discard();
+	}
+
+	public void close() throws SQLException{
+		try{
+			flush();
+		} finally {
+			buffers.clear();
+			fallback.close();
+		}
+	}
+
+	// ------------------------------------------------------------------------
+
+	private void add(ReportLine rl, int mode) throws SQLException{
+		TableBuffer buffer = buffers.get(rl.getTable());
+		if (buffer==null){
+			buffer = new TableBuffer(rl.getSchema());
+			buffers.put(rl.getTable(), buffer);
+		}
+		buffer.rows[mode].add(new BufferedRow(rl));
+		pending++;
+		String key = rl.getRawValue(KEY_COLUMN);
+		if (key!=null){
+			pendingKeys.add(key);
+		}
+		if (pending>=bulkSize){
+			flush();
+		}
+	}
+
+	private void loadInsert(String table, TableBuffer buffer) throws SQLException{
+		List<BufferedRow> rows = buffer.rows[MODE_INSERT];
+		BitSet columns = union(rows);
+		load(table, buffer.schema, columns, rows);
+	}
+
+	private void loadUpsert(String table, TableBuffer buffer) throws SQLException{
+		// the unique key allows a single row per node, the last one wins
+		int keyOrdinal = buffer.schema.ordinalOf(KEY_COLUMN);
+		Map<Object, BufferedRow> perKey = new LinkedHashMap<Object, BufferedRow>();
+		for (BufferedRow row : buffer.rows[MODE_UPSERT]){
+			perKey.put(row.get(keyOrdinal), row);
+		}
+		List<BufferedRow> rows = new ArrayList<BufferedRow>(perKey.values());
+		BitSet columns = union(rows);
+		String stage = table + STAGE_POSTFIX;
+
+		createStaging(table, stage);
+		try{
+			load(stage, buffer.schema, columns, rows);
+			execute(upsert.buildUpsertFromStaging(table, stage, names(buffer.schema, columns), KEY_COLUMN, KEEP_ON_UPDATE));
+		} finally {
+			dropStaging(stage);
+		}
+	}
+
+	private void loadVersions(String table, TableBuffer buffer) throws SQLException{
+		TableSchema schema = buffer.schema;
+		int keyOrdinal = schema.ordinalOf(KEY_COLUMN);
+		int modifiedOrdinal = schema.ordinalOf("cm_modified");
+		int isLatestOrdinal = schema.ordinalOf("isLatest");
+		int validUntilOrdinal = schema.ordinalOf("validUntil");
+		List<BufferedRow> rows = buffer.rows[MODE_VERSION];
+
+		// chain the versions of a node within this load, in the order they came in
+		Map<Object, BufferedRow> newest = new HashMap<Object, BufferedRow>();
+		for (BufferedRow row : rows){
+			BufferedRow previous = newest.put(row.get(keyOrdinal), row);
+			if (previous!=null){
+				previous.columns.set(isLatestOrdinal);
+				previous.columns.set(validUntilOrdinal);
+				previous.set(isLatestOrdinal, Boolean.FALSE);
+				previous.set(validUntilOrdinal, row.get(modifiedOrdinal));
+			}
+		}
+
+		BitSet columns = union(rows);
+		columns.set(isLatestOrdinal);
+		String[] names = names(schema, columns);
+		String stage = table + STAGE_POSTFIX;
+
+		createStaging(table, stage);
+		try{
+			load(stage, schema, columns, rows);
+			if (modifiedOrdinal>=0 && columns.get(modifiedOrdinal)){
+				int labelOrdinal = schema.ordinalOf("cm_versionLabel");
+				execute(upsert.buildDeleteStoredVersions(table, stage, (labelOrdinal>=0) && columns.get(labelOrdinal)));
+				execute(upsert.buildCloseVersions(table, stage));
+			}
+			execute(dialect.buildInsertFromStaging(table, stage, names).toString());
+		} finally {
+			dropStaging(stage);
+		}
+	}
+
+	private BitSet union(List<BufferedRow> rows){
+		BitSet columns = new BitSet();
+		for (BufferedRow row : rows){
+			columns.or(row.columns);
+		}
+		return columns;
+	}
+
+	private String[] names(TableSchema schema, BitSet columns){
+		String[] names = new String[columns.cardinality()];
+		int c=0;
+		for (int i=columns.nextSetBit(0); i>=0; i=columns.nextSetBit(i+1)){
+			names[c++] = schema.getName(i);
+		}
+		return names;
+	}
+
+	/**
+	 * Hand the rows to the loader, encoded in the bulk text format while the
+	 * loader reads them
+	 */
+	private void load(String table, TableSchema schema, BitSet columns, List<BufferedRow> rows) throws SQLException{
+		StringBuilder columnList = new StringBuilder();
+		for (int i=columns.nextSetBit(0); i>=0; i=columns.nextSetBit(i+1)){
+			if (columnList.length()>0) columnList.append(',');
+			columnList.append(schema.getName(i));
+		}
+
+		long loaded = loader.load(table, columnList.toString(),
+				new RowStream(rows, columns, schema.ordinalOf("isLatest")));
+		if (logger.isDebugEnabled())
+			logger.debug("load: " + loaded + " rows into " + table);
+	}
+
+	/**
+	 * The rows in the bulk text format, UTF-8. A row is encoded when the
+	 * reader gets to it, so only a single row is held as text at a time.
+	 */
+	static class RowStream extends InputStream{
+		private final Iterator<BufferedRow> rows;
+		private final BitSet columns;
+		private final int isLatestOrdinal;
+		private final StringBuilder text = new StringBuilder(1024);
+		private byte[] bytes = new byte[0];
+		private int position = 0;
+
+		RowStream(List<BufferedRow> rows, BitSet columns, int isLatestOrdinal){
+			this.rows = rows.iterator();
+			this.columns = columns;
+			this.isLatestOrdinal = isLatestOrdinal;
+		}
+
+		public int read(){
+			if (!fill()) return -1;
+			return bytes[position++] & 0xff;
+		}
+
+		public int read(byte[] b, int off, int len){
+			if (len==0) return 0;
+			int read = 0;
+			while ((read<len) && fill()){
+				int n = Math.min(len-read, bytes.length-position);
+				System.arraycopy(bytes, position, b, off+read, n);
+				position += n;
+				read += n;
+			}
+			return (read==0) ? -1 : read;
+		}
+
+		public int available(){
+			return bytes.length-position;
+		}
+
+		/**
+		 * @return false if all rows are read
+		 */
+		private boolean fill(){
+			while (position>=bytes.length){
+				if (!rows.hasNext()) return false;
+				BufferedRow row = rows.next();
+				text.setLength(0);
+				boolean first = true;
+				for (int i=columns.nextSetBit(0); i>=0; i=columns.nextSetBit(i+1)){
+					if (!first) text.append('\t');
+					first = false;
+					if (!row.columns.get(i) && (i==isLatestOrdinal)){
+						text.append('1');
+					} else {
+						appendValue(text, row.get(i));
+					}
+				}
+				text.append('\n');
+				bytes = text.toString().getBytes(UTF8);
+				position = 0;
+			}
+			return true;
+		}
+	}
+
+	static void appendValue(StringBuilder sb, Object value){
+		if (value==null){
+			sb.append("\\N");
+		} else if (value instanceof Boolean){
+			sb.append(((Boolean)value).booleanValue() ? '1' : '0');
+		} else if (value instanceof String){
+			String s = (String)value;
+			for (int i=0;i<s.length();i++){
+				char c = s.charAt(i);
+				switch (c){
+					case '\\': sb.append("\\\\"); break;
+					case '\t': sb.append("\\t"); break;
+					case '\n': sb.append("\\n"); break;
+					case '\r': sb.append("\\r"); break;
+					default: sb.append(c);
+				}
+			}
+		} else {
+			// numbers and java.sql.Timestamp (yyyy-mm-dd hh:mm:ss.f)
+			sb.append(value.toString());
+		}
+	}
+
+	private void createStaging(String table, String stage) throws SQLException{
+		execute(upsert.buildDropStaging(stage));
+		execute(upsert.buildCreateStaging(table, stage));
+	}
+
+	private void dropStaging(String stage){
+		try{
+			execute(upsert.buildDropStaging(stage));
+		} catch (SQLException e){
+			logger.warn("dropStaging: " + e.getMessage());
+		}
+	}
+
+	private void execute(String sql) throws SQLException{
+		if (logger.isDebugEnabled())
+			logger.debug("execute: " + sql);
+		Statement stmt = conn.createStatement();
+		try{
+			stmt.executeUpdate(sql);
+		} finally {
+			stmt.close();
+		}
+	}
+}
@@ -18,44 +18,89 @@
 
 package org.alfresco.reporting.db;
 
+import java.io.UnsupportedEncodingException;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.DatabaseMetaData;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
 import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.sql.DataSource;
 
+import org.alfresco.reporting.ColumnType;
 import org.alfresco.reporting.Constants;
 import org.alfresco.reporting.ReportLine;
+import org.alfresco.reporting.TableSchema;
 import org.alfresco.reporting.mybatis.ReportingDAO;
 import org.alfresco.reporting.mybatis.impl.ReportingDAOImpl;
+import org.apache.commons.dbcp.BasicDataSource;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 public class DatabaseHelperBean {
 
 	private static Log logger = LogFactory.getLog(DatabaseHelperBean.class);
+	private static final ColumnType TYPE_BOOLEAN = ColumnType.forDefinition("BOOLEAN");
+	private static final ColumnType TYPE_DATETIME = ColumnType.forDefinition("DATETIME");
 	private String database;
 	private String jdbcdriver;
 	private String username;
 	private String password;
 	private Connection conn;
+	private BasicDataSource pool;
+	private DataSource jndiDataSource;
 	private Properties globalProperties;
 	private ReportingDAO reportingDAO;
+	private ReportingDialect dialect;
+	
+	// per table: does it have the unique key on sys_node_uuid used by upserts
+	private final Map<String, Boolean> uniqueKeys = new ConcurrentHashMap<String, Boolean>();
+	
+	/**
+	 * The indexes the harvest needs on every reporting table: the lookups of 
+	 * the current version, and of the stored versions of a node
+	 */
+	private static final String[][] REQUIRED_INDEXES = {
+		{"sys_node_uuid", "isLatest"},
+		{"sys_node_uuid", "cm_modified", "cm_versionLabel"}
+	};
+	// extra indexes per table (name -> columns), from <table>.index.<name> in the harvest definition 
+	private final Map<String, Map<String, String[]>> tableIndexes = new ConcurrentHashMap<String, Map<String, String[]>>();
+	private final SchemaRegistry schemaRegistry = new SchemaRegistry();
+	// tables that have all their indexes
+	private final Map<String, Boolean> indexedTables = new ConcurrentHashMap<String, Boolean>();
+	private LeaseManager leases;
+	private HarvestQueue harvestQueue;
+	// writes the nodes of the behaviours into the queue, off the request thread
+	private ThreadPoolExecutor enqueueExecutor;
 	
 	
 	public void setReportingDAOImpl (ReportingDAO reportingDAO){
@@ -125,6 +170,7 @@ public class DatabaseHelperBean {
 		    while(rs.next()){
 		         //Retrieve by column number
 		    	String table = rs.getString(1);
+		    	if (isWorkTable(table)) continue;
 		    	sql = "SELECT COUNT(*) FROM " + table;
 		    	Statement stmt2 = getConnection().createStatement();
 		    	ResultSet rs2 = stmt2.executeQuery(sql);
@@ -147,6 +193,15 @@ public class DatabaseHelperBean {
 		return sm;
 	}
 	
+	/**
+	 * @return true for the tables the harvest works with, that are no report
+	 *         tables: the shadow and old tables of a full refresh, and the queue
+	 */
+	private boolean isWorkTable(String table){
+		return table.endsWith(Constants.SHADOW_TABLE_POSTFIX) || table.endsWith(Constants.OLD_TABLE_POSTFIX)
+				|| Constants.TABLE_HARVEST_QUEUE.equalsIgnoreCase(table);
+	}
+	
 	private String postFix(String base, final int size, final String filler){
 		while (base.length()<size){
 			base += filler;
@@ -167,6 +222,7 @@ public class DatabaseHelperBean {
 		    while(rs.next()){
 		         //Retrieve by column number
 		    	String table = rs.getString(1);
+		    	if (isWorkTable(table)) continue;
 		    	int tableLength = table.length()+5;
 		    	String totaal = "";
 		    	String isLatest = "0";
@@ -243,6 +299,13 @@ public class DatabaseHelperBean {
 					logger.info("  " + key + " (" + p.get(key) + ")");
 				}
 			} // end if ss.size()			
+			
+			if (isAutoIndex()){
+				Connection conn = getConnection();
+				for (String table : ss){
+					ensureIndexes(conn, table);
+				}
+			}
 		} catch (Exception e){
 			logger.warn("Reporting table information could not be retrieved!!");
 		}
@@ -270,60 +333,181 @@ public class DatabaseHelperBean {
     	return inString;
     }
     
+	/**
+	 * The connection shared by the single threaded callers (script, status).
+	 * Code that runs in parallel must use borrowConnection() instead.
+	 */
 	public Connection getConnection()  {
 		try {
 			if ((this.conn == null) || conn.isClosed()){
-				String jndiName = globalProperties.getProperty(Constants.property_jndiName , "");
-				
-				if ("".equals(jndiName)){
-					database   = globalProperties.getProperty("reporting.db.url");
-					jdbcdriver = globalProperties.getProperty("reporting.db.driver");
-					username   = globalProperties.getProperty("reporting.db.username");
-					password   = globalProperties.getProperty("reporting.db.password");
-	
-					database   = replaceAllKeysInValue(database);
-					jdbcdriver = replaceAllKeysInValue(jdbcdriver);
-					username   = replaceAllKeysInValue(username);
-					password   = replaceAllKeysInValue(password);
-					
-					if (logger.isDebugEnabled()){
-						logger.debug("Enabled    : " + isEnabled());
-						logger.debug("DatabaseURL: " + database);
-						logger.debug("JDBC Driver: " + jdbcdriver);
-						logger.debug("Username   : " + username);
-					}
-					if (isEnabled()){
-						Class.forName(jdbcdriver);
-						if (logger.isDebugEnabled()) logger.info("Connecting to database " + database);
-						conn = DriverManager.getConnection(database,username,password);
-					}
-				} else {
-					Context context = new InitialContext();
-					DataSource ds = (DataSource)context.lookup("java:/comp/env/jdbc/"+jndiName);
-					conn = ds.getConnection();
-					if (logger.isDebugEnabled()){
-						logger.info("Enabled    : " + isEnabled());
-						logger.info("Connecting using JNDI name " + jndiName);
-					}
-				}
+				conn = borrowConnection();
 			}
 	   } catch(SQLException se){
 		      //Handle errors for JDBC
 		      se.printStackTrace();
-	   } catch (ClassNotFoundException e) {
-		   e.printStackTrace();
-	   } catch (NamingException e){
-		   e.printStackTrace();
 	   }
 		 
 		return conn;
 	}
 	
+	/**
+	 * Get a connection of its own, from the pool (JDBC url) or from the 
+	 * container DataSource (JNDI). The caller must close() it, which returns
+	 * it to the pool.
+	 * @return the connection, or null if reporting is disabled
+	 */
+	public Connection borrowConnection() throws SQLException{
+		try {
+			synchronized (this){
+				if ((pool==null) && (jndiDataSource==null)){
+					String jndiName = globalProperties.getProperty(Constants.property_jndiName , "");
+					
+					if ("".equals(jndiName)){
+						database   = globalProperties.getProperty("reporting.db.url");
+						jdbcdriver = globalProperties.getProperty("reporting.db.driver");
+						username   = globalProperties.getProperty("reporting.db.username");
+						password   = globalProperties.getProperty("reporting.db.password");
+		
+						database   = replaceAllKeysInValue(database);
+						jdbcdriver = replaceAllKeysInValue(jdbcdriver);
+						username   = replaceAllKeysInValue(username);
+						password   = replaceAllKeysInValue(password);
+						
+						if (logger.isDebugEnabled()){
+							logger.debug("Enabled    : " + isEnabled());
+							logger.debug("DatabaseURL: " + database);
+							logger.debug("JDBC Driver: " + jdbcdriver);
+							logger.debug("Username   : " + username);
+						}
+						if (!isEnabled()){
+							return null;
+						}
+						Class.forName(jdbcdriver);
+						if (logger.isDebugEnabled()) logger.info("Connecting to database " + database);
+						pool = createPool();
+					} else {
+						Context context = new InitialContext();
+						jndiDataSource = (DataSource)context.lookup("java:/comp/env/jdbc/"+jndiName);
+						if (logger.isDebugEnabled()){
+							logger.info("Enabled    : " + isEnabled());
+							logger.info("Connecting using JNDI name " + jndiName);
+						}
+					}
+				}
+			}
+		} catch (ClassNotFoundException e) {
+			throw new SQLException("JDBC driver not found: " + jdbcdriver, e);
+		} catch (NamingException e){
+			throw new SQLException("DataSource not found: " + e.getMessage(), e);
+		}
+		
+		return (pool!=null) ? pool.getConnection() : jndiDataSource.getConnection();
+	}
+	
+	/**
+	 * The commons-dbcp pool of the webapp, with the reporting.db.pool.* settings.
+	 * Connections are validated on borrow and while idle, idle ones are evicted,
+	 * and each connection keeps its prepared statements.
+	 */
+	private BasicDataSource createPool(){
+		BasicDataSource dataSource = new BasicDataSource();
+		dataSource.setDriverClassName(jdbcdriver);
+		dataSource.setUrl(database);
+		dataSource.setUsername(username);
+		dataSource.setPassword(password);
+		dataSource.setMaxActive(getIntProperty(Constants.property_pool_maxActive, 8));
+		dataSource.setMaxIdle(getIntProperty(Constants.property_pool_maxIdle, 8));
+		dataSource.setMinIdle(getIntProperty(Constants.property_pool_minIdle, 0));
+		dataSource.setMaxWait(getIntProperty(Constants.property_pool_maxWait, 30000));
+		dataSource.setValidationQuery(globalProperties.getProperty(Constants.property_pool_validationQuery, "SELECT 1"));
+		dataSource.setValidationQueryTimeout(getIntProperty(Constants.property_pool_validationTimeout, 5));
+		dataSource.setTestOnBorrow(true);
+		dataSource.setTestWhileIdle(true);
+		dataSource.setTimeBetweenEvictionRunsMillis(getIntProperty(Constants.property_pool_evictionInterval, 60000));
+		dataSource.setMinEvictableIdleTimeMillis(getIntProperty(Constants.property_pool_minEvictableIdleTime, 300000));
+		int statementCacheSize = getIntProperty(Constants.property_pool_statementCacheSize, 50);
+		dataSource.setPoolPreparedStatements(statementCacheSize>0);
+		dataSource.setMaxOpenPreparedStatements(statementCacheSize);
+		return dataSource;
+	}
+	
+	/**
+	 * @return the metrics of the connection pool, empty with JNDI
+	 */
+	public Map<String, Long> getPoolStatistics(){
+		BasicDataSource current = pool;
+		if (current==null){
+			return Collections.<String, Long>emptyMap();
+		}
+		Map<String, Long> stats = new LinkedHashMap<String, Long>();
+		stats.put("active", Long.valueOf(current.getNumActive()));
+		stats.put("idle", Long.valueOf(current.getNumIdle()));
+		stats.put("maxActive", Long.valueOf(current.getMaxActive()));
+		stats.put("maxIdle", Long.valueOf(current.getMaxIdle()));
+		stats.put("minIdle", Long.valueOf(current.getMinIdle()));
+		stats.put("maxWait", Long.valueOf(current.getMaxWait()));
+		return stats;
+	}
+	
+	/**
+	 * Spring destroy-method, stops the queue writer and closes the shared 
+	 * connection and the pool
+	 */
+	public void destroy(){
+		try{
+			if (conn!=null) conn.close();
+		} catch (SQLException e){
+		}// nothing we can do
+		conn = null;
+		ThreadPoolExecutor executor;
+		synchronized (this){
+			executor = enqueueExecutor;
+			enqueueExecutor = null;
+		}
+		if (executor!=null){
+			// let the queue writer finish, it needs the pool
+			executor.shutdown();
+			try{
+				executor.awaitTermination(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this){
+			if (leases!=null){
+				leases.close();
+				leases = null;
+			}
+		}
+		if (pool!=null){
+			logger.info("Closing the connection pool " + getPoolStatistics());
+			try{
+				pool.close();
+			} catch (SQLException e){
+				logger.warn("destroy: " + e.getMessage());
+			}
+			pool = null;
+		}
+	}
+	
+	private int getIntProperty(String key, int defaultValue){
+		try{
+			return Integer.parseInt(globalProperties.getProperty(key, String.valueOf(defaultValue)).trim());
+		} catch (NumberFormatException nfe){
+			logger.warn("Invalid value for " + key + ", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+	
 	
 	private void dropTable(Statement stmt, String table) throws SQLException{
 		String query = "DROP TABLE IF EXISTS `"+table+"`;";	
 		if (logger.isDebugEnabled()) logger.debug("Dropping table. Query: "+query);
 		int numberOfLines = stmt.executeUpdate(query);
+		uniqueKeys.remove(table.replaceAll("-", "_").trim());
+		indexedTables.remove(table.replaceAll("-", "_").trim());
+		schemaRegistry.invalidate(table.replaceAll("-", "_").trim());
+		TableSchema.remove(table.replaceAll("-", "_").trim());
 	}
 	
 	
@@ -332,15 +516,45 @@ public class DatabaseHelperBean {
 		String query = "CREATE TABLE IF NOT EXISTS `" + table + "` (id INT AUTO_INCREMENT PRIMARY KEY, sys_node_uuid VARCHAR(100), isLatest BOOLEAN DEFAULT TRUE, validFrom DATETIME, validUntil DATETIME);";
 		if (logger.isDebugEnabled()) logger.debug("Creating table. Query: "+query);
 		int numberOfLines = stmt.executeUpdate(query);
+		if (isAutoIndex()){
+			ensureIndexes(stmt.getConnection(), table);
+		}
 	}
 	
 	
 	public void extendTable(Statement stmt, String table, String column, String type) throws SQLException{
+		Map<String, String> columns = new HashMap<String, String>();
+		columns.put(column, type);
+		extendTable(stmt, table, columns);
+	}
+	
+	/**
+	 * Add all columns in a single ALTER TABLE, online if the server can, 
+	 * see ReportingDialect.buildAddColumns
+	 * @param columns the column names and their types
+	 */
+	public void extendTable(Statement stmt, String table, Map<String, String> columns) throws SQLException{
+		if (columns.isEmpty()) return;
 		table = table.replaceAll("-", "_").trim();
-		//ALTER TABLE $table ADD $column $type
-		String query = "ALTER TABLE `" + table + "` ADD " + column + " " + type;
-		if (logger.isDebugEnabled()) logger.debug("Executing Query: "+query);
-		int numberOfLines = stmt.executeUpdate(query);
+		List<String> alternatives = getDialect().buildAddColumns(table, columns);
+		long start = System.currentTimeMillis();
+		for (int i=0;i<alternatives.size();i++){
+			String query = alternatives.get(i);
+			if (logger.isDebugEnabled()) logger.debug("Executing Query: "+query);
+			try{
+				stmt.executeUpdate(query);
+				logger.info("extendTable: added " + columns.size() + " column(s) to " + table + " in " 
+						+ (System.currentTimeMillis()-start) + "ms: " + query);
+				break;
+			} catch (SQLException e){
+				if (i==alternatives.size()-1) throw e;
+				// the server refuses this algorithm for this change, try the next one
+				if (logger.isDebugEnabled()) logger.debug("extendTable: " + e.getMessage());
+			}
+		}
+		schemaRegistry.addColumns(table, columns);
+		// the columns may complete an index, see ensureIndexes
+		indexedTables.remove(table);
 	}
 
 	
@@ -409,20 +623,26 @@ public class DatabaseHelperBean {
 		return stmt.executeUpdate(query);
 	}
 	
-	public int insertIntoTable(Statement stmt, ReportLine rl) throws SQLException{
+	/**
+	 * Set isLatest, validFrom and validUntil of a line that is about to be inserted.
+	 * Archived nodes are valid from cm_created until sys_archivedDate, all 
+	 * others are valid from cm_modified onwards.
+	 * @param rl
+	 */
+	public void setValidityColumns(ReportLine rl){
 		//logger.debug("### sys_store_protocol="+rl.getValue("sys_store_protocol"));
-		if ("archive".equals(rl.getValue("sys_store_protocol"))){
+		if ("archive".equals(rl.getObject("sys_store_protocol"))){
 			// validFrom = cm_created, validUntil=sys_archivedDate, isLatest=false
-			String created  = rl.getValue("cm_created");
-			String archived = rl.getValue("sys_archivedDate");
-			
-			rl.setLine("isLatest", "BOOLEAN", "false", new Properties());
-			rl.setLine("validFrom", "DATETIME", created, new Properties());
-			rl.setLine("validUntil", "DATETIME", archived, new Properties());
+			rl.setValue("isLatest", TYPE_BOOLEAN, Boolean.FALSE);
+			rl.setValue("validFrom", TYPE_DATETIME, rl.getObject("cm_created"));
+			rl.setValue("validUntil", TYPE_DATETIME, rl.getObject("sys_archivedDate"));
 		} else {
-			String modified = rl.getValue("cm_modified");
-			rl.setLine("validFrom", "DATETIME", modified, new Properties());
+			rl.setValue("validFrom", TYPE_DATETIME, rl.getObject("cm_modified"));
 		}
+	}
+	
+	public int insertIntoTable(Statement stmt, ReportLine rl) throws SQLException{
+		setValidityColumns(rl);
 		
 		String query = "INSERT INTO `"+ rl.getTable() + "` (" +rl.getInsertListOfKeys()
 				+ ") VALUES (" + rl.getInsertListOfValues() + ") ";
@@ -461,6 +681,91 @@ public class DatabaseHelperBean {
 		}
     }
     
+    /**
+     * Create an empty shadow table to build a full refresh of a table in. 
+     * Any leftover shadow table of an earlier (failed) run is dropped.
+     * 
+     * @param table the table that will be replaced
+     * @return the name of the shadow table
+     */
+    public String createShadowTable(String table){
+    	table = table.replaceAll("-", "_").trim();
+    	String shadow = table + Constants.SHADOW_TABLE_POSTFIX;
+    	dropTables(shadow);
+    	createEmptyTables(shadow);
+    	return shadow;
+    }
+    
+    /**
+     * Replace the table by its shadow table in a single atomic rename. The 
+     * current table is kept as &lt;table&gt;__old until the next swap. The
+     * rename runs on a connection of its own.
+     * 
+     * @param table the table to replace
+     * @throws SQLException if the swap failed, the current table stays
+     */
+    public void swapShadowTable(String table) throws SQLException{
+    	table = table.replaceAll("-", "_").trim();
+    	String shadow = table + Constants.SHADOW_TABLE_POSTFIX;
+    	String old = table + Constants.OLD_TABLE_POSTFIX;
+    	
+    	Connection conn = borrowConnection();
+    	Statement stmt = null;
+    	try{
+    		stmt = conn.createStatement();
+    		dropTable(stmt, old);
+    		boolean tableExists = tableExists(conn, table);
+    		List<String> swap = getDialect().buildSwap(table, shadow, old, tableExists);
+    		conn.setAutoCommit(false);
+    		for (String sql : swap){
+    			logger.debug("swapShadowTable: " + sql);
+    			stmt.executeUpdate(sql);
+    		}
+    		if (tableExists){
+    			renameIndexes(conn, stmt, old);
+    		}
+    		renameIndexes(conn, stmt, table);
+    		conn.commit();
+    	} catch (SQLException e){
+    		logger.error("swapShadowTable: could not swap in " + shadow + ": " + e.getMessage());
+    		try{
+    			conn.rollback();
+    		} catch (SQLException se2){
+    		}// nothing we can do
+    		throw e;
+    	} finally {
+    		uniqueKeys.remove(table);
+    		uniqueKeys.remove(shadow);
+    		uniqueKeys.remove(old);
+    		indexedTables.remove(table);
+    		indexedTables.remove(shadow);
+    		schemaRegistry.invalidate(table);
+    		schemaRegistry.invalidate(shadow);
+    		schemaRegistry.invalidate(old);
+    		TableSchema.remove(table);
+    		TableSchema.remove(shadow);
+    		try{
+    			if (stmt!=null)
+    				stmt.close();
+    		} catch (SQLException se2){
+    		}// nothing we can do
+    		try{
+    			conn.setAutoCommit(true);
+    			conn.close();
+    		} catch (SQLException se2){
+    		}// nothing we can do
+    	}
+    }
+    
+    private boolean tableExists(Connection conn, String table) throws SQLException{
+    	ResultSet rs = conn.getMetaData().getTables(conn.getCatalog(), null, table, null);
+    	try{
+    		return rs.next();
+    	} finally {
+    		rs.close();
+    	}
+    }
+    
     /** 
      * createEmptyTables: creates emtpy tables for the known Alfresco types
      *                    only if the table does not exist yet
@@ -494,32 +799,407 @@ public class DatabaseHelperBean {
 
 
 	
-	public Properties getTableDescription(Statement stmt, String table){
-//		logger.debug("Starting getTableDescription");
-		Properties props = new Properties();
+	/**
+	 * The number of rows sent to the database in a single JDBC batch
+	 * @return reporting.harvest.batchSize, default 500
+	 */
+	public int getBatchSize(){
+		int batchSize = Constants.DEFAULT_BATCH_SIZE;
+		try{
+			batchSize = Integer.parseInt(globalProperties.getProperty(
+					Constants.property_batchSize, 
+					String.valueOf(Constants.DEFAULT_BATCH_SIZE)).trim());
+		} catch (NumberFormatException nfe){
+			logger.warn("Invalid value for " + Constants.property_batchSize + ", using " + batchSize);
+		}
+		return batchSize;
+	}
+	
+	/**
+	 * Get a BatchWriter on the given connection, using the configured batch size.
+	 * The caller must close() the writer.
+	 */
+	public BatchWriter createBatchWriter(Connection conn){
+		return new BatchWriter(this, conn, getBatchSize());
+	}
+	
+	/**
+	 * Get the RowWriter for the write mode of a table. BULK gives a BulkWriter
+	 * if the database and driver support it, a BatchWriter otherwise.
+	 * The caller must close() the writer.
+	 * 
+	 * @param writeMode Constants.WRITE_MODE_BULK or WRITE_MODE_BATCH (or null)
+	 */
+	public RowWriter createRowWriter(Connection conn, String writeMode){
+		if (Constants.WRITE_MODE_BULK.equalsIgnoreCase(writeMode)){
+			BulkLoader loader = BulkLoader.forConnection(getDialect(), conn);
+			if (loader!=null){
+				return new BulkWriter(this, conn, loader, getBulkSize());
+			}
+			logger.warn("createRowWriter: bulk load not supported, using batches");
+		}
+		return createBatchWriter(conn);
+	}
+	
+	/**
+	 * Get a RowWriter (see createRowWriter) that commits every commitSize rows
+	 * or commitInterval ms, retrying a failed chunk. The caller must close() it.
+	 * 
+	 * @param commitSize rows per transaction, -1 for the default, 0 for autocommit
+	 * @param commitInterval ms per transaction, -1 for the default, 0 for no limit
+	 */
+	public RowWriter createRowWriter(Connection conn, String writeMode, int commitSize, long commitInterval) throws SQLException{
+		RowWriter writer = createRowWriter(conn, writeMode);
+		if (commitSize<0){
+			commitSize = getIntProperty(Constants.property_commitSize, Constants.DEFAULT_COMMIT_SIZE);
+			if (writer instanceof BulkWriter){
+				// a bulk load is a transaction by itself
+				commitSize = Math.max(commitSize, getBulkSize());
+			}
+		}
+		if (commitInterval<0){
+			commitInterval = getIntProperty(Constants.property_commitInterval, Constants.DEFAULT_COMMIT_INTERVAL);
+		}
+		if (commitSize==0){
+			return writer;
+		}
+		return new TransactionalWriter(writer, conn, this, writeMode, commitSize, commitInterval);
+	}
+	
+	/**
+	 * The number of rows sent to the database in a single bulk load
+	 * @return reporting.harvest.bulkSize, default 50000
+	 */
+	public int getBulkSize(){
+		int bulkSize = Constants.DEFAULT_BULK_SIZE;
+		try{
+			bulkSize = Integer.parseInt(globalProperties.getProperty(
+					Constants.property_bulkSize, 
+					String.valueOf(Constants.DEFAULT_BULK_SIZE)).trim());
+		} catch (NumberFormatException nfe){
+			logger.warn("Invalid value for " + Constants.property_bulkSize + ", using " + bulkSize);
+		}
+		return bulkSize;
+	}
+	
+	/**
+	 * The SQL dialect of the reporting database, from reporting.db.hibernate.dialect
+	 * or, if that is the generic Dialect, from the JDBC connection.
+	 */
+	public ReportingDialect getDialect(){
+		if (dialect==null){
+			dialect = ReportingDialect.resolve(
+					globalProperties.getProperty(Constants.property_dialect), 
+					getConnection());
+			logger.info("Reporting database dialect: " + dialect);
+		}
+		return dialect;
+	}
+	
+	/**
+	 * Make sure the table has a unique key on sys_node_uuid, so upserts can be 
+	 * done in a single statement. Created once if missing, the result is cached 
+	 * per table. Fails (and returns false) if the table already contains 
+	 * duplicate sys_node_uuid values, e.g. for versioned tables.
+	 * Always false for a dialect without upserts.
+	 * Call it before writing to the table starts: the DDL runs on an autocommit 
+	 * connection of its own, never inside the transaction of a writer.
+	 * 
+	 * @return true if the table has the unique key
+	 */
+	public boolean ensureUniqueKey(String table){
+		UpsertDialect upsert = getDialect().getUpsert();
+		if (upsert==null){
+			return false;
+		}
+		Boolean hasKey = uniqueKeys.get(table);
+		if (hasKey==null){
+			hasKey = Boolean.FALSE;
+			Connection conn = null;
+			Statement stmt = null;
+			try{
+				conn = borrowConnection();
+				conn.setAutoCommit(true);
+				if (hasUniqueKey(conn, table, "sys_node_uuid")){
+					hasKey = Boolean.TRUE;
+				} else {
+					String indexName = buildIndexName("ux_", table, new String[]{"sys_node_uuid"});
+					String query = upsert.buildCreateUniqueKey(table, indexName, "sys_node_uuid");
+					logger.info("ensureUniqueKey: " + query);
+					stmt = conn.createStatement();
+					stmt.executeUpdate(query);
+					hasKey = Boolean.TRUE;
+				}
+			} catch (SQLException e){
+				logger.warn("ensureUniqueKey: no unique key on " + table + ".sys_node_uuid, using row probes instead. " + e.getMessage());
+			} finally {
+				try{
+					if (stmt!=null)
+						stmt.close();
+					if (conn!=null)
+						conn.close();
+				}catch(SQLException se2){
+				}// nothing we can do
+			}
+			uniqueKeys.put(table, hasKey);
+		}
+		return hasKey.booleanValue();
+	}
+	
+	/**
+	 * The writers ask this before each upsert; it does not touch the database. 
+	 * A table ensureUniqueKey did not see yet has no key, so its rows are probed.
+	 * 
+	 * @return true if ensureUniqueKey found or created the unique key on the table
+	 */
+	public boolean hasUniqueKey(String table){
+		if (getDialect().getUpsert()==null){
+			return false;
+		}
+		return Boolean.TRUE.equals(uniqueKeys.get(table));
+	}
+	
+	private boolean hasUniqueKey(Connection conn, String table, String column) throws SQLException{
+		for (List<String> indexColumns : getIndexColumns(conn, table, true)){
+			if ((indexColumns.size()==1) && column.equalsIgnoreCase(indexColumns.get(0))){
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * @return the columns of each index of the table, in index order
+	 */
+	private List<List<String>> getIndexColumns(Connection conn, String table, boolean uniqueOnly) throws SQLException{
+		return new ArrayList<List<String>>(getIndexes(conn, table, uniqueOnly).values());
+	}
+	
+	/**
+	 * @return the indexes of the table by name, with their columns in index order
+	 */
+	private Map<String, List<String>> getIndexes(Connection conn, String table, boolean uniqueOnly) throws SQLException{
+		Map<String, List<String>> indexes = new HashMap<String, List<String>>();
+		ResultSet rs = conn.getMetaData().getIndexInfo(conn.getCatalog(), null, table, uniqueOnly, false);
+		try{
+			while (rs.next()){
+				String indexName = rs.getString("INDEX_NAME");
+				String columnName = rs.getString("COLUMN_NAME");
+				if ((indexName==null) || (columnName==null)) continue;
+				int position = rs.getInt("ORDINAL_POSITION");
+				List<String> columns = indexes.get(indexName);
+				if (columns==null){
+					columns = new ArrayList<String>();
+					indexes.put(indexName, columns);
+				}
+				while (columns.size()<position){
+					columns.add(null);
+				}
+				columns.set(position-1, columnName.toLowerCase());
+			}
+		} finally {
+			rs.close();
+		}
+		return indexes;
+	}
+	
+	/**
+	 * Declare an extra index for a table, as &lt;table&gt;.index.&lt;name&gt;=col1,col2
+	 * in the harvest definition. It is created by ensureIndexes as soon as
+	 * all its columns exist.
+	 * 
+	 * @param columns comma separated list of columns
+	 */
+	public void setTableIndex(String table, String name, String columns){
+		table = table.replaceAll("-", "_").trim();
+		Map<String, String[]> indexes = tableIndexes.get(table);
+		if (indexes==null){
+			indexes = new ConcurrentHashMap<String, String[]>();
+			tableIndexes.put(table, indexes);
+		}
+		String[] columnList = columns.split(",");
+		for (int i=0;i<columnList.length;i++){
+			columnList[i] = columnList[i].trim();
+		}
+		String[] known = indexes.put(name, columnList);
+		if ((known==null) || !Arrays.equals(known, columnList)){
+			indexedTables.remove(table);
+		}
+	}
+	
+	/**
+	 * Create the indexes of the table that are missing: the REQUIRED_INDEXES
+	 * and the ones declared with setTableIndex. An index is skipped until all 
+	 * its columns exist, and an existing index that starts with the same 
+	 * columns counts as present. Once all indexes are there, the table is not 
+	 * checked again until it gets a new column.
+	 */
+	public void ensureIndexes(Connection conn, String table){
+		if (indexedTables.containsKey(table)) return;
 		
-		try {
-			stmt = getConnection().createStatement();
-			String sql = "DESC " + table +";";
-		    ResultSet rs = stmt.executeQuery(sql);
-		    while(rs.next()){
-		         //Retrieve by column number
-		         props.setProperty(rs.getString(1),rs.getObject(2).toString());
-		         logger.debug("Found column: "+rs.getString(1) + " - Type: " + rs.getObject(2).toString());
-		    }
-		} catch (SQLException e) {
-			e.printStackTrace();
+		List<String[]> wanted = new ArrayList<String[]>();
+		for (String[] columns : REQUIRED_INDEXES){
+			wanted.add(columns);
+		}
+		Map<String, String[]> extra = tableIndexes.get(table);
+		if (extra!=null){
+			wanted.addAll(extra.values());
+		}
+		
+		Statement stmt = null;
+		try{
+			Set<String> tableColumns = new HashSet<String>();
+			ResultSet rs = conn.getMetaData().getColumns(conn.getCatalog(), null, table, null);
+			try{
+				while (rs.next()){
+					if (!table.equalsIgnoreCase(rs.getString("TABLE_NAME"))) continue;
+					tableColumns.add(rs.getString("COLUMN_NAME").toLowerCase());
+				}
+			} finally {
+				rs.close();
+			}
+			if (!tableColumns.contains("sys_node_uuid")){
+				// not a node table (e.g. lastsuccessfulrun)
+				indexedTables.put(table, Boolean.TRUE);
+				return;
+			}
+			
+			List<List<String>> existing = getIndexColumns(conn, table, false);
+			boolean complete = true;
+			for (String[] columns : wanted){
+				if (!tableColumns.containsAll(toLowerCase(columns))){
+					complete = false;
+					continue;
+				}
+				if (isCovered(existing, columns)) continue;
+				
+				String indexName = buildIndexName("ix_", table, columns);
+				String query = getDialect().buildCreateIndex(table, indexName, columns);
+				long start = System.currentTimeMillis();
+				if (stmt==null) stmt = conn.createStatement();
+				stmt.executeUpdate(query);
+				logger.info("ensureIndexes: " + query + " (" + (System.currentTimeMillis()-start) + "ms)");
+				existing.add(toLowerCase(columns));
+			}
+			if (complete){
+				indexedTables.put(table, Boolean.TRUE);
+			}
+		} catch (SQLException e){
+			logger.warn("ensureIndexes: could not index " + table + ": " + e.getMessage());
+			// don't try again for every batch
+			indexedTables.put(table, Boolean.FALSE);
 		} finally {
-		      //finally block used to close resources
-			  try{
-			     if(stmt!=null)
-			        stmt.close();
-			  }catch(SQLException se2){
-		      }// nothing we can do
+			try{
+				if (stmt!=null)
+					stmt.close();
+			}catch(SQLException se2){
+			}// nothing we can do
+		}
+	}
+	
+	/**
+	 * The name of an index created by the module: the prefix, the table name
+	 * cut to 48 characters and a hash of table and columns. At most 59 
+	 * characters, within the limits of MySQL (64) and PostgreSQL (63), and
+	 * the same every time for the same table and columns.
+	 */
+	static String buildIndexName(String prefix, String table, String[] columns){
+		String name = table.toLowerCase();
+		StringBuilder key = new StringBuilder(name).append('(');
+		for (int i=0;i<columns.length;i++){
+			if (i>0) key.append(',');
+			key.append(columns[i].toLowerCase());
+		}
+		key.append(')');
+		CRC32 crc = new CRC32();
+		try{
+			crc.update(key.toString().getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e){
+			crc.update(key.toString().getBytes());
+		}
+		if (name.length()>48){
+			name = name.substring(0, 48);
+		}
+		return prefix + name + "_" + Long.toString(crc.getValue(), 36);
+	}
+	
+	/**
+	 * Index names are per schema in PostgreSQL, and stick to a table when it
+	 * is renamed. Give the indexes of the module the name that belongs to the
+	 * new table name, so the next shadow table can use its own names again.
+	 */
+	private void renameIndexes(Connection conn, Statement stmt, String table) throws SQLException{
+		for (Map.Entry<String, List<String>> index : getIndexes(conn, table, false).entrySet()){
+			String name = index.getKey();
+			String prefix = name.substring(0, Math.min(3, name.length()));
+			if (!"ix_".equals(prefix) && !"ux_".equals(prefix)) continue;
+			String wanted = buildIndexName(prefix, table, index.getValue().toArray(new String[index.getValue().size()]));
+			String sql = getDialect().buildRenameIndex(name, wanted);
+			if ((sql!=null) && !wanted.equals(name)){
+				logger.debug("renameIndexes: " + sql);
+				stmt.executeUpdate(sql);
+			}
+		}
+	}
+	
+	private static List<String> toLowerCase(String[] columns){
+		List<String> list = new ArrayList<String>(columns.length);
+		for (String column : columns){
+			list.add(column.toLowerCase());
+		}
+		return list;
+	}
+	
+	private static boolean isCovered(List<List<String>> existing, String[] columns){
+		List<String> wanted = toLowerCase(columns);
+		for (List<String> indexColumns : existing){
+			if ((indexColumns.size()>=wanted.size()) && indexColumns.subList(0, wanted.size()).equals(wanted)){
+				return true;
+			}
 		}
+		return false;
+	}
+	
+	/**
+	 * @return reporting.db.autoIndex, default true
+	 */
+	public boolean isAutoIndex(){
+		return !"false".equalsIgnoreCase(globalProperties.getProperty(Constants.property_autoIndex, "true").trim());
+	}
+	
+	/**
+	 * @return a copy of the columns of the table and their types, from the 
+	 *         schema registry
+	 */
+	public Properties getTableDescription(Statement stmt, String table){
+		Properties props = new Properties();
+		props.putAll(getTableColumns(table));
 		return props;
 	}
 	
+	/**
+	 * The columns of the table and their types. Read once, then kept up to 
+	 * date by extendTable, so no database round trip after the first call.
+	 * @return the columns, do not modify
+	 */
+	public Map<String, String> getTableColumns(String table){
+		table = table.replaceAll("-", "_").trim();
+		try{
+			return schemaRegistry.getColumns(getConnection(), table);
+		} catch (SQLException e){
+			logger.error("getTableColumns: could not read " + table + ": " + e.getMessage());
+			return Collections.<String, String>emptyMap();
+		}
+	}
+	
+	/**
+	 * Forget the cached columns of all tables; each table is read again on 
+	 * its next use. To be called at the start of a harvest run.
+	 */
+	public void invalidateTableColumns(){
+		schemaRegistry.invalidateAll();
+	}
+	
 	private String getCurrentTables(){
 //		logger.debug("Starting getCurrentTables");
 		Statement stmt=null;
@@ -564,17 +1244,9 @@ public class DatabaseHelperBean {
 	}
 	
 	public void resetLastTimestampTable(String tableName){
-    	Connection conn = getConnection();
-    	Statement stmt;
-    	final String sql = "UPDATE `" + Constants.TABLE_LASTRUN + 
-    			"` SET "+ Constants.COLUMN_STATUS + " = '" + Constants.STATUS_DONE + "'";
-    	logger.debug("resetLastTimestampTable: Query=" + sql);
-    	
+    	logger.debug("resetLastTimestampTable: all tables Done, all leases dropped");
 		try {
-			conn.setAutoCommit(true);
-			stmt = conn.createStatement();
-			stmt.executeUpdate(sql);
-			
+			getLeaseManager().releaseAll();
 		} catch (SQLException e) {
 			//e.printStackTrace(); // will be thrown initially because table does not exist...
 		}	
@@ -639,36 +1311,6 @@ public class DatabaseHelperBean {
     	return returnString;
     }
 
-    private void setLastTimestampStatus(String tablename, String newStatus){
-    	//lastrun-updateLastSuccessfulRunForTable
-    	tablename = tablename.replaceAll("-", "_");
-    	logger.debug("enter setLastTimestampStatus table="+tablename);
-    	if (getNumberOfRowsLastTimestamp(tablename)==0){
-    		// create the tables
-    		createLastTimestampTableRow(tablename);
-    	} 
-    	
-    	String status;
-    	if (newStatus.toLowerCase().equals(Constants.STATUS_DONE)){
-    		status = Constants.STATUS_DONE;
-    	} else {
-    		status = Constants.STATUS_RUNNING;
-    	}
-    	final String sql = "UPDATE `" + Constants.TABLE_LASTRUN + 
-    			"` SET "+ Constants.COLUMN_STATUS + " = '" + status + "'" +
-    			" WHERE (" + Constants.COLUMN_TABLENAME +"='" + tablename+ "')";
-    	logger.debug("getLastTimestampStatus: Query=" + sql);
-    	Connection conn = getConnection();
-    	Statement stmt;
-		try {
-			conn.setAutoCommit(true);
-			stmt = conn.createStatement();
-			stmt.executeUpdate(sql);
-		} catch (SQLException e) {
-			//e.printStackTrace();//
-		}
-    }
-
     private int getNumberOfRowsLastTimestamp(String tablename){
     	//lastrun-selectCountForTablename
     	tablename = tablename.replaceAll("-", "_");
@@ -737,35 +1379,212 @@ public class DatabaseHelperBean {
     	return returnString;
     }
 
+    /**
+     * @return true if a run holds a live lease on this table. Other tables 
+     * can be harvested at the same time; a lease of a run that died expires
+     * after reporting.harvest.leaseTimeout
+     */
     public boolean tableIsRunning(String tableName){
-    	//
     	tableName = tableName.replaceAll("-", "_");
     	logger.debug("enter tableIsRunning table="+tableName);
-    	final String sql = "SELECT count(*) " + 
-    			" FROM `" + Constants.TABLE_LASTRUN + "`" +
-    			" WHERE " +Constants.COLUMN_STATUS +"='"+Constants.STATUS_RUNNING+"'";
-    	logger.debug("tableIsRunning: Query=" + sql);
     	boolean returnBoolean = false;
-    	Connection conn = getConnection();
-    	Statement stmt;
 		try {
-			conn.setAutoCommit(true);
-			stmt = conn.createStatement();
-			java.sql.ResultSet rs = stmt.executeQuery(sql);
-			if ((rs!=null) && (!rs.wasNull())){
-				rs.next();
-				returnBoolean = rs.getBoolean(1);
-			} 
+			returnBoolean = getLeaseManager().isLeased(tableName);
 		} catch (SQLException e) {
-			//e.printStackTrace();//
-			//e.getMessage();
-		} catch (Exception e) {
-			// nothing
-		}	
+			// no lastsuccessfulrun table yet
+		}
 		logger.debug("exit tableIsRunning returning " + returnBoolean);
-		// IT IS A BAD THING TO RUN A HARVESTING JOB IF ANY OTHER HARVESTING JOB IS RUNNING
     	return returnBoolean;
     }
+    
+    /**
+     * Take the lease on a table, in a single atomic update. Release it with
+     * HarvestLease.release(timestamp) when the run is done.
+     * @return the lease, null if another run holds it
+     */
+    public HarvestLease acquireLease(String tableName){
+    	tableName = tableName.replaceAll("-", "_");
+    	if (getNumberOfRowsLastTimestamp(tableName)==0){
+    		// create the tables
+    		createLastTimestampTableRow(tableName);
+    	}
+    	try{
+    		return getLeaseManager().acquire(tableName);
+    	} catch (SQLException e){
+    		logger.error("acquireLease: " + tableName + ": " + e.getMessage());
+    		return null;
+    	}
+    }
+    
+    /**
+     * The highest version label stored per node, so the harvest can skip the
+     * versions it has already. A node without stored versions is not in the 
+     * map; if the lookup fails the map is empty, and all versions are harvested.
+     * @param uuids the sys_node_uuid of live nodes
+     */
+    public Map<String, String> getLatestVersionLabels(String tableName, List<String> uuids){
+    	tableName = tableName.replaceAll("-", "_");
+    	Map<String, String> columns = getTableColumns(tableName);
+    	if (uuids.isEmpty() || !columns.containsKey("sys_node_uuid") || !columns.containsKey("cm_versionLabel")){
+    		return Collections.<String, String>emptyMap();
+    	}
+    	try{
+    		Connection conn = borrowConnection();
+    		try{
+    			conn.setAutoCommit(true);
+    			return new VersionEngine(conn, getDialect()).latestLabels(tableName, uuids);
+    		} finally {
+    			conn.close();
+    		}
+    	} catch (SQLException e){
+    		logger.warn("getLatestVersionLabels: " + tableName + ": " + e.getMessage());
+    		return Collections.<String, String>emptyMap();
+    	}
+    }
+    
+    /**
+     * @return id and commit time of the last repository transaction harvested
+     * into the table, null if it was never harvested in change feed mode
+     */
+    public long[] getLastTxn(String tableName){
+    	tableName = tableName.replaceAll("-", "_");
+    	try{
+    		return getLeaseManager().getLastTxn(tableName);
+    	} catch (SQLException e){
+    		logger.warn("getLastTxn: " + tableName + ": " + e.getMessage());
+    		return null;
+    	}
+    }
+    
+    /**
+     * @return the sys:node-dbid the harvest of the table in the store stopped
+     * at, and when (ms) that run started; null if it finished last time
+     */
+    public long[] getCheckpoint(String tableName, String store){
+    	tableName = tableName.replaceAll("-", "_");
+    	try{
+    		return getLeaseManager().getCheckpoint(tableName, store);
+    	} catch (SQLException e){
+    		logger.warn("getCheckpoint: " + tableName + ": " + e.getMessage());
+    		return null;
+    	}
+    }
+    
+    /**
+     * Close the latest rows of the nodes deleted from a store
+     * @param deleted sys_node_uuid -&gt; deleted at, in ms
+     * @param storeProtocol the protocol of the store, workspace or archive
+     * @return the number of rows closed
+     */
+    public int closeDeletedNodes(String tableName, Map<String, Long> deleted, String storeProtocol) throws SQLException{
+    	tableName = tableName.replaceAll("-", "_");
+    	Map<String, String> columns = getTableColumns(tableName);
+    	if (deleted.isEmpty() || !columns.containsKey("sys_node_uuid") || !columns.containsKey("isLatest")){
+    		return 0;
+    	}
+    	Connection conn = borrowConnection();
+    	try{
+    		conn.setAutoCommit(true);
+    		return new VersionEngine(conn, getDialect()).closeDeleted(tableName, deleted, 
+    				columns.containsKey("sys_store_protocol") ? storeProtocol : null);
+    	} finally {
+    		conn.close();
+    	}
+    }
+    
+    /**
+     * @return true if the behaviours queue changed nodes for the tables with
+     * harvestMode=EVENTS
+     */
+    public boolean isQueueEnabled(){
+    	return "true".equalsIgnoreCase(globalProperties.getProperty(Constants.property_harvest_queueEnabled, "false").trim());
+    }
+    
+    /**
+     * Queue changed nodes for harvesting, each node once. Called after the
+     * repository transaction committed. The nodes are written by a background
+     * thread; if reporting.harvest.queue.pending batches are waiting for it
+     * already, the caller waits at most reporting.harvest.queue.timeout ms.
+     * Nodes that could not be queued are logged, they are picked up by the 
+     * next harvest by query.
+     */
+    public void enqueueNodes(Collection<String> nodeRefs){
+    	if (nodeRefs.isEmpty()) return;
+    	final List<String> nodes = new ArrayList<String>(nodeRefs);
+    	try{
+    		getEnqueueExecutor().execute(new Runnable(){
+    			public void run(){
+    				try{
+    					getHarvestQueue().add(nodes);
+    				} catch (SQLException e){
+    					logger.error("enqueueNodes: could not queue " + nodes.size() + " nodes: " + e.getMessage());
+    				}
+    			}
+    		});
+    	} catch (RejectedExecutionException e){
+    		logger.warn("enqueueNodes: could not queue " + nodes.size() + " nodes: " + e.getMessage());
+    	}
+    }
+    
+    private synchronized ThreadPoolExecutor getEnqueueExecutor(){
+    	if (enqueueExecutor==null){
+    		final long timeout = getIntProperty(Constants.property_harvest_queueTimeout, 200);
+    		enqueueExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, 
+    				new ArrayBlockingQueue<Runnable>(Math.max(1, getIntProperty(Constants.property_harvest_queuePending, 100))),
+    				new ThreadFactory(){
+    					public Thread newThread(Runnable r){
+    						Thread thread = new Thread(r, "reporting-enqueue");
+    						thread.setDaemon(true);
+    						return thread;
+    					}
+    				},
+    				new RejectedExecutionHandler(){
+    					public void rejectedExecution(Runnable r, ThreadPoolExecutor executor){
+    						if (executor.isShutdown()){
+    							throw new RejectedExecutionException("shut down");
+    						}
+    						try{
+    							if (!executor.getQueue().offer(r, timeout, TimeUnit.MILLISECONDS)){
+    								throw new RejectedExecutionException("queue writer busy for " + timeout + "ms");
+    							}
+    						} catch (InterruptedException e){
+    							Thread.currentThread().interrupt();
+    							throw new RejectedExecutionException("interrupted");
+    						}
+    					}
+    				});
+    	}
+    	return enqueueExecutor;
+    }
+    
+    /**
+     * @return the oldest queued nodes, noderef -&gt; queued at, oldest first
+     */
+    public Map<String, Long> peekQueue(int max) throws SQLException{
+    	return getHarvestQueue().peek(max);
+    }
+    
+    /**
+     * Remove harvested nodes from the queue, unless they were queued again
+     * @param queued as returned by peekQueue
+     */
+    public void dequeueNodes(Map<String, Long> queued) throws SQLException{
+    	getHarvestQueue().remove(queued);
+    }
+    
+    private synchronized HarvestQueue getHarvestQueue(){
+    	if (harvestQueue==null){
+    		harvestQueue = new HarvestQueue(this);
+    	}
+    	return harvestQueue;
+    }
+    
+    private synchronized LeaseManager getLeaseManager(){
+    	if (leases==null){
+    		leases = new LeaseManager(this, getIntProperty(Constants.property_harvest_leaseTimeout, Constants.DEFAULT_LEASE_TIMEOUT));
+    	}
+    	return leases;
+    }
 
     public void setLastTimestampAndStatusDone(String tableName, String timestamp){
     	//lastrun-updateLastSuccessfulRunForTable
@@ -776,33 +1595,28 @@ public class DatabaseHelperBean {
     		// create the tables
     		createLastTimestampTableRow(tableName);
     	}
-    	final String sql = "UPDATE `" + Constants.TABLE_LASTRUN + "` SET " + 
-    			Constants.COLUMN_LASTRUN + " = '" + timestamp + "', " +
-    			Constants.COLUMN_STATUS + " = '" + Constants.STATUS_DONE + "'" +
-    			" WHERE " + Constants.COLUMN_TABLENAME + "='" + tableName +"'";
-    	logger.debug("getLastTimestampStatus: Query=" + sql);
-    	Connection conn = getConnection();
-    	Statement stmt;
 		try { 
-			conn.setAutoCommit(true);
-			stmt = conn.createStatement();
-			stmt.executeUpdate(sql);
+			// without a lease, unless another run holds one
+			getLeaseManager().markDone(tableName, timestamp);
 		} catch (SQLException e) {
 			e.printStackTrace();//
-		} catch (Exception e) {
-			// nothing
 		}
     }
         
-    public void setLastTimestampStatusRunning(String tableName) {
+    /**
+     * Take the lease on the table for a run of a script, which sets it Running.
+     * The run keeps the lease, and ends with HarvestLease.release(timestamp).
+     * @return the lease, null if another run holds it
+     */
+    public HarvestLease setLastTimestampStatusRunning(String tableName) {
     	tableName = tableName.replaceAll("-", "_");
     	logger.debug("enter setLastTimestamp: for table="+tableName);
-    	if (getNumberOfRowsLastTimestamp(tableName)==0){
-    		// create the tables
-    		createLastTimestampTableRow(tableName);
-    	} 
-    	setLastTimestampStatus(tableName, Constants.STATUS_RUNNING);
+    	HarvestLease lease = acquireLease(tableName);
+    	if (lease==null){
+    		logger.warn("setLastTimestampStatusRunning: " + tableName + " is leased by another run");
+    	}
     	logger.debug("exit setLastTimestamp");
+    	return lease;
     }
     
     
@@ -0,0 +1,159 @@
+/**
+ * Copyright (C) 2011 - 2013 Alfresco Business Reporting project
+ *
+ * This file is part of the Alfresco Business Reporting project.
+ *
+ * Licensed under the GNU LGPL, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.gnu.org/licenses/lgpl.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.alfresco.reporting.db;
+
+import java.sql.SQLException;
+import java.util.concurrent.ScheduledFuture;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The right of one run to harvest one table, see DatabaseHelperBean.acquireLease.
+ * The heartbeat keeps it alive until release().
+ */
+public class HarvestLease {
+
+	private static Log logger = LogFactory.getLog(HarvestLease.class);
+
+	private final LeaseManager manager;
+	private final String table;
+	private final String owner;
+	private final long acquired;
+	private volatile boolean held = true;
+	private ScheduledFuture<?> heartbeat;
+	private long[] lastTxn;
+
+	HarvestLease(LeaseManager manager, String table, String owner, long acquired){
+		this.manager = manager;
+		this.table = table;
+		this.owner = owner;
+		this.acquired = acquired;
+	}
+
+	public String getTable(){
+		return table;
+	}
+
+	/**
+	 * @return node name and a unique id of this lease
+	 */
+	public String getOwner(){
+		return owner;
+	}
+
+	public long getAcquired(){
+		return acquired;
+	}
+
+	/**
+	 * @return false once the lease expired and another run may have taken it
+	 */
+	public boolean isHeld(){
+		return held;
+	}
+
+	/**
+	 * The change feed watermark to store with the release
+	 * @param txnId the id of the last transaction harvested, -1 if not known
+	 * @param commitTime its commit time in ms
+	 */
+	public void setLastTxn(long txnId, long commitTime){
+		this.lastTxn = new long[]{txnId, commitTime};
+	}
+
+	/**
+	 * @return id and commit time of the last transaction harvested, null to keep the stored one
+	 */
+	long[] getLastTxn(){
+		return lastTxn;
+	}
+
+	/**
+	 * Store how far the harvest got, to resume from there if this run fails.
+	 * A failure to store it is logged only, the harvest goes on.
+	 * @param store the store harvested, the stores before it are done
+	 * @param dbid the sys:node-dbid to resume from
+	 * @param started when the run started (ms), a resumed run sets it as last run
+	 */
+	public void checkpoint(String store, long dbid, long started){
+		if (!held) return;
+		try{
+			if (!manager.checkpoint(this, store, dbid, started)){
+				logger.warn("checkpoint: the lease on " + table + " was taken over by another run");
+			} else if (logger.isDebugEnabled()){
+				logger.debug("checkpoint: " + table + " in " + store + " at dbid " + dbid);
+			}
+		} catch (SQLException e){
+			logger.warn("checkpoint: " + table + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Stop the heartbeat, set the table Done
+	 * @param lastRun the timestamp of this successful run, null to keep the previous one
+	 */
+	public void release(String lastRun){
+		synchronized (this){
+			if (heartbeat!=null){
+				heartbeat.cancel(false);
+				heartbeat = null;
+			}
+		}
+		if (!held){
+			logger.warn("release: the lease on " + table + " was lost, not setting it Done");
+			return;
+		}
+		held = false;
+		try{
+			if (!manager.release(this, lastRun)){
+				logger.warn("release: the lease on " + table + " was taken over by another run");
+			}
+		} catch (SQLException e){
+			logger.error("release: " + table + ": " + e.getMessage());
+		}
+	}
+
+	synchronized void setHeartbeat(ScheduledFuture<?> heartbeat){
+		this.heartbeat = heartbeat;
+	}
+
+	Runnable heartbeatTask(){
+		return new Runnable(){
+			public void run(){
+				if (!held) return;
+				try{
+					if (!manager.heartbeat(HarvestLease.this)){
+						held = false;
+						logger.error("heartbeat: lost the lease on " + table + " (" + owner + ")");
+					}
+				} catch (SQLException e){
+					// try again next time, the lease expires if this keeps failing
+					logger.warn("heartbeat: " + table + ": " + e.getMessage());
+				} catch (RuntimeException e){
+					logger.warn("heartbeat: " + table + ": " + e.getMessage());
+				}
+			}
+		};
+	}
+
+	public String toString(){
+		return "HarvestLease[" + table + ", " + owner + "]";
+	}
+}
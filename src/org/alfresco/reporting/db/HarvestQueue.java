@@ -0,0 +1,200 @@
+/**
+ * Copyright (C) 2011 - 2013 Alfresco Business Reporting project
+ *
+ * This file is part of the Alfresco Business Reporting project.
+ *
+ * Licensed under the GNU LGPL, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.gnu.org/licenses/lgpl.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.alfresco.reporting.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.alfresco.reporting.Constants;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The nodes changed since they were last harvested, in the harvestqueue 
+ * table of the reporting database: one row per node (its key), with the 
+ * time it was queued last. Queueing a node that is queued already only 
+ * moves its time, so the queue holds each node once.
+ * 
+ * A node is removed with the time it was read with; if it was queued again
+ * in the meantime it stays, and is harvested again.
+ */
+class HarvestQueue {
+
+	private static Log logger = LogFactory.getLog(HarvestQueue.class);
+
+	private static final String KEY_COLUMN = "noderef";
+	private static final String[] COLUMNS = {KEY_COLUMN, "queued"};
+	private static final int BATCH_SIZE = 500;
+
+	private final DatabaseHelperBean dbhb;
+	private volatile boolean tableChecked = false;
+
+	HarvestQueue(DatabaseHelperBean dbhb){
+		this.dbhb = dbhb;
+	}
+
+	/**
+	 * Queue the nodes, or move them to the end of the queue
+	 */
+	void add(Collection<String> nodeRefs) throws SQLException{
+		if (nodeRefs.isEmpty()) return;
+		ensureTable();
+		ReportingDialect dialect = dbhb.getDialect();
+		UpsertDialect upsert = dialect.getUpsert();
+		Long now = Long.valueOf(System.currentTimeMillis());
+		Connection conn = dbhb.borrowConnection();
+		try{
+			conn.setAutoCommit(true);
+			if (upsert!=null){
+				PreparedStatement ps = conn.prepareStatement(upsert.buildUpsert(Constants.TABLE_HARVEST_QUEUE, 
+						COLUMNS, KEY_COLUMN, Collections.<String>emptySet()));
+				try{
+					int batched = 0;
+					for (String nodeRef : nodeRefs){
+						ps.setString(1, nodeRef);
+						ps.setLong(2, now.longValue());
+						ps.addBatch();
+						if (++batched==BATCH_SIZE){
+							ps.executeBatch();
+							batched = 0;
+						}
+					}
+					if (batched>0) ps.executeBatch();
+				} finally {
+					ps.close();
+				}
+			} else {
+				// probe by update, insert the new ones
+				PreparedStatement update = conn.prepareStatement("UPDATE " + table() + " SET queued=? WHERE " + KEY_COLUMN + "=?");
+				PreparedStatement insert = conn.prepareStatement(dialect.buildInsert(Constants.TABLE_HARVEST_QUEUE, COLUMNS).toString());
+				try{
+					for (String nodeRef : nodeRefs){
+						update.setLong(1, now.longValue());
+						update.setString(2, nodeRef);
+						if (update.executeUpdate()==0){
+							insert.setString(1, nodeRef);
+							insert.setLong(2, now.longValue());
+							insert.executeUpdate();
+						}
+					}
+				} finally {
+					update.close();
+					insert.close();
+				}
+			}
+		} finally {
+			conn.close();
+		}
+	}
+
+	/**
+	 * @return the oldest nodes in the queue, noderef -&gt; queued at, oldest first
+	 */
+	Map<String, Long> peek(int max) throws SQLException{
+		ensureTable();
+		Map<String, Long> queued = new LinkedHashMap<String, Long>();
+		Connection conn = dbhb.borrowConnection();
+		try{
+			PreparedStatement ps = conn.prepareStatement("SELECT " + KEY_COLUMN + ", queued FROM " + table() + " ORDER BY queued");
+			try{
+				ps.setMaxRows(max);
+				ResultSet rs = ps.executeQuery();
+				try{
+					while (rs.next()){
+						queued.put(rs.getString(1), Long.valueOf(rs.getLong(2)));
+					}
+				} finally {
+					rs.close();
+				}
+			} finally {
+				ps.close();
+			}
+		} finally {
+			conn.close();
+		}
+		return queued;
+	}
+
+	/**
+	 * Remove the nodes, unless they were queued again after they were read
+	 * @param queued noderef -&gt; queued at, as returned by peek
+	 */
+	void remove(Map<String, Long> queued) throws SQLException{
+		if (queued.isEmpty()) return;
+		Connection conn = dbhb.borrowConnection();
+		try{
+			conn.setAutoCommit(true);
+			PreparedStatement ps = conn.prepareStatement("DELETE FROM " + table() + " WHERE " + KEY_COLUMN + "=? AND queued=?");
+			try{
+				int batched = 0;
+				for (Map.Entry<String, Long> entry : queued.entrySet()){
+					ps.setString(1, entry.getKey());
+					ps.setLong(2, entry.getValue().longValue());
+					ps.addBatch();
+					if (++batched==BATCH_SIZE){
+						ps.executeBatch();
+						batched = 0;
+					}
+				}
+				if (batched>0) ps.executeBatch();
+			} finally {
+				ps.close();
+			}
+		} finally {
+			conn.close();
+		}
+	}
+
+	// ------------------------------------------------------------------------
+
+	private void ensureTable() throws SQLException{
+		if (tableChecked) return;
+		if (dbhb.getTableColumns(Constants.TABLE_HARVEST_QUEUE).isEmpty()){
+			Connection conn = dbhb.borrowConnection();
+			try{
+				conn.setAutoCommit(true);
+				Statement stmt = conn.createStatement();
+				try{
+					stmt.executeUpdate("CREATE TABLE " + table() + " (" + KEY_COLUMN 
+							+ " VARCHAR(100) NOT NULL PRIMARY KEY, queued BIGINT NOT NULL)");
+					logger.info("ensureTable: created " + Constants.TABLE_HARVEST_QUEUE);
+				} catch (SQLException e){
+					// created by another node in the meantime
+					logger.debug("ensureTable: " + e.getMessage());
+				} finally {
+					stmt.close();
+				}
+			} finally {
+				conn.close();
+			}
+		}
+		tableChecked = true;
+	}
+
+	private String table(){
+		return dbhb.getDialect().quote(Constants.TABLE_HARVEST_QUEUE);
+	}
+}
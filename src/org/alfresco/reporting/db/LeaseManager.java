@@ -0,0 +1,377 @@
+/**
+ * Copyright (C) 2011 - 2013 Alfresco Business Reporting project
+ *
+ * This file is part of the Alfresco Business Reporting project.
+ *
+ * Licensed under the GNU LGPL, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.gnu.org/licenses/lgpl.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.alfresco.reporting.db;
+
+import java.net.InetAddress;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.reporting.Constants;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Per table harvest leases, kept in the lastsuccessfulrun table next to the
+ * status. A lease is taken by a single conditional UPDATE: it succeeds only
+ * if the table is not Running, or if the heartbeat of the current holder is
+ * older than the lease timeout. The holder renews the heartbeat every
+ * timeout/4 ms, so a run on a node that died expires by itself.
+ *
+ * The heartbeat is the clock of the node holding the lease; the nodes of a
+ * cluster are expected to have their clocks in sync within the timeout.
+ */
+class LeaseManager {
+
+	private static Log logger = LogFactory.getLog(LeaseManager.class);
+
+	private final DatabaseHelperBean dbhb;
+	private final long timeout;
+	private final String node;
+	private volatile boolean columnsChecked = false;
+	private ScheduledExecutorService heartbeats;
+
+	LeaseManager(DatabaseHelperBean dbhb, long timeout){
+		this.dbhb = dbhb;
+		this.timeout = timeout;
+		this.node = getNodeName();
+	}
+
+	/**
+	 * @return the lease, null if another run holds a live lease on the table
+	 */
+	HarvestLease acquire(String table) throws SQLException{
+		ensureColumns();
+		long now = System.currentTimeMillis();
+		String owner = node + ":" + UUID.randomUUID().toString();
+		int updated = update("UPDATE " + lastRunTable() + " SET "
+				+ Constants.COLUMN_STATUS + "=?, "
+				+ Constants.COLUMN_LEASE_OWNER + "=?, "
+				+ Constants.COLUMN_LEASE_ACQUIRED + "=?, "
+				+ Constants.COLUMN_LEASE_HEARTBEAT + "=?"
+				+ " WHERE " + Constants.COLUMN_TABLENAME + "=?"
+				+ " AND (" + Constants.COLUMN_STATUS + " IS NULL OR " + Constants.COLUMN_STATUS + "<>?"
+				+ " OR " + Constants.COLUMN_LEASE_HEARTBEAT + " IS NULL OR " + Constants.COLUMN_LEASE_HEARTBEAT + "<?)",
+				Constants.STATUS_RUNNING, owner, Long.valueOf(now), Long.valueOf(now),
+				table, Constants.STATUS_RUNNING, Long.valueOf(now-timeout));
+		if (updated==0){
+			if (logger.isDebugEnabled()) logger.debug("acquire: " + table + " is leased by another run");
+			return null;
+		}
+		HarvestLease lease = new HarvestLease(this, table, owner, now);
+		lease.setHeartbeat(getHeartbeats().scheduleWithFixedDelay(lease.heartbeatTask(),
+				timeout/4, timeout/4, TimeUnit.MILLISECONDS));
+		logger.info("acquire: " + table + " leased by " + owner);
+		return lease;
+	}
+
+	/**
+	 * @return false if the lease was lost (expired and taken by another run)
+	 */
+	boolean heartbeat(HarvestLease lease) throws SQLException{
+		return update("UPDATE " + lastRunTable() + " SET "
+				+ Constants.COLUMN_LEASE_HEARTBEAT + "=?"
+				+ " WHERE " + Constants.COLUMN_TABLENAME + "=? AND " + Constants.COLUMN_LEASE_OWNER + "=?",
+				Long.valueOf(System.currentTimeMillis()), lease.getTable(), lease.getOwner())==1;
+	}
+
+	/**
+	 * Set the table Done, and its last run if lastRun!=null, and the change 
+	 * feed watermark if the lease has one. A run with a new last run finished
+	 * all stores, and drops the checkpoint. Only if the lease is still held.
+	 */
+	boolean release(HarvestLease lease, String lastRun) throws SQLException{
+		List<Object> parameters = new ArrayList<Object>();
+		parameters.add(Constants.STATUS_DONE);
+		StringBuilder sql = new StringBuilder("UPDATE ").append(lastRunTable()).append(" SET ")
+				.append(Constants.COLUMN_STATUS).append("=?, ")
+				.append(Constants.COLUMN_LEASE_OWNER).append("=NULL, ")
+				.append(Constants.COLUMN_LEASE_ACQUIRED).append("=NULL, ")
+				.append(Constants.COLUMN_LEASE_HEARTBEAT).append("=NULL");
+		if (lastRun!=null){
+			sql.append(", ").append(Constants.COLUMN_LASTRUN).append("=?, ")
+					.append(Constants.COLUMN_CHECKPOINT_STORE).append("=NULL, ")
+					.append(Constants.COLUMN_CHECKPOINT_DBID).append("=NULL, ")
+					.append(Constants.COLUMN_CHECKPOINT_STARTED).append("=NULL");
+			parameters.add(lastRun);
+		}
+		long[] lastTxn = lease.getLastTxn();
+		if (lastTxn!=null){
+			sql.append(", ").append(Constants.COLUMN_LAST_TXN_ID).append("=?, ")
+					.append(Constants.COLUMN_LAST_TXN_COMMIT_TIME).append("=?");
+			parameters.add(Long.valueOf(lastTxn[0]));
+			parameters.add(Long.valueOf(lastTxn[1]));
+		}
+		sql.append(" WHERE ").append(Constants.COLUMN_TABLENAME).append("=? AND ")
+				.append(Constants.COLUMN_LEASE_OWNER).append("=?");
+		parameters.add(lease.getTable());
+		parameters.add(lease.getOwner());
+		return update(sql.toString(), parameters.toArray())==1;
+	}
+
+	/**
+	 * @return id and commit time of the last transaction harvested into the
+	 *         table, null if it was not harvested in change feed mode yet
+	 */
+	long[] getLastTxn(String table) throws SQLException{
+		ensureColumns();
+		Connection conn = dbhb.borrowConnection();
+		try{
+			PreparedStatement ps = conn.prepareStatement("SELECT " + Constants.COLUMN_LAST_TXN_ID + ", "
+					+ Constants.COLUMN_LAST_TXN_COMMIT_TIME + " FROM " + lastRunTable()
+					+ " WHERE " + Constants.COLUMN_TABLENAME + "=?");
+			try{
+				ps.setString(1, table);
+				ResultSet rs = ps.executeQuery();
+				try{
+					if (!rs.next()) return null;
+					long txnId = rs.getLong(1);
+					if (rs.wasNull()) return null;
+					long commitTime = rs.getLong(2);
+					if (rs.wasNull()) return null;
+					return new long[]{txnId, commitTime};
+				} finally {
+					rs.close();
+				}
+			} finally {
+				ps.close();
+			}
+		} finally {
+			conn.close();
+		}
+	}
+
+	/**
+	 * Store how far the harvest of the table got: the stores before this one
+	 * are done, and this one up to the dbid
+	 * @param started when the run started, the last run it sets when done
+	 * @return false if the lease was lost
+	 */
+	boolean checkpoint(HarvestLease lease, String store, long dbid, long started) throws SQLException{
+		return update("UPDATE " + lastRunTable() + " SET "
+				+ Constants.COLUMN_CHECKPOINT_STORE + "=?, "
+				+ Constants.COLUMN_CHECKPOINT_DBID + "=?, "
+				+ Constants.COLUMN_CHECKPOINT_STARTED + "=?"
+				+ " WHERE " + Constants.COLUMN_TABLENAME + "=? AND " + Constants.COLUMN_LEASE_OWNER + "=?",
+				store, Long.valueOf(dbid), Long.valueOf(started), lease.getTable(), lease.getOwner())==1;
+	}
+
+	/**
+	 * @return the sys:node-dbid to resume the harvest of the table in the 
+	 *         store from, and when the run that stopped there started; null
+	 *         if there is no checkpoint for the store
+	 */
+	long[] getCheckpoint(String table, String store) throws SQLException{
+		ensureColumns();
+		Connection conn = dbhb.borrowConnection();
+		try{
+			PreparedStatement ps = conn.prepareStatement("SELECT " + Constants.COLUMN_CHECKPOINT_DBID + ", "
+					+ Constants.COLUMN_CHECKPOINT_STARTED + " FROM " + lastRunTable()
+					+ " WHERE " + Constants.COLUMN_TABLENAME + "=? AND " + Constants.COLUMN_CHECKPOINT_STORE + "=?");
+			try{
+				ps.setString(1, table);
+				ps.setString(2, store);
+				ResultSet rs = ps.executeQuery();
+				try{
+					if (!rs.next()) return null;
+					long dbid = rs.getLong(1);
+					if (rs.wasNull()) return null;
+					long started = rs.getLong(2);
+					if (rs.wasNull()) return null;
+					return new long[]{dbid, started};
+				} finally {
+					rs.close();
+				}
+			} finally {
+				ps.close();
+			}
+		} finally {
+			conn.close();
+		}
+	}
+
+	/**
+	 * @return true if a live lease is held on the table
+	 */
+	boolean isLeased(String table) throws SQLException{
+		ensureColumns();
+		Connection conn = dbhb.borrowConnection();
+		try{
+			PreparedStatement ps = conn.prepareStatement("SELECT count(*) FROM " + lastRunTable()
+					+ " WHERE " + Constants.COLUMN_TABLENAME + "=? AND " + Constants.COLUMN_STATUS + "=?"
+					+ " AND " + Constants.COLUMN_LEASE_HEARTBEAT + ">=?");
+			try{
+				ps.setString(1, table);
+				ps.setString(2, Constants.STATUS_RUNNING);
+				ps.setLong(3, System.currentTimeMillis()-timeout);
+				ResultSet rs = ps.executeQuery();
+				try{
+					return rs.next() && (rs.getInt(1)>0);
+				} finally {
+					rs.close();
+				}
+			} finally {
+				ps.close();
+			}
+		} finally {
+			conn.close();
+		}
+	}
+
+	/**
+	 * Set the table Done, unless another run holds a live lease on it
+	 * @param lastRun the new last run, null to keep it
+	 */
+	void markDone(String table, String lastRun) throws SQLException{
+		ensureColumns();
+		StringBuilder sql = new StringBuilder("UPDATE ").append(lastRunTable()).append(" SET ")
+				.append(Constants.COLUMN_STATUS).append("=?, ")
+				.append(Constants.COLUMN_LEASE_OWNER).append("=NULL, ")
+				.append(Constants.COLUMN_LEASE_ACQUIRED).append("=NULL, ")
+				.append(Constants.COLUMN_LEASE_HEARTBEAT).append("=NULL");
+		if (lastRun!=null){
+			sql.append(", ").append(Constants.COLUMN_LASTRUN).append("=?");
+		}
+		sql.append(" WHERE ").append(Constants.COLUMN_TABLENAME).append("=? AND (")
+				.append(Constants.COLUMN_LEASE_HEARTBEAT).append(" IS NULL OR ")
+				.append(Constants.COLUMN_LEASE_HEARTBEAT).append("<?)");
+		Long stale = Long.valueOf(System.currentTimeMillis()-timeout);
+		if (lastRun==null){
+			update(sql.toString(), Constants.STATUS_DONE, table, stale);
+		} else {
+			update(sql.toString(), Constants.STATUS_DONE, lastRun, table, stale);
+		}
+	}
+
+	/**
+	 * Set all tables Done and drop all leases
+	 */
+	void releaseAll() throws SQLException{
+		ensureColumns();
+		update("UPDATE " + lastRunTable() + " SET " + Constants.COLUMN_STATUS + "=?, "
+				+ Constants.COLUMN_LEASE_OWNER + "=NULL, "
+				+ Constants.COLUMN_LEASE_ACQUIRED + "=NULL, "
+				+ Constants.COLUMN_LEASE_HEARTBEAT + "=NULL", Constants.STATUS_DONE);
+	}
+
+	void close(){
+		synchronized (this){
+			if (heartbeats!=null){
+				heartbeats.shutdownNow();
+				heartbeats = null;
+			}
+		}
+	}
+
+	// ------------------------------------------------------------------------
+
+	/**
+	 * Add the lease, watermark and checkpoint columns to a lastsuccessfulrun 
+	 * table of an older version
+	 */
+	private void ensureColumns() throws SQLException{
+		if (columnsChecked) return;
+		Map<String, String> existing = dbhb.getTableColumns(Constants.TABLE_LASTRUN);
+		if (existing.isEmpty()) return; // no table yet
+		Map<String, String> missing = new LinkedHashMap<String, String>();
+		if (!existing.containsKey(Constants.COLUMN_LEASE_OWNER)) missing.put(Constants.COLUMN_LEASE_OWNER, "VARCHAR(100)");
+		if (!existing.containsKey(Constants.COLUMN_LEASE_ACQUIRED)) missing.put(Constants.COLUMN_LEASE_ACQUIRED, "BIGINT");
+		if (!existing.containsKey(Constants.COLUMN_LEASE_HEARTBEAT)) missing.put(Constants.COLUMN_LEASE_HEARTBEAT, "BIGINT");
+		if (!existing.containsKey(Constants.COLUMN_LAST_TXN_ID)) missing.put(Constants.COLUMN_LAST_TXN_ID, "BIGINT");
+		if (!existing.containsKey(Constants.COLUMN_LAST_TXN_COMMIT_TIME)) missing.put(Constants.COLUMN_LAST_TXN_COMMIT_TIME, "BIGINT");
+		if (!existing.containsKey(Constants.COLUMN_CHECKPOINT_STORE)) missing.put(Constants.COLUMN_CHECKPOINT_STORE, "VARCHAR(100)");
+		if (!existing.containsKey(Constants.COLUMN_CHECKPOINT_DBID)) missing.put(Constants.COLUMN_CHECKPOINT_DBID, "BIGINT");
+		if (!existing.containsKey(Constants.COLUMN_CHECKPOINT_STARTED)) missing.put(Constants.COLUMN_CHECKPOINT_STARTED, "BIGINT");
+		if (!missing.isEmpty()){
+			Connection conn = dbhb.borrowConnection();
+			try{
+				Statement stmt = conn.createStatement();
+				try{
+					dbhb.extendTable(stmt, Constants.TABLE_LASTRUN, missing);
+				} finally {
+					stmt.close();
+				}
+			} finally {
+				conn.close();
+			}
+		}
+		columnsChecked = true;
+	}
+
+	private int update(String sql, Object... parameters) throws SQLException{
+		Connection conn = dbhb.borrowConnection();
+		try{
+			conn.setAutoCommit(true);
+			PreparedStatement ps = conn.prepareStatement(sql);
+			try{
+				for (int i=0;i<parameters.length;i++){
+					if (parameters[i]==null){
+						ps.setNull(i+1, Types.VARCHAR);
+					} else if (parameters[i] instanceof Long){
+						ps.setLong(i+1, ((Long)parameters[i]).longValue());
+					} else {
+						ps.setString(i+1, parameters[i].toString());
+					}
+				}
+				return ps.executeUpdate();
+			} finally {
+				ps.close();
+			}
+		} finally {
+			conn.close();
+		}
+	}
+
+	private String lastRunTable(){
+		return dbhb.getDialect().quote(Constants.TABLE_LASTRUN);
+	}
+
+	private synchronized ScheduledExecutorService getHeartbeats(){
+		if (heartbeats==null){
+			heartbeats = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+				public Thread newThread(Runnable r){
+					Thread thread = new Thread(r, "reporting-lease-heartbeat");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return heartbeats;
+	}
+
+	private static String getNodeName(){
+		try{
+			return InetAddress.getLocalHost().getHostName();
+		} catch (Exception e){
+			return "unknown";
+		}
+	}
+}
@@ -0,0 +1,227 @@
+/**
+ * Copyright (C) 2011 - 2013 Alfresco Business Reporting project
+ *
+ * This file is part of the Alfresco Business Reporting project.
+ *
+ * Licensed under the GNU LGPL, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.gnu.org/licenses/lgpl.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.alfresco.reporting.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The SQL flavours the reporting database can speak. The dialect is taken
+ * from reporting.db.hibernate.dialect (the same value that selects the
+ * mybatis/&lt;dialect&gt; folder). The generic org.hibernate.dialect.Dialect
+ * is resolved using the product name of the JDBC connection.
+ */
+public enum ReportingDialect {
+
+	MYSQL {
+		public String quote(String identifier){
+			return "`" + identifier + "`";
+		}
+
+		public UpsertDialect getUpsert(){
+			return UpsertDialect.MYSQL;
+		}
+
+		public String buildCreateIndex(String table, String indexName, String[] columns){
+			return "ALTER TABLE " + quote(table) + " ADD INDEX " + indexName + " (" + join(columns) + ")";
+		}
+	},
+
+	POSTGRESQL {
+		public String quote(String identifier){
+			return "\"" + identifier + "\"";
+		}
+
+		public UpsertDialect getUpsert(){
+			return UpsertDialect.POSTGRESQL;
+		}
+
+		public String buildCreateIndex(String table, String indexName, String[] columns){
+			return "CREATE INDEX " + indexName + " ON " + quote(table) + " (" + join(columns) + ")";
+		}
+	},
+
+	/**
+	 * Unknown database. No upsert, the caller falls back to probe + update/insert
+	 */
+	GENERIC {
+		public String quote(String identifier){
+			return "`" + identifier + "`";
+		}
+
+		public UpsertDialect getUpsert(){
+			return null;
+		}
+
+		public String buildCreateIndex(String table, String indexName, String[] columns){
+			return "CREATE INDEX " + indexName + " ON " + quote(table) + " (" + join(columns) + ")";
+		}
+	};
+
+
+	public abstract String quote(String identifier);
+
+	/**
+	 * @return the upsert and staging table SQL, null if the database has none
+	 */
+	public abstract UpsertDialect getUpsert();
+
+	public abstract String buildCreateIndex(String table, String indexName, String[] columns);
+
+	private static String join(String[] columns){
+		StringBuilder sb = new StringBuilder();
+		for (String column : columns){
+			if (sb.length()>0) sb.append(", ");
+			sb.append(column);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return the literal for a BOOLEAN column value
+	 */
+	public String booleanLiteral(boolean value){
+		if (this==POSTGRESQL){
+			return Boolean.toString(value);
+		}
+		return value ? "1" : "0";
+	}
+
+	/**
+	 * One ALTER TABLE that adds all columns at once, so the table is rebuilt
+	 * at most once. For MySQL the alternatives are returned in order of 
+	 * preference: ALGORITHM=INSTANT (8.0), INPLACE without locking (5.6), 
+	 * and the plain statement for servers that know neither.
+	 * 
+	 * @param columns the column names and their types
+	 * @return the alternatives, the caller uses the first that succeeds
+	 */
+	public List<String> buildAddColumns(String table, Map<String, String> columns){
+		StringBuilder sql = new StringBuilder("ALTER TABLE ").append(quote(table));
+		boolean first = true;
+		for (Map.Entry<String, String> column : columns.entrySet()){
+			sql.append(first ? " ADD COLUMN " : ", ADD COLUMN ")
+				.append(column.getKey()).append(' ').append(column.getValue());
+			first = false;
+		}
+		List<String> alternatives = new ArrayList<String>();
+		if (this==MYSQL){
+			alternatives.add(sql + ", ALGORITHM=INSTANT");
+			alternatives.add(sql + ", ALGORITHM=INPLACE, LOCK=NONE");
+		}
+		// PostgreSQL adds a nullable column without default in the catalog only
+		alternatives.add(sql.toString());
+		return alternatives;
+	}
+
+	/**
+	 * Index names are unique per schema in PostgreSQL, so an index has to be
+	 * renamed along with its table. MySQL keeps index names per table.
+	 * 
+	 * @return the rename, null if index names are per table
+	 */
+	public String buildRenameIndex(String indexName, String newName){
+		if (this==POSTGRESQL){
+			return "ALTER INDEX " + quote(indexName) + " RENAME TO " + quote(newName);
+		}
+		return null;
+	}
+
+	/**
+	 * The statements that replace table by shadow, keeping the current table
+	 * as old. Executed in a single transaction; MySQL needs just one
+	 * (atomic) RENAME TABLE.
+	 * 
+	 * @param tableExists false if there is no current table to keep
+	 */
+	public List<String> buildSwap(String table, String shadow, String old, boolean tableExists){
+		List<String> sql = new ArrayList<String>();
+		if (this==POSTGRESQL){
+			if (tableExists){
+				sql.add("ALTER TABLE " + quote(table) + " RENAME TO " + quote(old));
+			}
+			sql.add("ALTER TABLE " + quote(shadow) + " RENAME TO " + quote(table));
+		} else {
+			if (tableExists){
+				sql.add("RENAME TABLE " + quote(table) + " TO " + quote(old) + ", " + quote(shadow) + " TO " + quote(table));
+			} else {
+				sql.add("RENAME TABLE " + quote(shadow) + " TO " + quote(table));
+			}
+		}
+		return sql;
+	}
+
+	public StringBuilder buildInsertFromStaging(String table, String stage, String[] columns){
+		StringBuilder list = new StringBuilder();
+		for (int i=0;i<columns.length;i++){
+			if (i>0) list.append(", ");
+			list.append(columns[i]);
+		}
+		return new StringBuilder("INSERT INTO ").append(quote(table)).append(" (").append(list)
+				.append(") SELECT ").append(list).append(" FROM ").append(quote(stage));
+	}
+
+	public StringBuilder buildInsert(String table, String[] columns){
+		StringBuilder sql = new StringBuilder("INSERT INTO ").append(quote(table)).append(" (");
+		StringBuilder values = new StringBuilder();
+		for (int i=0;i<columns.length;i++){
+			if (i>0){
+				sql.append(", ");
+				values.append(", ");
+			}
+			sql.append(columns[i]);
+			values.append('?');
+		}
+		sql.append(") VALUES (").append(values).append(')');
+		return sql;
+	}
+
+	/**
+	 * Determine the dialect
+	 * @param dialectName value of reporting.db.hibernate.dialect, can be null
+	 * @param conn used to resolve the generic dialect, can be null
+	 */
+	public static ReportingDialect resolve(String dialectName, Connection conn){
+		ReportingDialect dialect = fromName(dialectName);
+		if ((dialect==GENERIC) && (conn!=null)){
+			try{
+				dialect = fromName(conn.getMetaData().getDatabaseProductName());
+			} catch (SQLException e){
+				// keep generic
+			}
+		}
+		return dialect;
+	}
+
+	private static ReportingDialect fromName(String name){
+		if (name!=null){
+			String lower = name.toLowerCase();
+			if (lower.contains("mysql") || lower.contains("mariadb")){
+				return MYSQL;
+			}
+			if (lower.contains("postgres")){
+				return POSTGRESQL;
+			}
+		}
+		return GENERIC;
+	}
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2011 - 2013 Alfresco Business Reporting project
+ *
+ * This file is part of the Alfresco Business Reporting project.
+ *
+ * Licensed under the GNU LGPL, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.gnu.org/licenses/lgpl.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.alfresco.reporting.db;
+
+import java.sql.SQLException;
+
+import org.alfresco.reporting.ReportLine;
+
+/**
+ * Writes ReportLines into the reporting database. Implementations buffer
+ * rows; nothing is guaranteed to be in the database before flush() or
+ * close() returns. Use DatabaseHelperBean.createRowWriter() to get one.
+ */
+public interface RowWriter {
+
+	/**
+	 * Insert the line as a new row
+	 */
+	public void insert(ReportLine rl) throws SQLException;
+
+	/**
+	 * Update the row having the same sys_node_uuid
+	 */
+	public void update(ReportLine rl) throws SQLException;
+
+	/**
+	 * Insert the line, or update the row having the same sys_node_uuid
+	 */
+	public void upsert(ReportLine rl) throws SQLException;
+
+	/**
+	 * Store the line as the latest version of its sys_node_uuid (UPDATE_VERSIONED).
+	 * The current latest row is closed (isLatest=0, validUntil=cm_modified), 
+	 * unless the line is already stored.
+	 */
+	public void insertVersion(ReportLine rl) throws SQLException;
+
+	/**
+	 * @return true if a row with this sys_node_uuid is buffered and not yet written
+	 */
+	public boolean isPending(String uuid);
+
+	public void flush() throws SQLException;
+
+	/**
+	 * Forget the buffered rows without writing them, e.g. after a rollback
+	 */
+	public void discard();
+
+	/**
+	 * Flush and release all resources
+	 */
+	public void close() throws SQLException;
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2011 - 2013 Alfresco Business Reporting project
+ *
+ * This file is part of the Alfresco Business Reporting project.
+ *
+ * Licensed under the GNU LGPL, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.gnu.org/licenses/lgpl.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.alfresco.reporting.db;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The columns of the reporting tables, as known in the database. A table is
+ * read from the JDBC metadata the first time it is asked for, after that the
+ * column diffs are done in memory. extendTable() adds its columns in place.
+ *
+ * invalidate() forgets a single table (dropped, swapped). invalidateAll()
+ * starts a new generation: every table is read again on its next use, to
+ * pick up changes made outside the module.
+ */
+public class SchemaRegistry {
+
+	private static Log logger = LogFactory.getLog(SchemaRegistry.class);
+
+	private final AtomicLong generation = new AtomicLong();
+	private final ConcurrentHashMap<String, Entry> tables = new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * The columns of one table, replaced as a whole when a column is added
+	 */
+	private static class Entry{
+		final long generation;
+		final Map<String, String> columns;
+
+		Entry(long generation, Map<String, String> columns){
+			this.generation = generation;
+			this.columns = columns;
+		}
+	}
+
+	/**
+	 * @return the columns of the table and their types. Do not modify.
+	 */
+	public Map<String, String> getColumns(Connection conn, String table) throws SQLException{
+		Entry entry = tables.get(table);
+		if ((entry==null) || (entry.generation!=generation.get())){
+			entry = load(conn, table);
+			if (entry.columns.isEmpty()){
+				// no such table (yet), ask again next time
+				return entry.columns;
+			}
+			tables.put(table, entry);
+		}
+		return entry.columns;
+	}
+
+	public boolean hasColumn(Connection conn, String table, String column) throws SQLException{
+		return getColumns(conn, table).containsKey(column);
+	}
+
+	/**
+	 * Record the columns that were added to the table
+	 * @param added the column names and their types
+	 */
+	public void addColumns(String table, Map<String, String> added){
+		synchronized (tables){
+			Entry entry = tables.get(table);
+			if (entry!=null){
+				Map<String, String> columns = new HashMap<String, String>(entry.columns);
+				columns.putAll(added);
+				tables.put(table, new Entry(entry.generation, Collections.unmodifiableMap(columns)));
+			}
+		}
+	}
+
+	public void invalidate(String table){
+		tables.remove(table);
+	}
+
+	public void invalidateAll(){
+		generation.incrementAndGet();
+	}
+
+	private Entry load(Connection conn, String table) throws SQLException{
+		long current = generation.get();
+		Map<String, String> columns = new HashMap<String, String>();
+		ResultSet rs = conn.getMetaData().getColumns(conn.getCatalog(), null, table, null);
+		try{
+			while (rs.next()){
+				// the table name is a pattern, _ matches any character
+				if (!table.equalsIgnoreCase(rs.getString("TABLE_NAME"))) continue;
+				String type = rs.getString("TYPE_NAME");
+				columns.put(rs.getString("COLUMN_NAME"), (type==null) ? "" : type);
+			}
+		} finally {
+			rs.close();
+		}
+		if (logger.isDebugEnabled())
+			logger.debug("load: " + table + " has " + columns.size() + " columns");
+		return new Entry(current, Collections.unmodifiableMap(columns));
+	}
+}
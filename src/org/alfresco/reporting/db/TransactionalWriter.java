@@ -0,0 +1,347 @@
+/**
+ * Copyright (C) 2011 - 2013 Alfresco Business Reporting project
+ *
+ * This file is part of the Alfresco Business Reporting project.
+ *
+ * Licensed under the GNU LGPL, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.gnu.org/licenses/lgpl.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.alfresco.reporting.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.alfresco.reporting.ReportLine;
+import org.alfresco.reporting.TableSchema;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Groups the rows of a RowWriter into transactions: a commit after every
+ * commitSize rows, or when the chunk is older than commitInterval ms. The
+ * rows of the open chunk are kept, so if the chunk fails it is rolled back
+ * and written again, up to MAX_RETRIES times, with a pause in between. 
+ * The last time the rows are written one by one, and a row that still fails
+ * is logged and skipped, as a single bad row must not stop the table.
+ * Earlier chunks are not affected.
+ *
+ * If the connection failed (SQLState 08xxx), the chunk is written again on a
+ * new connection from the pool, with a new writer. The writer closes that 
+ * connection; the one it was created with belongs to the caller.
+ *
+ * The connection is switched to autocommit=false for the lifetime of the
+ * writer, and back on close().
+ */
+public class TransactionalWriter implements RowWriter {
+
+	private static Log logger = LogFactory.getLog(TransactionalWriter.class);
+
+	private static final int MAX_RETRIES = 3;
+	private static final long RETRY_PAUSE_MILLIS = 500;
+
+	private static final int OPERATION_INSERT = 0;
+	private static final int OPERATION_UPDATE = 1;
+	private static final int OPERATION_UPSERT = 2;
+	private static final int OPERATION_VERSION = 3;
+
+	private final DatabaseHelperBean dbhb;
+	private final String writeMode;
+	private final Connection callerConn;
+	private RowWriter writer;
+	private Connection conn;
+	private final int commitSize;
+	private final long commitInterval;
+	private final boolean autoCommit;
+
+	// the open chunk, to replay after a rollback
+	private final List<Operation> chunk = new ArrayList<Operation>();
+	private long chunkStart = 0;
+	private ReportLine replayLine;
+
+	private static class Operation{
+		final int operation;
+		final String table;
+		final TableSchema schema;
+		final BufferedRow row;
+
+		Operation(int operation, ReportLine rl){
+			this.operation = operation;
+			this.table = rl.getTable();
+			this.schema = rl.getSchema();
+			this.row = new BufferedRow(rl);
+		}
+	}
+
+	/**
+	 * @param writer the writer to group, on conn
+	 * @param dbhb to get a new connection and writer after a connection failure
+	 * @param writeMode the write mode of the writer, see createRowWriter
+	 * @param commitSize rows per transaction
+	 * @param commitInterval ms a transaction may stay open, 0 for no limit
+	 */
+	public TransactionalWriter(RowWriter writer, Connection conn, DatabaseHelperBean dbhb, String writeMode,
+			int commitSize, long commitInterval) throws SQLException{
+		this.writer = writer;
+		this.conn = conn;
+		this.callerConn = conn;
+		this.dbhb = dbhb;
+		this.writeMode = writeMode;
+		this.commitSize = Math.max(1, commitSize);
+		this.commitInterval = commitInterval;
+		this.autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+	}
+
+	public void insert(ReportLine rl) throws SQLException{
+		apply(new Operation(OPERATION_INSERT, rl), rl);
+	}
+
+	public void update(ReportLine rl) throws SQLException{
+		apply(new Operation(OPERATION_UPDATE, rl), rl);
+	}
+
+	public void upsert(ReportLine rl) throws SQLException{
+		apply(new Operation(OPERATION_UPSERT, rl), rl);
+	}
+
+	public void insertVersion(ReportLine rl) throws SQLException{
+		apply(new Operation(OPERATION_VERSION, rl), rl);
+	}
+
+	public boolean isPending(String uuid){
+		return writer.isPending(uuid);
+	}
+
+	/**
+	 * Write and commit the open chunk
+	 */
+	public void flush() throws SQLException{
+		if (chunk.isEmpty()) return;
+		try{
+			writer.flush();
+			conn.commit();
+		} catch (SQLException e){
+			retry(e);
+		}
+		if (logger.isDebugEnabled())
+			logger.debug("flush: committed " + chunk.size() + " rows in " + (System.currentTimeMillis()-chunkStart) + "ms");
+		chunk.clear();
+	}
+
+	public void discard(){
+		writer.discard();
+		chunk.clear();
+		try{
+			conn.rollback();
+		} catch (SQLException e){
+			// nothing we can do
+		}
+	}
+
+	public void close() throws SQLException{
+		try{
+			flush();
+			writer.close();
+		} finally {
+			try{
+				callerConn.setAutoCommit(autoCommit);
+			} catch (SQLException e){
+				// nothing we can do
+			}
+			if (conn!=callerConn){
+				closeConnection(conn);
+			}
+		}
+	}
+
+	// ------------------------------------------------------------------------
+
+	private void apply(Operation operation, ReportLine rl) throws SQLException{
+		if (chunk.isEmpty()){
+			chunkStart = System.currentTimeMillis();
+		}
+		chunk.add(operation);
+		try{
+			execute(operation.operation, rl);
+		} catch (SQLException e){
+			retry(e);
+			chunk.clear();
+			return;
+		}
+		if ((chunk.size()>=commitSize) ||
+				((commitInterval>0) && (System.currentTimeMillis()-chunkStart>=commitInterval))){
+			flush();
+		}
+	}
+
+	private void execute(int operation, ReportLine rl) throws SQLException{
+		switch (operation){
+		case OPERATION_INSERT:
+			writer.insert(rl);
+			break;
+		case OPERATION_UPDATE:
+			writer.update(rl);
+			break;
+		case OPERATION_UPSERT:
+			writer.upsert(rl);
+			break;
+		default:
+			writer.insertVersion(rl);
+		}
+	}
+
+	/**
+	 * Roll back the open chunk and write it again, in a transaction of its own,
+	 * the last time row by row. Throws the last failure if the chunk cannot
+	 * be written.
+	 */
+	private void retry(SQLException cause) throws SQLException{
+		SQLException failure = cause;
+		for (int attempt=1; attempt<=MAX_RETRIES; attempt++){
+			logger.warn("Rolling back a chunk of " + chunk.size() + " rows, attempt " + attempt + ": " + failure.getMessage());
+			rollback();
+			try{
+				pause(attempt, failure);
+				if (isConnectionFailure(failure)){
+					reconnect();
+				}
+				if (attempt<MAX_RETRIES){
+					replay();
+				} else {
+					replayRowByRow();
+				}
+				return;
+			} catch (SQLException e){
+				failure = e;
+			}
+		}
+		rollback();
+		logger.error("Giving up on a chunk of " + chunk.size() + " rows: " + failure.getMessage());
+		chunk.clear();
+		throw failure;
+	}
+
+	/**
+	 * Write the chunk in one transaction
+	 */
+	private void replay() throws SQLException{
+		for (Operation operation : chunk){
+			execute(operation.operation, replayLine(operation));
+		}
+		writer.flush();
+		conn.commit();
+	}
+
+	/**
+	 * Write the rows of the chunk in a transaction each, skipping the rows
+	 * that fail. Throws if the connection fails.
+	 */
+	private void replayRowByRow() throws SQLException{
+		int skipped = 0;
+		for (Operation operation : chunk){
+			try{
+				execute(operation.operation, replayLine(operation));
+				writer.flush();
+				conn.commit();
+			} catch (SQLException e){
+				rollback();
+				if (isConnectionFailure(e)) throw e;
+				logger.error("Skipping a row of " + operation.table + " (" + operation.row.get(operation.schema.ordinalOf("sys_node_uuid")) + "): " + e.getMessage());
+				skipped++;
+			}
+		}
+		if (skipped>0){
+			logger.error("Wrote a chunk of " + chunk.size() + " rows of " + chunk.get(0).table + " row by row, skipped " + skipped);
+		}
+	}
+
+	private ReportLine replayLine(Operation operation){
+		if (replayLine==null){
+			replayLine = new ReportLine(operation.table);
+		}
+		operation.row.copyTo(replayLine, operation.table, operation.schema);
+		return replayLine;
+	}
+
+	private void rollback(){
+		writer.discard();
+		try{
+			conn.rollback();
+		} catch (SQLException e){
+			// nothing we can do, a dead connection is replaced by reconnect()
+		}
+	}
+
+	/**
+	 * Wait a little longer every attempt, for a database that is busy or restarting
+	 */
+	private void pause(int attempt, SQLException failure) throws SQLException{
+		try{
+			Thread.sleep(RETRY_PAUSE_MILLIS*attempt);
+		} catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw failure;
+		}
+	}
+
+	/**
+	 * Continue on a new connection from the pool, with a new writer on it
+	 */
+	private void reconnect() throws SQLException{
+		if (dbhb==null) return;
+		Connection fresh = dbhb.borrowConnection();
+		RowWriter freshWriter;
+		try{
+			fresh.setAutoCommit(false);
+			freshWriter = dbhb.createRowWriter(fresh, writeMode);
+		} catch (SQLException e){
+			closeConnection(fresh);
+			throw e;
+		}
+		writer.discard();
+		try{
+			writer.close();
+		} catch (SQLException e){
+			// the connection is gone already
+		}
+		if (conn!=callerConn){
+			closeConnection(conn);
+		}
+		writer = freshWriter;
+		conn = fresh;
+		logger.warn("Continuing on a new connection");
+	}
+
+	private static void closeConnection(Connection connection){
+		try{
+			connection.setAutoCommit(true);
+		} catch (SQLException e){
+			// nothing we can do
+		}
+		try{
+			connection.close();
+		} catch (SQLException e){
+			// nothing we can do
+		}
+	}
+
+	/**
+	 * @return true if the SQLState is a connection exception (class 08)
+	 */
+	static boolean isConnectionFailure(SQLException e){
+		String state = e.getSQLState();
+		return (state!=null) && state.startsWith("08");
+	}
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright (C) 2011 - 2013 Alfresco Business Reporting project
+ *
+ * This file is part of the Alfresco Business Reporting project.
+ *
+ * Licensed under the GNU LGPL, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.gnu.org/licenses/lgpl.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.alfresco.reporting.db;
+
+import java.util.Set;
+
+/**
+ * The SQL for upserts and session bound staging tables, for the dialects
+ * that have them. ReportingDialect.getUpsert() returns null for a database
+ * without them; the writers then probe and update or insert row by row.
+ */
+public abstract class UpsertDialect {
+
+	public static final UpsertDialect MYSQL = new UpsertDialect(ReportingDialect.MYSQL){
+		protected void appendUpsert(StringBuilder sql, String[] columns, String keyColumn, Set<String> keepOnUpdate){
+			sql.append(" ON DUPLICATE KEY UPDATE ");
+			boolean first = true;
+			for (String column : columns){
+				if (column.equals(keyColumn) || keepOnUpdate.contains(column)) continue;
+				if (!first) sql.append(", ");
+				sql.append(column).append("=VALUES(").append(column).append(')');
+				first = false;
+			}
+			if (first){
+				// nothing to update, but the statement still needs an assignment
+				sql.append(keyColumn).append('=').append(keyColumn);
+			}
+		}
+
+		public String buildCreateUniqueKey(String table, String indexName, String keyColumn){
+			return "ALTER TABLE " + quote(table) + " ADD UNIQUE KEY " + indexName + " (" + keyColumn + ")";
+		}
+
+		public String buildCreateStaging(String table, String stage){
+			return "CREATE TEMPORARY TABLE " + quote(stage) + " LIKE " + quote(table);
+		}
+
+		public String buildDropStaging(String stage){
+			return "DROP TEMPORARY TABLE IF EXISTS " + quote(stage);
+		}
+
+		public String buildDeleteStoredVersions(String table, String stage, boolean withVersionLabel){
+			return "DELETE s FROM " + quote(stage) + " s JOIN " + quote(table) + " t" +
+					" ON t.sys_node_uuid=s.sys_node_uuid AND t.cm_modified=s.cm_modified" + 
+					(withVersionLabel ? " AND t.cm_versionLabel<=>s.cm_versionLabel" : "");
+		}
+
+		public String buildCloseVersions(String table, String stage){
+			return "UPDATE " + quote(table) + " t JOIN (SELECT sys_node_uuid, MIN(cm_modified) AS m FROM " + 
+					quote(stage) + " GROUP BY sys_node_uuid) x ON t.sys_node_uuid=x.sys_node_uuid" +
+					" SET t.isLatest=0, t.validUntil=x.m" +
+					" WHERE t.isLatest=1 AND (t.cm_modified IS NULL OR t.cm_modified<x.m)";
+		}
+	};
+
+	public static final UpsertDialect POSTGRESQL = new UpsertDialect(ReportingDialect.POSTGRESQL){
+		protected void appendUpsert(StringBuilder sql, String[] columns, String keyColumn, Set<String> keepOnUpdate){
+			sql.append(" ON CONFLICT (").append(keyColumn).append(") ");
+			StringBuilder set = new StringBuilder();
+			for (String column : columns){
+				if (column.equals(keyColumn) || keepOnUpdate.contains(column)) continue;
+				if (set.length()>0) set.append(", ");
+				set.append(column).append("=EXCLUDED.").append(column);
+			}
+			if (set.length()==0){
+				sql.append("DO NOTHING");
+			} else {
+				sql.append("DO UPDATE SET ").append(set);
+			}
+		}
+
+		public String buildCreateUniqueKey(String table, String indexName, String keyColumn){
+			return "CREATE UNIQUE INDEX " + indexName + " ON " + quote(table) + " (" + keyColumn + ")";
+		}
+
+		public String buildCreateStaging(String table, String stage){
+			return "CREATE TEMP TABLE " + quote(stage) + " (LIKE " + quote(table) + " INCLUDING DEFAULTS)";
+		}
+
+		public String buildDropStaging(String stage){
+			return "DROP TABLE IF EXISTS " + quote(stage);
+		}
+
+		public String buildDeleteStoredVersions(String table, String stage, boolean withVersionLabel){
+			return "DELETE FROM " + quote(stage) + " s USING " + quote(table) + " t" +
+					" WHERE t.sys_node_uuid=s.sys_node_uuid AND t.cm_modified=s.cm_modified" + 
+					(withVersionLabel ? " AND t.cm_versionLabel IS NOT DISTINCT FROM s.cm_versionLabel" : "");
+		}
+
+		public String buildCloseVersions(String table, String stage){
+			return "UPDATE " + quote(table) + " t SET isLatest=false, validUntil=x.m" +
+					" FROM (SELECT sys_node_uuid, MIN(cm_modified) AS m FROM " + quote(stage) + 
+					" GROUP BY sys_node_uuid) x" +
+					" WHERE t.sys_node_uuid=x.sys_node_uuid AND t.isLatest AND (t.cm_modified IS NULL OR t.cm_modified<x.m)";
+		}
+	};
+
+	private final ReportingDialect dialect;
+
+	private UpsertDialect(ReportingDialect dialect){
+		this.dialect = dialect;
+	}
+
+	protected String quote(String identifier){
+		return dialect.quote(identifier);
+	}
+
+	protected abstract void appendUpsert(StringBuilder sql, String[] columns, String keyColumn, Set<String> keepOnUpdate);
+
+	public abstract String buildCreateUniqueKey(String table, String indexName, String keyColumn);
+
+	/**
+	 * Create an empty (session bound) staging table with the columns of table
+	 */
+	public abstract String buildCreateStaging(String table, String stage);
+
+	public abstract String buildDropStaging(String stage);
+
+	/**
+	 * Remove the staged rows that are stored already (same node, cm_modified
+	 * and version label), like rowEqualsModifiedDate does for a single row
+	 */
+	public abstract String buildDeleteStoredVersions(String table, String stage, boolean withVersionLabel);
+
+	/**
+	 * Close the latest stored row of each staged node: isLatest=0,
+	 * validUntil=the oldest staged cm_modified
+	 */
+	public abstract String buildCloseVersions(String table, String stage);
+
+	/**
+	 * Build an INSERT that updates the existing row if keyColumn already exists.
+	 *
+	 * @param table the table name
+	 * @param columns the columns, in the order they are bound
+	 * @param keyColumn the column having the unique key
+	 * @param keepOnUpdate columns that are only set when the row is inserted
+	 */
+	public String buildUpsert(String table, String[] columns, String keyColumn, Set<String> keepOnUpdate){
+		StringBuilder sql = dialect.buildInsert(table, columns);
+		appendUpsert(sql, columns, keyColumn, keepOnUpdate);
+		return sql.toString();
+	}
+
+	/**
+	 * Same as buildUpsert, but taking the rows from the staging table
+	 */
+	public String buildUpsertFromStaging(String table, String stage, String[] columns, String keyColumn, Set<String> keepOnUpdate){
+		StringBuilder sql = dialect.buildInsertFromStaging(table, stage, columns);
+		appendUpsert(sql, columns, keyColumn, keepOnUpdate);
+		return sql.toString();
+	}
+}
@@ -0,0 +1,414 @@
+/**
+ * Copyright (C) 2011 - 2013 Alfresco Business Reporting project
+ *
+ * This file is part of the Alfresco Business Reporting project.
+ *
+ * Licensed under the GNU LGPL, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.gnu.org/licenses/lgpl.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.alfresco.reporting.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.reporting.ColumnType;
+import org.alfresco.reporting.TableSchema;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Slowly changing dimension (type 2) bookkeeping for UPDATE_VERSIONED tables,
+ * a page of rows at a time instead of a node at a time:
+ * <ol>
+ * <li>one keyed lookup fetches the stored versions of all nodes in the page</li>
+ * <li>rows that are stored already (same cm_modified and cm_versionLabel) are
+ *     dropped, like rowEqualsModifiedDate did</li>
+ * <li>per node, stored and new versions are ordered by cm_modified; each new
+ *     row gets isLatest and validUntil from its successor</li>
+ * <li>one UPDATE closes the stored latest rows that have a successor now</li>
+ * </ol>
+ * The caller inserts the returned rows. latestLabels() lets the harvest skip
+ * the versions that are stored already before it extracts them.
+ */
+class VersionEngine {
+
+	private static Log logger = LogFactory.getLog(VersionEngine.class);
+
+	private static final String KEY_COLUMN = "sys_node_uuid";
+	private static final int MAX_PARAMETERS = 1000;
+	private static final ColumnType TYPE_BOOLEAN = ColumnType.forDefinition("BOOLEAN");
+	private static final ColumnType TYPE_DATETIME = ColumnType.forDefinition("DATETIME");
+
+	private final Connection conn;
+	private final ReportingDialect dialect;
+
+	/**
+	 * One version of a node, either stored or new
+	 */
+	private static class Version{
+		final long id;              // stored rows only
+		final BufferedRow row;      // new rows only
+		final long modified;
+		final String label;
+		final boolean latest;
+		final int sequence;         // arrival order, for equal or unknown dates
+
+		Version(long id, BufferedRow row, long modified, String label, boolean latest, int sequence){
+			this.id = id;
+			this.row = row;
+			this.modified = modified;
+			this.label = label;
+			this.latest = latest;
+			this.sequence = sequence;
+		}
+	}
+
+	private static final Comparator<Version> BY_MODIFIED = new Comparator<Version>(){
+		public int compare(Version v1, Version v2){
+			if (v1.modified!=v2.modified) return (v1.modified<v2.modified) ? -1 : 1;
+			return (v1.sequence<v2.sequence) ? -1 : ((v1.sequence==v2.sequence) ? 0 : 1);
+		}
+	};
+
+	VersionEngine(Connection conn, ReportingDialect dialect){
+		this.conn = conn;
+		this.dialect = dialect;
+	}
+
+	/**
+	 * @param table the versioned table
+	 * @param schema its schema
+	 * @param rows the new rows, in the order they were harvested
+	 * @return the rows to insert, isLatest and validUntil set
+	 */
+	List<BufferedRow> merge(String table, TableSchema schema, List<BufferedRow> rows) throws SQLException{
+		int keyOrdinal = schema.ordinalOf(KEY_COLUMN);
+		int modifiedOrdinal = schema.ordinalOf("cm_modified");
+		int labelOrdinal = schema.ordinalOf("cm_versionLabel");
+		int isLatestOrdinal = schema.define("isLatest", TYPE_BOOLEAN);
+		int validUntilOrdinal = schema.define("validUntil", TYPE_DATETIME);
+
+		boolean hasModified = false;
+		boolean hasLabel = false;
+		for (BufferedRow row : rows){
+			hasModified |= row.has(modifiedOrdinal);
+			hasLabel |= row.has(labelOrdinal);
+		}
+
+		// the new versions per node
+		List<BufferedRow> toInsert = new ArrayList<BufferedRow>(rows.size());
+		Map<String, List<Version>> perNode = new LinkedHashMap<String, List<Version>>();
+		int sequence = 0;
+		for (BufferedRow row : rows){
+			Object key = row.get(keyOrdinal);
+			if (key==null){
+				// nothing to version against
+				toInsert.add(row);
+				continue;
+			}
+			List<Version> versions = perNode.get(key.toString());
+			if (versions==null){
+				versions = new ArrayList<Version>();
+				perNode.put(key.toString(), versions);
+			}
+			Object label = row.get(labelOrdinal);
+			versions.add(new Version(-1, row, toMillis(row.get(modifiedOrdinal)),
+					(label==null) ? null : label.toString(), false, sequence++));
+		}
+		if (perNode.isEmpty()) return toInsert;
+
+		// 1. the stored versions of these nodes, in one keyed lookup
+		Map<String, List<Version>> stored = lookup(table, new ArrayList<String>(perNode.keySet()), hasModified, hasLabel);
+
+		List<Version> toClose = new ArrayList<Version>();
+		List<Long> closeUntil = new ArrayList<Long>();
+		for (Map.Entry<String, List<Version>> entry : perNode.entrySet()){
+			List<Version> existing = stored.get(entry.getKey());
+			List<Version> all = new ArrayList<Version>();
+			for (Version version : entry.getValue()){
+				// 2. skip what is stored already
+				if (hasModified && isStored(version, existing, hasLabel)) continue;
+				all.add(version);
+			}
+			if (all.isEmpty()) continue;
+			if (existing!=null) all.addAll(existing);
+
+			// 3. chain the versions
+			Collections.sort(all, BY_MODIFIED);
+			for (int i=0;i<all.size();i++){
+				Version version = all.get(i);
+				Version next = (i+1<all.size()) ? all.get(i+1) : null;
+				if (version.row!=null){
+					// archived rows come with their own isLatest=false and validUntil
+					if (!Boolean.FALSE.equals(version.row.get(isLatestOrdinal))){
+						if (next!=null){
+							version.row.set(isLatestOrdinal, Boolean.FALSE);
+							version.row.set(validUntilOrdinal, toTimestamp(next));
+						} else {
+							version.row.set(isLatestOrdinal, Boolean.TRUE);
+						}
+					}
+					toInsert.add(version.row);
+				} else if (version.latest && (next!=null)){
+					toClose.add(version);
+					closeUntil.add(Long.valueOf(next.modified));
+				}
+			}
+		}
+
+		// 4. close the stored versions that are not the latest anymore
+		if (!toClose.isEmpty()){
+			close(table, toClose, closeUntil);
+		}
+		if (logger.isDebugEnabled())
+			logger.debug("merge: " + rows.size() + " rows, " + toInsert.size() + " new versions, " + toClose.size() + " closed");
+		return toInsert;
+	}
+
+	/**
+	 * @param table the versioned table
+	 * @param keys the sys_node_uuid of live nodes
+	 * @return per node that has stored versions, the highest stored cm_versionLabel
+	 */
+	Map<String, String> latestLabels(String table, List<String> keys) throws SQLException{
+		Map<String, String> labels = new HashMap<String, String>();
+		for (int from=0; from<keys.size(); from+=MAX_PARAMETERS){
+			int to = Math.min(keys.size(), from+MAX_PARAMETERS);
+			StringBuilder sql = new StringBuilder("SELECT ").append(KEY_COLUMN).append(", cm_versionLabel FROM ")
+					.append(dialect.quote(table)).append(" WHERE ").append(KEY_COLUMN).append(" IN (");
+			appendParameters(sql, to-from);
+			sql.append(") AND cm_versionLabel IS NOT NULL");
+
+			PreparedStatement ps = conn.prepareStatement(sql.toString());
+			try{
+				for (int i=from;i<to;i++){
+					ps.setString(i-from+1, keys.get(i));
+				}
+				ResultSet rs = ps.executeQuery();
+				try{
+					while (rs.next()){
+						String key = rs.getString(1);
+						String label = rs.getString(2);
+						String latest = labels.get(key);
+						if ((latest==null) || (compareLabels(label, latest)>0)){
+							labels.put(key, label);
+						}
+					}
+				} finally {
+					rs.close();
+				}
+			} finally {
+				ps.close();
+			}
+		}
+		return labels;
+	}
+
+	/**
+	 * Close the latest rows of deleted nodes: isLatest=false, validUntil=the
+	 * moment of the deletion
+	 * @param deleted sys_node_uuid -&gt; deleted at, in ms
+	 * @param storeProtocol only the rows of this store, null for all
+	 * @return the number of rows closed
+	 */
+	int closeDeleted(String table, Map<String, Long> deleted, String storeProtocol) throws SQLException{
+		StringBuilder sql = new StringBuilder("UPDATE ").append(dialect.quote(table))
+				.append(" SET isLatest=").append(dialect.booleanLiteral(false))
+				.append(", validUntil=? WHERE ").append(KEY_COLUMN).append("=? AND isLatest=")
+				.append(dialect.booleanLiteral(true));
+		if (storeProtocol!=null) sql.append(" AND sys_store_protocol=?");
+
+		int closed = 0;
+		PreparedStatement ps = conn.prepareStatement(sql.toString());
+		try{
+			int batched = 0;
+			for (Map.Entry<String, Long> entry : deleted.entrySet()){
+				ps.setTimestamp(1, new Timestamp(entry.getValue().longValue()));
+				ps.setString(2, entry.getKey());
+				if (storeProtocol!=null) ps.setString(3, storeProtocol);
+				ps.addBatch();
+				if (++batched==MAX_PARAMETERS){
+					closed += count(ps.executeBatch());
+					batched = 0;
+				}
+			}
+			if (batched>0) closed += count(ps.executeBatch());
+		} finally {
+			ps.close();
+		}
+		return closed;
+	}
+
+	private static int count(int[] updated){
+		int count = 0;
+		for (int u : updated){
+			// SUCCESS_NO_INFO counts as one
+			count += (u==Statement.SUCCESS_NO_INFO) ? 1 : Math.max(0, u);
+		}
+		return count;
+	}
+
+	/**
+	 * Compare version labels part by part, numerically where both parts are
+	 * numbers: 1.10 comes after 1.9
+	 */
+	static int compareLabels(String label1, String label2){
+		String[] parts1 = label1.trim().split("\\.");
+		String[] parts2 = label2.trim().split("\\.");
+		for (int i=0; (i<parts1.length) && (i<parts2.length); i++){
+			int compare;
+			try{
+				compare = Long.valueOf(parts1[i]).compareTo(Long.valueOf(parts2[i]));
+			} catch (NumberFormatException e){
+				compare = parts1[i].compareTo(parts2[i]);
+			}
+			if (compare!=0) return compare;
+		}
+		return (parts1.length<parts2.length) ? -1 : ((parts1.length==parts2.length) ? 0 : 1);
+	}
+
+	private boolean isStored(Version version, List<Version> existing, boolean hasLabel){
+		if (existing==null) return false;
+		for (Version stored : existing){
+			if ((stored.modified==version.modified) && (version.modified!=Long.MAX_VALUE)){
+				if (!hasLabel || (version.label==null) || version.label.equals(stored.label)){
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private Map<String, List<Version>> lookup(String table, List<String> keys, boolean hasModified, boolean hasLabel) throws SQLException{
+		Map<String, List<Version>> stored = new LinkedHashMap<String, List<Version>>();
+		StringBuilder columns = new StringBuilder("id, ").append(KEY_COLUMN).append(", isLatest");
+		if (hasModified) columns.append(", cm_modified");
+		if (hasLabel) columns.append(", cm_versionLabel");
+
+		for (int from=0; from<keys.size(); from+=MAX_PARAMETERS){
+			int to = Math.min(keys.size(), from+MAX_PARAMETERS);
+			StringBuilder sql = new StringBuilder("SELECT ").append(columns).append(" FROM ")
+					.append(dialect.quote(table)).append(" WHERE ").append(KEY_COLUMN).append(" IN (");
+			appendParameters(sql, to-from);
+			sql.append(')');
+
+			PreparedStatement ps = conn.prepareStatement(sql.toString());
+			try{
+				for (int i=from;i<to;i++){
+					ps.setString(i-from+1, keys.get(i));
+				}
+				ResultSet rs = ps.executeQuery();
+				try{
+					while (rs.next()){
+						String key = rs.getString(2);
+						List<Version> versions = stored.get(key);
+						if (versions==null){
+							versions = new ArrayList<Version>();
+							stored.put(key, versions);
+						}
+						long modified = Long.MAX_VALUE;
+						if (hasModified){
+							Timestamp ts = rs.getTimestamp(4);
+							if (ts!=null) modified = ts.getTime();
+						}
+						String label = hasLabel ? rs.getString(hasModified ? 5 : 4) : null;
+						// stored versions sort before new ones with the same date
+						versions.add(new Version(rs.getLong(1), null, modified, label, rs.getBoolean(3), -1));
+					}
+				} finally {
+					rs.close();
+				}
+			} finally {
+				ps.close();
+			}
+		}
+		return stored;
+	}
+
+	/**
+	 * UPDATE t SET isLatest=0, validUntil=CASE id WHEN ? THEN ? ... END WHERE id IN (...)
+	 */
+	private void close(String table, List<Version> versions, List<Long> until) throws SQLException{
+		for (int from=0; from<versions.size(); from+=MAX_PARAMETERS/3){
+			int to = Math.min(versions.size(), from+MAX_PARAMETERS/3);
+			StringBuilder sql = new StringBuilder("UPDATE ").append(dialect.quote(table))
+					.append(" SET isLatest=").append(dialect.booleanLiteral(false))
+					.append(", validUntil=CASE id");
+			for (int i=from;i<to;i++){
+				sql.append(" WHEN ? THEN ?");
+			}
+			sql.append(" END WHERE id IN (");
+			appendParameters(sql, to-from);
+			sql.append(')');
+
+			PreparedStatement ps = conn.prepareStatement(sql.toString());
+			try{
+				int index = 1;
+				for (int i=from;i<to;i++){
+					ps.setLong(index++, versions.get(i).id);
+					long millis = until.get(i).longValue();
+					if (millis==Long.MAX_VALUE){
+						ps.setNull(index++, java.sql.Types.TIMESTAMP);
+					} else {
+						ps.setTimestamp(index++, new Timestamp(millis));
+					}
+				}
+				for (int i=from;i<to;i++){
+					ps.setLong(index++, versions.get(i).id);
+				}
+				ps.executeUpdate();
+			} finally {
+				ps.close();
+			}
+		}
+	}
+
+	private static void appendParameters(StringBuilder sql, int count){
+		for (int i=0;i<count;i++){
+			if (i>0) sql.append(',');
+			sql.append('?');
+		}
+	}
+
+	private static Timestamp toTimestamp(Version version){
+		return (version.modified==Long.MAX_VALUE) ? null : new Timestamp(version.modified);
+	}
+
+	/**
+	 * @return the value of a DATETIME column in milliseconds, Long.MAX_VALUE if unknown
+	 */
+	static long toMillis(Object value){
+		if (value instanceof Timestamp){
+			return ((Timestamp)value).getTime();
+		}
+		if (value instanceof String){
+			try{
+				return Timestamp.valueOf(((String)value).replace('T', ' ').trim()).getTime();
+			} catch (IllegalArgumentException e){
+				// unknown format
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+}
@@ -55,6 +55,7 @@ public class JasperReporting implements Reportable{
 	private NodeRef outputNodeRef;
 	private String format="";
 	private Connection conn;
+	private DatabaseHelperBean dbhb;
 	private ServiceRegistry serviceRegistry;
 	private String dataType = "JDBC";
 	
@@ -168,7 +169,12 @@ public class JasperReporting implements Reportable{
         //parameters.put("format", format.toLowerCase());
         OutputStream reportOS = null;
         File tempFile = null;
+        Connection reportConn = conn;
 		try {
+			if ((reportConn==null) && (dbhb!=null)){
+				// a connection of its own, reports may run in parallel
+				reportConn = dbhb.borrowConnection();
+			}
 	        ContentReader contentReader = serviceRegistry.getContentService().getReader(inputNodeRef, ContentModel.PROP_CONTENT);
 	        String name = serviceRegistry.getNodeService().getProperty(inputNodeRef, QName.createQName("http://www.alfresco.org/model/content/1.0", "name")).toString();
 	        // Don't trust Alfresco's TempFileProvider, the temp file will be deleted before you blink with your eyes... 
@@ -202,11 +208,11 @@ public class JasperReporting implements Reportable{
 	        	logger.debug("It is a .jrxml");
 	        	JasperReport jasperReport = JasperCompileManager.compileReport(tempFile.getAbsolutePath());
 	        	logger.debug("Just compiled the Report " + jasperReport);
-	        	jasperPrint = JasperFillManager.fillReport( jasperReport, parameters, conn );
+	        	jasperPrint = JasperFillManager.fillReport( jasperReport, parameters, reportConn );
 	        } else {
 	        	// or it is a .jasper, then it is compiled already
 	        	logger.debug("It is a .jasper");
-	        	jasperPrint = JasperFillManager.fillReport( tempFile.getAbsolutePath(), parameters, conn );	        	
+	        	jasperPrint = JasperFillManager.fillReport( tempFile.getAbsolutePath(), parameters, reportConn );	        	
 	        }
 			
 	        logger.debug("Just filled the report");
@@ -233,6 +239,13 @@ public class JasperReporting implements Reportable{
 			} catch (Exception e){
 				logger.error("Cannot close connection after generating report...");
 			}
+			try{
+				if ((reportConn!=null) && (reportConn!=conn)){
+					reportConn.close();
+				}
+			} catch (Exception e){
+				logger.error("Cannot return the database connection after generating report...");
+			}
 			if ((tempFile!=null) && tempFile.canWrite()){
 	     		tempFile.delete();
 			} else {
@@ -349,8 +362,7 @@ public class JasperReporting implements Reportable{
 
 	@Override
 	public void setDatabaseHelper(DatabaseHelperBean dbhb) {
-		// TODO Auto-generated method stub
-		
+		this.dbhb = dbhb;
 	}
 	
 }
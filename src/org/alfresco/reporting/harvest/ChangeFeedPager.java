@@ -0,0 +1,160 @@
+/**
+ * Copyright (C) 2011 - 2013 Alfresco Business Reporting project
+ *
+ * This file is part of the Alfresco Business Reporting project.
+ *
+ * Licensed under the GNU LGPL, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.gnu.org/licenses/lgpl.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.alfresco.reporting.harvest;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.domain.node.Transaction;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Stage one of the harvest in change feed mode: walks the repository
+ * transactions committed since the watermark, in commit order, and pages
+ * through the nodes they changed in the store. A page is a run of whole
+ * transactions; its changed nodes that match the query of the table are
+ * harvested. Deleted nodes are collected for the caller, see getDeleted().
+ *
+ * The watermark is the id and commit time of the last transaction read.
+ * Transactions committed after toCommitTime are left for the next run, the
+ * index may not have them yet. The caller gives the pagers of all stores of
+ * a table the same watermark and toCommitTime, so they read the same 
+ * transactions, and end at the same watermark.
+ */
+public class ChangeFeedPager extends HarvestPager {
+
+	private static Log logger = LogFactory.getLog(ChangeFeedPager.class);
+
+	// transactions per read
+	private static final int TXNS_PER_READ = 100;
+
+	private final NodeDAO nodeDAO;
+	private final long toCommitTime;
+	private final LinkedList<Transaction> pending = new LinkedList<Transaction>();
+	private boolean exhausted = false;
+
+	// the watermark, and the transactions at its commit time that are read already
+	private long lastTxnId;
+	private long lastCommitTime;
+	private final List<Long> readAtLastCommitTime = new ArrayList<Long>();
+
+	// uuid -> commit time of the deletion, of nodes that are deleted at the end of the feed
+	private final Map<String, Long> deleted = new LinkedHashMap<String, Long>();
+	private long transactions = 0;
+
+	/**
+	 * @param lastTxnId the id of the last transaction read by the previous run, -1 if none
+	 * @param lastCommitTime its commit time; transactions from this time on are read
+	 * @param toCommitTime the commit time (ms) of the last transactions to read
+	 * @param pageSize changed nodes per page (a transaction is never split)
+	 */
+	public ChangeFeedPager(ServiceRegistry serviceRegistry, NodeDAO nodeDAO, StoreRef storeRef, String query,
+			long lastTxnId, long lastCommitTime, long toCommitTime, int pageSize){
+		super(serviceRegistry, storeRef, query, "", pageSize);
+		this.nodeDAO = nodeDAO;
+		this.lastTxnId = lastTxnId;
+		this.lastCommitTime = lastCommitTime;
+		this.toCommitTime = toCommitTime;
+		if (lastTxnId>=0) readAtLastCommitTime.add(Long.valueOf(lastTxnId));
+	}
+
+	protected List<NodeRef> nextNodeRefs(){
+		// whole transactions, until the page is full
+		Set<NodeRef> changed = new LinkedHashSet<NodeRef>();
+		while (changed.size()<pageSize){
+			Transaction txn = nextTransaction();
+			if (txn==null) break;
+			long commitTime = txn.getCommitTimeMs().longValue();
+			for (NodeRef.Status status : nodeDAO.getTxnChangesForStore(storeRef, txn.getId())){
+				NodeRef nodeRef = status.getNodeRef();
+				if (status.isDeleted()){
+					changed.remove(nodeRef);
+					deleted.put(nodeRef.getId(), Long.valueOf(commitTime));
+				} else {
+					// created again, or restored
+					deleted.remove(nodeRef.getId());
+					changed.add(nodeRef);
+				}
+			}
+			if (commitTime!=lastCommitTime) readAtLastCommitTime.clear();
+			readAtLastCommitTime.add(txn.getId());
+			lastTxnId = txn.getId().longValue();
+			lastCommitTime = commitTime;
+			transactions++;
+		}
+		if (changed.isEmpty()) return null;
+		if (logger.isDebugEnabled())
+			logger.debug("nextPage: " + changed.size() + " changed nodes up to transaction " + lastTxnId);
+		return matchQuery(new ArrayList<NodeRef>(changed));
+	}
+
+	/**
+	 * @return the next transaction to read, null when all are read
+	 */
+	private Transaction nextTransaction(){
+		if (pending.isEmpty() && !exhausted){
+			if (lastCommitTime<toCommitTime){
+				List<Transaction> txns = nodeDAO.getTxnsByCommitTimeAscending(Long.valueOf(lastCommitTime),
+						Long.valueOf(toCommitTime), TXNS_PER_READ, new ArrayList<Long>(readAtLastCommitTime), false);
+				if (txns!=null) pending.addAll(txns);
+			}
+			exhausted = pending.isEmpty();
+		}
+		return pending.poll();
+	}
+
+	/**
+	 * @return uuid -&gt; commit time (ms) of the nodes deleted from the store,
+	 *         and not created again, in the transactions read
+	 */
+	public Map<String, Long> getDeleted(){
+		return deleted;
+	}
+
+	/**
+	 * @return the id of the last transaction read, the new watermark
+	 */
+	public long getLastTxnId(){
+		return lastTxnId;
+	}
+
+	/**
+	 * @return the commit time of the last transaction read
+	 */
+	public long getLastCommitTime(){
+		return lastCommitTime;
+	}
+
+	/**
+	 * @return the number of transactions read
+	 */
+	public long getTransactions(){
+		return transactions;
+	}
+}
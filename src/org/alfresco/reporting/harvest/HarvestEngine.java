@@ -0,0 +1,469 @@
+/**
+ * Copyright (C) 2011 - 2013 Alfresco Business Reporting project
+ *
+ * This file is part of the Alfresco Business Reporting project.
+ *
+ * Licensed under the GNU LGPL, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.gnu.org/licenses/lgpl.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.alfresco.reporting.harvest;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.reporting.Constants;
+import org.alfresco.reporting.ReportLine;
+import org.alfresco.reporting.db.RowWriter;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Harvests the results of a query into a reporting table, in three stages
+ * connected by bounded queues:
+ * <ol>
+ * <li>the calling thread pages through the search results (HarvestPager)
+ *     and cuts the pages into chunks. The next page is searched on a
+ *     thread of its own, in a read-only repository transaction, while the
+ *     chunks of the current page are queued.</li>
+ * <li>a pool of worker threads turns each chunk into ReportLines, in a
+ *     read-only repository transaction of its own</li>
+ * <li>one writer thread adds missing columns and writes the rows through
+ *     the RowWriter</li>
+ * </ol>
+ * A full queue blocks the stage before it, so the pager never runs more
+ * than queueSize chunks ahead of the writer. The first failure in any
+ * stage stops all of them, and is thrown by run().
+ *
+ * Every checkpointInterval ms the writer commits, and stores the cursor of
+ * the pager after the last page written completely (with all pages before
+ * it) in the session, so a run that fails can be resumed from there.
+ */
+public class HarvestEngine {
+
+	private static Log logger = LogFactory.getLog(HarvestEngine.class);
+
+	private static final long POLL_MILLIS = 1000;
+
+	// end of stream markers
+	private static final Chunk END_OF_ITEMS = new Chunk(-1, null);
+	private static final Batch END_OF_BATCHES = new Batch(-1, null, null);
+
+	private final RetryingTransactionHelper transactionHelper;
+	private final NodeExtractor extractor;
+	private final int workers;
+	private final int queueSize;
+	private final int chunkSize;
+	private long checkpointInterval = 0;
+
+	private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+	/**
+	 * The items of a page, and the cursor of the pager after it
+	 */
+	private static class Page{
+		final List<HarvestItem> items;
+		final long cursor;
+
+		Page(List<HarvestItem> items, long cursor){
+			this.items = items;
+			this.cursor = cursor;
+		}
+	}
+
+	/**
+	 * The items of a chunk, and the page they are from
+	 */
+	private static class Chunk{
+		final int page;
+		final List<HarvestItem> items;
+
+		Chunk(int page, List<HarvestItem> items){
+			this.page = page;
+			this.items = items;
+		}
+	}
+
+	/**
+	 * The rows of a chunk, and the columns they need
+	 */
+	private static class Batch{
+		final int page;
+		final Properties definition;
+		final List<ReportLine> lines;
+
+		Batch(int page, Properties definition, List<ReportLine> lines){
+			this.page = page;
+			this.definition = definition;
+			this.lines = lines;
+		}
+	}
+
+	/**
+	 * The chunks of each page not written yet. The workers finish chunks out
+	 * of order, a page is done when its chunks and those of all pages before
+	 * it are written.
+	 */
+	static class PageProgress{
+		// page, chunks left, cursor after the page
+		private final LinkedList<long[]> pending = new LinkedList<long[]>();
+		private long cursor = -1;
+
+		synchronized void add(int page, int chunks, long cursorAfter){
+			pending.add(new long[]{page, chunks, cursorAfter});
+		}
+
+		synchronized void written(int page){
+			for (long[] entry : pending){
+				if (entry[0]==page){
+					entry[1]--;
+					return;
+				}
+			}
+		}
+
+		/**
+		 * @return the cursor after the last page done, -1 if none is
+		 */
+		synchronized long getCursor(){
+			Iterator<long[]> it = pending.iterator();
+			while (it.hasNext()){
+				long[] entry = it.next();
+				if (entry[1]>0) break;
+				cursor = entry[2];
+				it.remove();
+			}
+			return cursor;
+		}
+	}
+
+	/**
+	 * @param workers number of extracting threads
+	 * @param queueSize chunks waiting between two stages
+	 * @param chunkSize nodes per chunk (the versions of a node stay together)
+	 */
+	public HarvestEngine(RetryingTransactionHelper transactionHelper, NodeExtractor extractor,
+			int workers, int queueSize, int chunkSize){
+		this.transactionHelper = transactionHelper;
+		this.extractor = extractor;
+		this.workers = Math.max(1, workers);
+		this.queueSize = Math.max(1, queueSize);
+		this.chunkSize = Math.max(1, chunkSize);
+	}
+
+	/**
+	 * @param checkpointInterval ms between two checkpoints, 0 for none
+	 */
+	public void setCheckpointInterval(long checkpointInterval){
+		this.checkpointInterval = checkpointInterval;
+	}
+
+	/**
+	 * Harvest all pages into the table of the session. The caller owns the 
+	 * writer, and closes it afterwards.
+	 * @return the number of rows handed to the writer
+	 */
+	public long run(final HarvestSession session, HarvestPager pager, final RowWriter writer) throws Exception{
+		final String table = session.getTable();
+		final String method = session.getMethod();
+		final BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<Chunk>(queueSize);
+		final BlockingQueue<Batch> batches = new ArrayBlockingQueue<Batch>(queueSize);
+		final String runAsUser = (AuthenticationUtil.getRunAsUser()==null)
+				? AuthenticationUtil.getSystemUserName() : AuthenticationUtil.getRunAsUser();
+		final AtomicInteger running = new AtomicInteger(workers);
+		final PageProgress progress = new PageProgress();
+		long start = System.currentTimeMillis();
+
+		// the workers, the writer and the search of the next page
+		ExecutorService executor = Executors.newFixedThreadPool(workers+2, new HarvestThreadFactory(table));
+		try{
+			Future<Long> written = executor.submit(new Callable<Long>(){
+				public Long call() throws Exception{
+					return Long.valueOf(write(session, batches, progress, writer));
+				}
+			});
+			for (int i=0;i<workers;i++){
+				executor.submit(new Runnable(){
+					public void run(){
+						try{
+							extract(table, chunks, batches, runAsUser);
+						} catch (Throwable t){
+							fail(t);
+						} finally {
+							// the last worker out ends the batches
+							if (running.decrementAndGet()==0){
+								put(batches, END_OF_BATCHES);
+							}
+						}
+					}
+				});
+			}
+
+			// stage 1, on this thread, one page searched ahead
+			Future<Page> next = executor.submit(nextPage(pager, runAsUser));
+			int pageNo = 0;
+			while (failure.get()==null){
+				Page page;
+				try{
+					page = next.get();
+				} catch (ExecutionException e){
+					fail(e.getCause());
+					break;
+				}
+				if (page==null) break;
+				if (!session.isLeaseHeld()){
+					fail(new IllegalStateException("Lost the lease on " + table));
+					break;
+				}
+				next = executor.submit(nextPage(pager, runAsUser));
+				List<List<HarvestItem>> pageChunks = split(page.items);
+				progress.add(pageNo, pageChunks.size(), page.cursor);
+				for (List<HarvestItem> items : pageChunks){
+					if (!put(chunks, new Chunk(pageNo, items))) break;
+				}
+				pageNo++;
+			}
+			for (int i=0;i<workers;i++){
+				if (!put(chunks, END_OF_ITEMS)) break;
+			}
+
+			long rows = 0;
+			try{
+				rows = written.get().longValue();
+			} catch (ExecutionException e){
+				fail(e.getCause());
+			}
+			if (failure.get()!=null){
+				throw asException(failure.get());
+			}
+			logger.info("run: " + table + ": " + pager.getResults() + " results in " + pager.getPages() + " pages, "
+					+ pager.getVersionsSkipped() + " stored versions skipped, "
+					+ rows + " rows in " + (System.currentTimeMillis()-start) + "ms");
+			return rows;
+		} catch (Exception e){
+			fail(e);
+			throw e;
+		} finally {
+			executor.shutdownNow();
+			// the caller closes the writer, wait until the writer thread is out
+			executor.awaitTermination(POLL_MILLIS*60, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	// ------------------------------------------------------------------------
+
+	/**
+	 * Stage 1: the next page of the pager, null when there are no more
+	 */
+	private Callable<Page> nextPage(final HarvestPager pager, final String runAsUser){
+		return new Callable<Page>(){
+			public Page call() throws Exception{
+				return AuthenticationUtil.runAs(new RunAsWork<Page>(){
+					public Page doWork() throws Exception{
+						final boolean[] attempted = new boolean[]{false};
+						return transactionHelper.doInTransaction(new RetryingTransactionCallback<Page>(){
+							public Page execute() throws Throwable{
+								// the pager moved on in the failed attempt, a retry would skip a page
+								if (attempted[0]) throw new IllegalStateException("The search for the next page failed");
+								attempted[0] = true;
+								List<HarvestItem> items = pager.nextPage();
+								return (items==null) ? null : new Page(items, pager.getCursor());
+							}
+						}, true, true);
+					}
+				}, runAsUser);
+			}
+		};
+	}
+
+	/**
+	 * Stage 2: chunks into ReportLines
+	 */
+	private void extract(final String table, BlockingQueue<Chunk> chunks,
+			BlockingQueue<Batch> batches, String runAsUser) throws Exception{
+		while (true){
+			Chunk next = take(chunks);
+			if ((next==null) || (next==END_OF_ITEMS)) return;
+			final int page = next.page;
+			final List<HarvestItem> chunk = next.items;
+
+			Batch batch = AuthenticationUtil.runAs(new RunAsWork<Batch>(){
+				public Batch doWork() throws Exception{
+					return transactionHelper.doInTransaction(new RetryingTransactionCallback<Batch>(){
+						public Batch execute() throws Throwable{
+							extractor.prefetch(chunk);
+							Properties definition = new Properties();
+							List<ReportLine> lines = new ArrayList<ReportLine>(chunk.size());
+							for (HarvestItem item : chunk){
+								ReportLine rl = new ReportLine(table);
+								try{
+									extractor.extract(item, definition, rl);
+								} catch (Exception e){
+									logger.error("extract: skipping " + item + ": " + e.getMessage());
+									continue;
+								}
+								if (rl.size()>0) lines.add(rl);
+							}
+							return new Batch(page, definition, lines);
+						}
+					}, true, true);
+				}
+			}, runAsUser);
+			if (!put(batches, batch)) return;
+		}
+	}
+
+	/**
+	 * Stage 3: ReportLines into the reporting database
+	 */
+	private long write(HarvestSession session, BlockingQueue<Batch> batches, PageProgress progress, 
+			RowWriter writer) throws Exception{
+		String table = session.getTable();
+		String method = session.getMethod();
+		Properties defined = new Properties();
+		long rows = 0;
+		long checkpointed = -1;
+		long lastCheckpoint = System.currentTimeMillis();
+		while (true){
+			Batch batch = take(batches);
+			if ((batch==null) || (batch==END_OF_BATCHES)) return rows;
+
+			if (!defined.keySet().containsAll(batch.definition.keySet())){
+				// no open reporting transaction while the table is altered
+				writer.flush();
+				extractor.defineColumns(table, batch.definition);
+				defined.putAll(batch.definition);
+			}
+			for (ReportLine rl : batch.lines){
+				if (Constants.INSERT_ONLY.equals(method)){
+					writer.insert(rl);
+				} else if (Constants.SINGLE_INSTANCE.equals(method)){
+					writer.upsert(rl);
+				} else {
+					writer.insertVersion(rl);
+				}
+				rows++;
+			}
+			progress.written(batch.page);
+
+			if ((checkpointInterval>0) && (System.currentTimeMillis()-lastCheckpoint>=checkpointInterval)){
+				long cursor = progress.getCursor();
+				if (cursor>checkpointed){
+					// the rows of the pages up to the cursor are in this commit
+					writer.flush();
+					session.checkpoint(cursor);
+					checkpointed = cursor;
+				}
+				lastCheckpoint = System.currentTimeMillis();
+			}
+		}
+	}
+
+	// ------------------------------------------------------------------------
+
+	/**
+	 * Cut a page in chunks of about chunkSize nodes, keeping the versions of
+	 * a node in the same chunk
+	 */
+	private List<List<HarvestItem>> split(List<HarvestItem> page){
+		List<List<HarvestItem>> result = new ArrayList<List<HarvestItem>>();
+		List<HarvestItem> chunk = new ArrayList<HarvestItem>(chunkSize);
+		for (int i=0;i<page.size();i++){
+			HarvestItem item = page.get(i);
+			chunk.add(item);
+			HarvestItem next = (i+1<page.size()) ? page.get(i+1) : null;
+			boolean sameNode = (next!=null) && item.isVersion()
+					&& item.getOrigNodeRef().equals(next.getOrigNodeRef());
+			if ((chunk.size()>=chunkSize) && !sameNode){
+				result.add(chunk);
+				chunk = new ArrayList<HarvestItem>(chunkSize);
+			}
+		}
+		if (!chunk.isEmpty()) result.add(chunk);
+		return result;
+	}
+
+	private void fail(Throwable t){
+		if (failure.compareAndSet(null, t)){
+			logger.error("Harvest failed: " + t.getMessage(), t);
+		}
+	}
+
+	/**
+	 * @return false if the harvest failed before the element could be queued
+	 */
+	private <T> boolean put(BlockingQueue<T> queue, T element){
+		try{
+			while (failure.get()==null){
+				if (queue.offer(element, POLL_MILLIS, TimeUnit.MILLISECONDS)) return true;
+			}
+		} catch (InterruptedException e){
+			fail(e);
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+
+	/**
+	 * @return the next element, null if the harvest failed
+	 */
+	private <T> T take(BlockingQueue<T> queue){
+		try{
+			while (failure.get()==null){
+				T element = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (element!=null) return element;
+			}
+		} catch (InterruptedException e){
+			fail(e);
+			Thread.currentThread().interrupt();
+		}
+		return null;
+	}
+
+	private static Exception asException(Throwable t){
+		if (t instanceof Exception) return (Exception)t;
+		return new Exception(t);
+	}
+
+	private static class HarvestThreadFactory implements ThreadFactory{
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		HarvestThreadFactory(String table){
+			this.prefix = "reporting-harvest-" + table + "-";
+		}
+
+		public Thread newThread(Runnable r){
+			Thread thread = new Thread(r, prefix + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright (C) 2011 - 2013 Alfresco Business Reporting project
+ *
+ * This file is part of the Alfresco Business Reporting project.
+ *
+ * Licensed under the GNU LGPL, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.gnu.org/licenses/lgpl.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.alfresco.reporting.harvest;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+
+/**
+ * A node to harvest into a row. For a version, the frozen state node and
+ * the node it is a version of.
+ */
+public final class HarvestItem {
+
+	private final NodeRef nodeRef;
+	private final NodeRef origNodeRef;
+
+	public HarvestItem(NodeRef nodeRef){
+		this(nodeRef, null);
+	}
+
+	/**
+	 * @param nodeRef the version node
+	 * @param origNodeRef the live node it is a version of
+	 */
+	public HarvestItem(NodeRef nodeRef, NodeRef origNodeRef){
+		this.nodeRef = nodeRef;
+		this.origNodeRef = origNodeRef;
+	}
+
+	public NodeRef getNodeRef(){
+		return nodeRef;
+	}
+
+	/**
+	 * @return the live node of a version, null if this is not a version
+	 */
+	public NodeRef getOrigNodeRef(){
+		return origNodeRef;
+	}
+
+	public boolean isVersion(){
+		return origNodeRef!=null;
+	}
+
+	public String toString(){
+		return (origNodeRef==null) ? nodeRef.toString() : nodeRef + " (" + origNodeRef + ")";
+	}
+}
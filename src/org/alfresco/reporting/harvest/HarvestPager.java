@@ -0,0 +1,347 @@
+/**
+ * Copyright (C) 2011 - 2013 Alfresco Business Reporting project
+ *
+ * This file is part of the Alfresco Business Reporting project.
+ *
+ * Licensed under the GNU LGPL, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.gnu.org/licenses/lgpl.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.alfresco.reporting.harvest;
+
+import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.search.LimitBy;
+import org.alfresco.service.cmr.search.ResultSet;
+import org.alfresco.service.cmr.search.SearchParameters;
+import org.alfresco.service.cmr.search.SearchService;
+import org.alfresco.service.cmr.version.Version;
+import org.alfresco.service.cmr.version.VersionHistory;
+import org.alfresco.service.cmr.version.VersionService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Stage one of the harvest: pages through the results of a Lucene query,
+ * sorted by sys:node-dbid. Each next page starts after the highest dbid of
+ * the previous one. A versioned document with more than one version is
+ * expanded into its versions, oldest first. With StoredVersions, only the
+ * versions newer than the highest one stored already are expanded, so the
+ * cost follows the number of new versions, not the length of the history.
+ *
+ * The dbid the next page starts at is the cursor: a run that starts at the
+ * cursor of an earlier one harvests the pages that run did not get to.
+ * The queries, and the dbid and modified ranges added to them, are Lucene.
+ * Transactional metadata queries (Alfresco 4.2 and later) need fts-alfresco
+ * or CMIS, so TRANSACTIONAL is refused; with TRANSACTIONAL_IF_POSSIBLE the
+ * repository searches the index.
+ *
+ * Not thread safe; the HarvestEngine asks for one page at a time, each in
+ * a repository transaction of its own.
+ */
+public class HarvestPager {
+
+	private static Log logger = LogFactory.getLog(HarvestPager.class);
+
+	private static final String SORT_COLUMN = "@sys:node-dbid";
+	// node ids per search, Lucene allows 1024 clauses
+	private static final int IDS_PER_SEARCH = 500;
+
+	protected final SearchService searchService;
+	protected final NodeService nodeService;
+	private final VersionService versionService;
+	protected final StoreRef storeRef;
+	protected final String query;
+	private final String dateQuery;
+	protected final int pageSize;
+	private StoredVersions storedVersions;
+	private Method setQueryConsistency;
+	private Object queryConsistency;
+
+	private long dbid = -1;
+	private boolean done = false;
+	private int pages = 0;
+	private long results = 0;
+	private long versionsSkipped = 0;
+
+	/**
+	 * @param query the base query of the table
+	 * @param dateQuery the modified-date restriction, or ""
+	 * @param pageSize results per search
+	 */
+	public HarvestPager(ServiceRegistry serviceRegistry, StoreRef storeRef, String query, String dateQuery, int pageSize){
+		this.searchService = serviceRegistry.getSearchService();
+		this.nodeService = serviceRegistry.getNodeService();
+		this.versionService = serviceRegistry.getVersionService();
+		this.storeRef = storeRef;
+		this.query = query;
+		this.dateQuery = (dateQuery==null) ? "" : dateQuery;
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * @param storedVersions the versions in the table, null to expand the 
+	 *        whole history of each versioned node
+	 */
+	public void setStoredVersions(StoredVersions storedVersions){
+		this.storedVersions = storedVersions;
+	}
+
+	/**
+	 * Search with SearchParameters.setQueryConsistency. Ignored (with a 
+	 * warning) if the repository does not have it.
+	 * @param consistency TRANSACTIONAL_IF_POSSIBLE or EVENTUAL, null to
+	 *        search the index
+	 * @throws IllegalArgumentException for TRANSACTIONAL, the Lucene queries
+	 *         cannot be run against the database
+	 */
+	public void setQueryConsistency(String consistency){
+		this.setQueryConsistency = null;
+		this.queryConsistency = null;
+		if ((consistency==null) || "".equals(consistency.trim())) return;
+		if ("TRANSACTIONAL".equalsIgnoreCase(consistency.trim())){
+			throw new IllegalArgumentException("Query consistency TRANSACTIONAL needs fts-alfresco queries, "
+					+ "the harvest queries are Lucene. Use TRANSACTIONAL_IF_POSSIBLE or leave it empty: " + query);
+		}
+		try{
+			Class<?> type = Class.forName("org.alfresco.service.cmr.search.QueryConsistency");
+			Object value = null;
+			for (Object constant : type.getEnumConstants()){
+				if (((Enum<?>)constant).name().equalsIgnoreCase(consistency.trim())) value = constant;
+			}
+			if (value==null){
+				logger.warn("setQueryConsistency: unknown query consistency " + consistency + ", searching the index");
+				return;
+			}
+			this.setQueryConsistency = SearchParameters.class.getMethod("setQueryConsistency", type);
+			this.queryConsistency = value;
+		} catch (Exception e){
+			logger.warn("setQueryConsistency: no transactional metadata queries in this repository, searching the index");
+		}
+	}
+
+	/**
+	 * @return the items of the next page, null when there are no more results
+	 */
+	public List<HarvestItem> nextPage(){
+		if (done) return null;
+		List<NodeRef> nodeRefs = nextNodeRefs();
+		if (nodeRefs==null){
+			done = true;
+			return null;
+		}
+
+		// the versioned nodes of the page, and what the table has of them
+		Set<NodeRef> versioned = new HashSet<NodeRef>();
+		for (NodeRef nodeRef : nodeRefs){
+			try{
+				if (nodeService.hasAspect(nodeRef, ContentModel.ASPECT_VERSIONABLE)) versioned.add(nodeRef);
+			} catch (Exception e){
+				// addItems skips it
+			}
+		}
+		Map<NodeRef, String> latestLabels = Collections.<NodeRef, String>emptyMap();
+		if ((storedVersions!=null) && !versioned.isEmpty()){
+			try{
+				latestLabels = storedVersions.getLatestLabels(new ArrayList<NodeRef>(versioned));
+			} catch (RuntimeException e){
+				logger.warn("nextPage: could not read the stored versions, harvesting all: " + e.getMessage());
+			}
+		}
+
+		List<HarvestItem> items = new ArrayList<HarvestItem>(nodeRefs.size());
+		for (NodeRef nodeRef : nodeRefs){
+			try{
+				addItems(items, nodeRef, versioned.contains(nodeRef), latestLabels.get(nodeRef));
+			} catch (Exception e){
+				// the node appears null-ish, ignore it
+				logger.warn("nextPage: skipping " + nodeRef + ": " + e.getMessage());
+			}
+		}
+
+		pages++;
+		results += nodeRefs.size();
+		return items;
+	}
+
+	/**
+	 * @return the nodes of the next page, in the order to harvest them, null
+	 *         when there are no more
+	 */
+	protected List<NodeRef> nextNodeRefs(){
+		if (dbid==Long.MAX_VALUE) return null;
+		String fullQuery = "(" + query + ")";
+		if (dbid>=0){
+			fullQuery += " AND @sys\\:node-dbid:[" + dbid + " TO MAX]";
+		}
+		fullQuery += dateQuery;
+		if (logger.isDebugEnabled())
+			logger.debug("nextPage: " + storeRef + " " + fullQuery);
+
+		SearchParameters sp = newSearchParameters();
+		sp.addStore(storeRef);
+		sp.setQuery(fullQuery);
+		sp.addSort(SORT_COLUMN, true);
+		sp.setLimitBy(LimitBy.FINAL_SIZE);
+		sp.setLimit(pageSize);
+
+		List<NodeRef> nodeRefs;
+		ResultSet rs = searchService.query(sp);
+		try{
+			nodeRefs = new ArrayList<NodeRef>(rs.getNodeRefs());
+		} finally {
+			rs.close();
+		}
+		if (nodeRefs.isEmpty()) return null;
+
+		// the next page starts after the highest dbid of this one
+		Long last = null;
+		for (int i=nodeRefs.size()-1; (i>=0) && (last==null); i--){
+			Serializable value = nodeService.getProperty(nodeRefs.get(i), ContentModel.PROP_NODE_DBID);
+			if (value instanceof Long) last = (Long)value;
+		}
+		if (last==null){
+			logger.warn("nextPage: no sys:node-dbid in the page, stopping at " + results + " results");
+			dbid = Long.MAX_VALUE;
+		} else {
+			dbid = last.longValue()+1;
+		}
+		return nodeRefs;
+	}
+
+	/**
+	 * @return the nodes that match the query of the table, in their order.
+	 *         For pagers that know the nodes, and need the query to filter them
+	 */
+	protected List<NodeRef> matchQuery(List<NodeRef> nodeRefs){
+		Set<NodeRef> matches = new LinkedHashSet<NodeRef>();
+		for (int from=0; from<nodeRefs.size(); from+=IDS_PER_SEARCH){
+			int to = Math.min(nodeRefs.size(), from+IDS_PER_SEARCH);
+			StringBuilder ids = new StringBuilder();
+			for (int i=from;i<to;i++){
+				if (i>from) ids.append(" OR ");
+				ids.append("ID:\"").append(nodeRefs.get(i)).append('"');
+			}
+			String fullQuery = "(" + query + ") AND (" + ids + ")";
+			if (logger.isDebugEnabled())
+				logger.debug("matchQuery: " + storeRef + " " + (to-from) + " nodes");
+
+			SearchParameters sp = newSearchParameters();
+			sp.addStore(storeRef);
+			sp.setQuery(fullQuery);
+			sp.setLimitBy(LimitBy.FINAL_SIZE);
+			sp.setLimit(to-from);
+			ResultSet rs = searchService.query(sp);
+			try{
+				matches.addAll(rs.getNodeRefs());
+			} finally {
+				rs.close();
+			}
+		}
+		List<NodeRef> result = new ArrayList<NodeRef>(matches.size());
+		for (NodeRef nodeRef : nodeRefs){
+			if (matches.contains(nodeRef)) result.add(nodeRef);
+		}
+		return result;
+	}
+
+	/**
+	 * @return SearchParameters for a Lucene query, with the query consistency
+	 *         of the pager
+	 */
+	protected SearchParameters newSearchParameters(){
+		SearchParameters sp = new SearchParameters();
+		sp.setLanguage(SearchService.LANGUAGE_LUCENE);
+		if (queryConsistency!=null){
+			try{
+				setQueryConsistency.invoke(sp, queryConsistency);
+			} catch (Exception e){
+				logger.warn("newSearchParameters: could not set the query consistency, searching the index: " + e);
+				queryConsistency = null;
+			}
+		}
+		return sp;
+	}
+
+	/**
+	 * @param latestLabel the highest version label stored, null if none
+	 */
+	private void addItems(List<HarvestItem> items, NodeRef nodeRef, boolean versioned, String latestLabel){
+		if (versioned){
+			VersionHistory history = versionService.getVersionHistory(nodeRef);
+			Collection<Version> versions = (history==null) ? null : history.getAllVersions();
+			if ((versions!=null) && (versions.size()>1)){
+				// newest first, up to the latest stored one
+				List<Version> list = new ArrayList<Version>(versions.size());
+				for (Version version : versions){
+					if ((latestLabel!=null) && latestLabel.equals(version.getVersionLabel())) break;
+					list.add(version);
+				}
+				versionsSkipped += versions.size()-list.size();
+				// harvest them oldest first
+				for (int v=list.size()-1; v>=0; v--){
+					items.add(new HarvestItem(list.get(v).getFrozenStateNodeRef(), nodeRef));
+				}
+				return;
+			}
+		}
+		items.add(new HarvestItem(nodeRef));
+	}
+
+	/**
+	 * Resume an earlier run of the same query
+	 * @param cursor the value of getCursor() the run got to
+	 */
+	public void setCursor(long cursor){
+		this.dbid = cursor;
+	}
+
+	/**
+	 * @return the sys:node-dbid the page after the last one returned starts
+	 *         at, -1 if the pager does not page by dbid
+	 */
+	public long getCursor(){
+		return dbid;
+	}
+
+	public int getPages(){
+		return pages;
+	}
+
+	/**
+	 * @return the number of search results so far (versions not counted)
+	 */
+	public long getResults(){
+		return results;
+	}
+
+	/**
+	 * @return the number of versions not queued because they are stored already
+	 */
+	public long getVersionsSkipped(){
+		return versionsSkipped;
+	}
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 2011 - 2013 Alfresco Business Reporting project
+ *
+ * This file is part of the Alfresco Business Reporting project.
+ *
+ * Licensed under the GNU LGPL, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.gnu.org/licenses/lgpl.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.alfresco.reporting.harvest;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.alfresco.reporting.db.HarvestLease;
+
+/**
+ * The state of one harvest of one table: how to write it, and the nodes
+ * queued for it. AlfrescoReporting is a singleton shared by every script
+ * and job, so it keeps no run state of its own; each run gets a session.
+ * A session is used by one run only, the shared caches (column types,
+ * namespaces) stay in AlfrescoReporting.
+ */
+public class HarvestSession {
+
+	private final String table;
+	private final String method;
+	private final String writeMode;
+	private final int commitSize;
+	private final long commitInterval;
+	private final long started = System.currentTimeMillis();
+	private final List<HarvestItem> queue = new ArrayList<HarvestItem>();
+	private HarvestLease lease;
+	private String checkpointStore;
+	private long checkpointStarted;
+
+	/**
+	 * @param method Constants.INSERT_ONLY, SINGLE_INSTANCE or UPDATE_VERSIONED
+	 * @param writeMode BULK or BATCH, null for the default
+	 * @param commitSize rows per reporting transaction, -1 for the default
+	 * @param commitInterval ms per reporting transaction, -1 for the default
+	 */
+	public HarvestSession(String table, String method, String writeMode, int commitSize, long commitInterval){
+		this.table = table;
+		this.method = method;
+		this.writeMode = writeMode;
+		this.commitSize = commitSize;
+		this.commitInterval = commitInterval;
+	}
+
+	public String getTable(){
+		return table;
+	}
+
+	public String getMethod(){
+		return method;
+	}
+
+	public String getWriteMode(){
+		return writeMode;
+	}
+
+	public int getCommitSize(){
+		return commitSize;
+	}
+
+	public long getCommitInterval(){
+		return commitInterval;
+	}
+
+	/**
+	 * @return when the session was created, in ms
+	 */
+	public long getStarted(){
+		return started;
+	}
+
+	public void setLease(HarvestLease lease){
+		this.lease = lease;
+	}
+	
+	public HarvestLease getLease(){
+		return lease;
+	}
+
+	/**
+	 * @return false if the run lost its lease on the table, and must stop
+	 */
+	public boolean isLeaseHeld(){
+		return (lease==null) || lease.isHeld();
+	}
+
+	/**
+	 * @param store the store the pager of the run pages through by dbid, 
+	 *        null if the run keeps no checkpoints
+	 * @param started when the run started, the last run it sets when done
+	 */
+	public void setCheckpoint(String store, long started){
+		this.checkpointStore = store;
+		this.checkpointStarted = started;
+	}
+
+	/**
+	 * Store the cursor of the pages written and committed so far, see 
+	 * HarvestPager.getCursor. Does nothing without a lease or a store.
+	 */
+	public void checkpoint(long cursor){
+		if ((lease!=null) && (checkpointStore!=null)) lease.checkpoint(checkpointStore, cursor, checkpointStarted);
+	}
+
+	public void add(HarvestItem item){
+		queue.add(item);
+	}
+
+	public void addAll(Collection<HarvestItem> items){
+		queue.addAll(items);
+	}
+
+	/**
+	 * @return the queued nodes, in the order they were added
+	 */
+	public List<HarvestItem> getQueue(){
+		return queue;
+	}
+
+	public String toString(){
+		return "HarvestSession[" + table + ", " + method + ", " + queue.size() + " queued]";
+	}
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright (C) 2011 - 2013 Alfresco Business Reporting project
+ *
+ * This file is part of the Alfresco Business Reporting project.
+ *
+ * Licensed under the GNU LGPL, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.gnu.org/licenses/lgpl.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.alfresco.reporting.harvest;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Properties;
+
+import org.alfresco.reporting.ReportLine;
+
+/**
+ * Turns nodes into reporting rows. extract is called by the worker threads
+ * of the HarvestEngine, at the same time, inside a read-only repository
+ * transaction. defineColumns is called by the writer thread only.
+ */
+public interface NodeExtractor {
+
+	/**
+	 * Called in the transaction of a chunk before its items are extracted,
+	 * to load them into the node cache in bulk. May do nothing.
+	 */
+	void prefetch(List<HarvestItem> items);
+
+	/**
+	 * Fill the (empty) ReportLine with the values of the item, and add the
+	 * columns they need to the definition, column name -&gt; SQL type. The
+	 * node is read once for both.
+	 */
+	void extract(HarvestItem item, Properties definition, ReportLine rl) throws Exception;
+
+	/**
+	 * Add the columns of the definition that the table does not have yet
+	 */
+	void defineColumns(String table, Properties definition) throws SQLException;
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright (C) 2011 - 2013 Alfresco Business Reporting project
+ *
+ * This file is part of the Alfresco Business Reporting project.
+ *
+ * Licensed under the GNU LGPL, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.gnu.org/licenses/lgpl.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.alfresco.reporting.harvest;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+
+/**
+ * Stage one of the harvest for a known list of nodes, the queued ones: pages 
+ * through the nodes that still exist and match the query of the table. The
+ * nodes that do not exist anymore are collected for the caller, see 
+ * getDeleted().
+ */
+public class NodeListPager extends HarvestPager {
+
+	private final List<NodeRef> nodeRefs;
+	private final Map<NodeRef, Long> queued;
+	private final Map<String, Long> deleted = new LinkedHashMap<String, Long>();
+	private int next = 0;
+
+	/**
+	 * @param queued the nodes of the store, and when they were queued
+	 * @param pageSize nodes per page
+	 */
+	public NodeListPager(ServiceRegistry serviceRegistry, StoreRef storeRef, String query, 
+			Map<NodeRef, Long> queued, int pageSize){
+		super(serviceRegistry, storeRef, query, "", pageSize);
+		this.queued = queued;
+		this.nodeRefs = new ArrayList<NodeRef>(queued.keySet());
+	}
+
+	protected List<NodeRef> nextNodeRefs(){
+		if (next>=nodeRefs.size()) return null;
+		int to = Math.min(nodeRefs.size(), next+pageSize);
+		List<NodeRef> existing = new ArrayList<NodeRef>(to-next);
+		for (; next<to; next++){
+			NodeRef nodeRef = nodeRefs.get(next);
+			if (nodeService.exists(nodeRef)){
+				existing.add(nodeRef);
+			} else {
+				deleted.put(nodeRef.getId(), queued.get(nodeRef));
+			}
+		}
+		return existing.isEmpty() ? existing : matchQuery(existing);
+	}
+
+	/**
+	 * @return uuid -&gt; queued at (ms), of the nodes that do not exist anymore
+	 */
+	public Map<String, Long> getDeleted(){
+		return deleted;
+	}
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2011 - 2013 Alfresco Business Reporting project
+ *
+ * This file is part of the Alfresco Business Reporting project.
+ *
+ * Licensed under the GNU LGPL, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.gnu.org/licenses/lgpl.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.alfresco.reporting.harvest;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.alfresco.reporting.Constants;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The display path and site of the folders holding harvested nodes, so the
+ * path and site of a node cost a single lookup once its parent is known.
+ * Bounded: the least recently used folders are dropped first. Shared by the
+ * harvest threads.
+ *
+ * A move or rename changes the path of every folder below the one that
+ * changed, so OnMoveRenameFolder_ClearPathCache clears it all. The cache is
+ * local to one node of a cluster, and is cleared at the start of each
+ * harvest run as well, so a change made elsewhere is seen by the next run.
+ */
+public class PathCache {
+
+	private static Log logger = LogFactory.getLog(PathCache.class);
+
+	private volatile int maxSize = Constants.DEFAULT_PATH_CACHE_SIZE;
+	private final Map<NodeRef, Location> cache = new LinkedHashMap<NodeRef, Location>(256, 0.75f, true){
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<NodeRef, Location> eldest){
+			return size()>maxSize;
+		}
+	};
+
+	/**
+	 * The display path and site name of a node, null when it has none
+	 */
+	public static final class Location {
+		private final String path;
+		private final String site;
+
+		public Location(String path, String site){
+			this.path = path;
+			this.site = site;
+		}
+
+		public String getPath(){
+			return path;
+		}
+
+		public String getSite(){
+			return site;
+		}
+	}
+
+	public void setProperties(Properties properties){
+		String size = properties.getProperty(Constants.property_harvest_pathCacheSize);
+		if (size!=null){
+			try{
+				maxSize = Math.max(1, Integer.parseInt(size.trim()));
+			} catch (NumberFormatException nfe){
+				logger.warn("Invalid value for " + Constants.property_harvest_pathCacheSize + ", using " + maxSize);
+			}
+		}
+	}
+
+	public synchronized Location get(NodeRef folder){
+		return cache.get(folder);
+	}
+
+	public synchronized void put(NodeRef folder, Location location){
+		cache.put(folder, location);
+	}
+
+	public synchronized void clear(){
+		if (logger.isDebugEnabled() && !cache.isEmpty())
+			logger.debug("clear: dropping " + cache.size() + " folders");
+		cache.clear();
+	}
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright (C) 2011 - 2013 Alfresco Business Reporting project
+ *
+ * This file is part of the Alfresco Business Reporting project.
+ *
+ * Licensed under the GNU LGPL, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.gnu.org/licenses/lgpl.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.alfresco.reporting.harvest;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+
+import org.alfresco.reporting.ColumnType;
+import org.alfresco.service.namespace.QName;
+
+/**
+ * How nodes of one shape (type plus aspects) are turned into columns: the
+ * properties the shape can have with their column names and types, and the
+ * columns every node of the shape gets. Compiled once per shape, then used
+ * for every node of that shape without looking anything up again.
+ */
+public final class ProjectionPlan {
+
+	/**
+	 * How one property becomes a column
+	 */
+	public static final class PropertyColumn {
+		private final QName qname;
+		private final String column;
+		private final String definitionType;
+		private final ColumnType valueType;
+		private final String dataType;
+		private final ValueConverter converter;
+
+		/**
+		 * @param column the column name, null if the property is not harvested
+		 * @param definitionType the SQL type to create the column with, null for no column
+		 * @param valueType the type to store the value as, null for no value
+		 * @param dataType the dictionary data type, like text or datetime
+		 * @param converter turns the value into the String to store, null for no value
+		 */
+		public PropertyColumn(QName qname, String column, String definitionType, 
+				ColumnType valueType, String dataType, ValueConverter converter){
+			this.qname = qname;
+			this.column = column;
+			this.definitionType = definitionType;
+			this.valueType = valueType;
+			this.dataType = dataType;
+			this.converter = converter;
+		}
+
+		public QName getQName(){
+			return qname;
+		}
+
+		public String getColumn(){
+			return column;
+		}
+
+		/**
+		 * @return true if the property is blacklisted or otherwise never harvested
+		 */
+		public boolean isSkipped(){
+			return column==null;
+		}
+
+		public String getDefinitionType(){
+			return definitionType;
+		}
+
+		public ColumnType getValueType(){
+			return valueType;
+		}
+
+		public String getDataType(){
+			return dataType;
+		}
+
+		public ValueConverter getConverter(){
+			return converter;
+		}
+	}
+
+	private final Map<QName, PropertyColumn> properties;
+	private final Properties definition;
+	private final boolean content;
+	private final boolean site;
+
+	/**
+	 * @param properties the properties of the shape, skipped ones included, in dictionary order
+	 * @param definition the columns of the shape itself, column name -&gt; SQL type
+	 * @param content true for a subtype of cm:content
+	 * @param site true for a st:site
+	 */
+	public ProjectionPlan(Map<QName, PropertyColumn> properties, Properties definition, 
+			boolean content, boolean site){
+		this.properties = Collections.unmodifiableMap(properties);
+		this.definition = definition;
+		this.content = content;
+		this.site = site;
+	}
+
+	public Collection<PropertyColumn> getProperties(){
+		return properties.values();
+	}
+
+	/**
+	 * @return true if the property belongs to the type or one of the aspects
+	 */
+	public boolean hasProperty(QName qname){
+		return properties.containsKey(qname);
+	}
+
+	/**
+	 * @return the columns every node of this shape gets. Do not modify.
+	 */
+	public Properties getDefinition(){
+		return definition;
+	}
+
+	public boolean isContent(){
+		return content;
+	}
+
+	public boolean isSite(){
+		return site;
+	}
+}
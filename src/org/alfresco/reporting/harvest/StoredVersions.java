@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) 2011 - 2013 Alfresco Business Reporting project
+ *
+ * This file is part of the Alfresco Business Reporting project.
+ *
+ * Licensed under the GNU LGPL, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.gnu.org/licenses/lgpl.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.alfresco.reporting.harvest;
+
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+
+/**
+ * What the reporting table has of the version history of nodes. Lets the
+ * HarvestPager queue only the versions that are newer than the stored ones.
+ */
+public interface StoredVersions {
+
+	/**
+	 * Called once per page, for its versioned nodes.
+	 * @return per node that has stored versions, the highest stored version
+	 *         label. Nodes without stored versions are left out.
+	 */
+	Map<NodeRef, String> getLatestLabels(List<NodeRef> nodeRefs);
+}
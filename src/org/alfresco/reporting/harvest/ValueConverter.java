@@ -0,0 +1,34 @@
+/**
+ * Copyright (C) 2011 - 2013 Alfresco Business Reporting project
+ *
+ * This file is part of the Alfresco Business Reporting project.
+ *
+ * Licensed under the GNU LGPL, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.gnu.org/licenses/lgpl.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.alfresco.reporting.harvest;
+
+import java.io.Serializable;
+
+/**
+ * Turns a property value into the String the harvest stores. Converters are
+ * shared by the harvest threads, and must be thread safe.
+ */
+public interface ValueConverter {
+
+	/**
+	 * @param value the value as returned by the NodeService, may be null
+	 * @return the value to store, "" for none
+	 */
+	String convert(Serializable value);
+}
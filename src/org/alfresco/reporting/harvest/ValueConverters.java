@@ -0,0 +1,194 @@
+/**
+ * Copyright (C) 2011 - 2013 Alfresco Business Reporting project
+ *
+ * This file is part of the Alfresco Business Reporting project.
+ *
+ * Licensed under the GNU LGPL, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.gnu.org/licenses/lgpl.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.alfresco.reporting.harvest;
+
+import java.io.Serializable;
+import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.reporting.Constants;
+import org.alfresco.service.cmr.dictionary.DataTypeDefinition;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.QName;
+
+/**
+ * The ValueConverter of each dictionary data type, single and multi valued.
+ * Dates are formatted as Constants.DATE_FORMAT_DATABASE, categories as
+ * their names, anything else by its toString(). The values of a multi
+ * valued property are each followed by the multi value separator.
+ *
+ * No converter allocates a formatter or grows a String per value: the date
+ * format and the join buffer are kept per thread, and the category names
+ * are kept until clearCaches().
+ */
+public class ValueConverters {
+
+	private static final int MAX_CATEGORY_NAMES = 10000;
+	private static final int MAX_BUFFER = 65536;
+
+	private static final ThreadLocal<SimpleDateFormat> DATE_FORMAT = new ThreadLocal<SimpleDateFormat>(){
+		protected SimpleDateFormat initialValue(){
+			return new SimpleDateFormat(Constants.DATE_FORMAT_DATABASE);
+		}
+	};
+
+	private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>(){
+		protected StringBuilder initialValue(){
+			return new StringBuilder(256);
+		}
+	};
+
+	private final NodeService nodeService;
+	private final Map<QName, ValueConverter> single = new HashMap<QName, ValueConverter>();
+	private final Map<QName, ValueConverter> multi = new HashMap<QName, ValueConverter>();
+	private final ValueConverter text;
+	private final ValueConverter texts;
+	private final Map<NodeRef, String> categoryNames = new ConcurrentHashMap<NodeRef, String>();
+
+	/**
+	 * @param separator follows each value of a multi valued property
+	 */
+	public ValueConverters(NodeService nodeService, String separator){
+		this.nodeService = nodeService;
+		ValueConverter date = new DateConverter();
+		ValueConverter category = new CategoryConverter();
+		text = new TextConverter();
+		texts = new MultiValueConverter(text, separator);
+
+		single.put(DataTypeDefinition.DATE, date);
+		single.put(DataTypeDefinition.DATETIME, date);
+		single.put(DataTypeDefinition.CATEGORY, category);
+		multi.put(DataTypeDefinition.DATE, new MultiValueConverter(date, separator));
+		multi.put(DataTypeDefinition.DATETIME, new MultiValueConverter(date, separator));
+		multi.put(DataTypeDefinition.CATEGORY, category);
+	}
+
+	/**
+	 * @param dataType the name of the DataTypeDefinition, like DataTypeDefinition.TEXT
+	 * @return the converter, never null
+	 */
+	public ValueConverter get(QName dataType, boolean multiValued){
+		ValueConverter converter = (multiValued ? multi : single).get(dataType);
+		if (converter==null){
+			converter = multiValued ? texts : text;
+		}
+		return converter;
+	}
+
+	/**
+	 * Forget the category names, a category may have been renamed
+	 */
+	public void clearCaches(){
+		categoryNames.clear();
+	}
+
+	// ------------------------------------------------------------------------
+
+	private static StringBuilder buffer(){
+		StringBuilder buffer = BUFFER.get();
+		if (buffer.capacity()>MAX_BUFFER){
+			// do not keep a huge one per thread
+			buffer = new StringBuilder(256);
+			BUFFER.set(buffer);
+		}
+		buffer.setLength(0);
+		return buffer;
+	}
+
+	private static class TextConverter implements ValueConverter{
+		public String convert(Serializable value){
+			return (value==null) ? "" : value.toString();
+		}
+	}
+
+	private static class DateConverter implements ValueConverter{
+		public String convert(Serializable value){
+			if (value instanceof Date){
+				return DATE_FORMAT.get().format((Date)value);
+			}
+			return (value==null) ? "" : value.toString();
+		}
+	}
+
+	/**
+	 * Each value converted by the element converter, and followed by the separator
+	 */
+	private static class MultiValueConverter implements ValueConverter{
+		private final ValueConverter element;
+		private final String separator;
+
+		MultiValueConverter(ValueConverter element, String separator){
+			this.element = element;
+			this.separator = separator;
+		}
+
+		public String convert(Serializable value){
+			if (value==null) return "";
+			if (!(value instanceof Collection)){
+				return element.convert(value) + separator;
+			}
+			StringBuilder result = buffer();
+			for (Object v : (Collection<?>)value){
+				if (v!=null){
+					result.append(element.convert((Serializable)v)).append(separator);
+				}
+			}
+			return result.toString();
+		}
+	}
+
+	/**
+	 * The names of the categories, comma separated
+	 */
+	private class CategoryConverter implements ValueConverter{
+		public String convert(Serializable value){
+			if (value instanceof NodeRef){
+				return getCategoryName((NodeRef)value);
+			}
+			if (!(value instanceof Collection)) return "";
+			StringBuilder result = buffer();
+			for (Object category : (Collection<?>)value){
+				if (category instanceof NodeRef){
+					if (result.length()>0) result.append(",");
+					result.append(getCategoryName((NodeRef)category));
+				}
+			}
+			return result.toString();
+		}
+	}
+
+	private String getCategoryName(NodeRef category){
+		String name = categoryNames.get(category);
+		if (name==null){
+			Serializable value = nodeService.getProperty(category, ContentModel.PROP_NAME);
+			name = (value==null) ? "" : value.toString();
+			if (categoryNames.size()>=MAX_CATEGORY_NAMES){
+				categoryNames.clear();
+			}
+			categoryNames.put(category, name);
+		}
+		return name;
+	}
+}
@@ -27,28 +27,40 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
 
 import org.alfresco.model.ContentModel;
+import org.alfresco.repo.domain.node.NodeDAO;
 import org.alfresco.repo.jscript.BaseScopableProcessorExtension;
 import org.alfresco.repo.jscript.ScriptNode;
+import org.alfresco.repo.node.NodeBulkLoader;
 import org.alfresco.repo.site.SiteModel;
 import org.alfresco.service.cmr.repository.Path;
 import org.alfresco.service.cmr.repository.Path.ChildAssocElement;
 import org.alfresco.service.ServiceRegistry;
 import org.alfresco.service.cmr.audit.AuditQueryParameters;
 import org.alfresco.service.cmr.audit.AuditService;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
 import org.alfresco.service.cmr.dictionary.PropertyDefinition;
+import org.alfresco.service.cmr.dictionary.TypeDefinition;
 import org.alfresco.service.cmr.repository.AssociationRef;
 import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.ContentReader;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
 import org.alfresco.service.cmr.repository.StoreRef;
@@ -62,11 +74,28 @@ import org.alfresco.service.cmr.security.AuthorityService;
 import org.alfresco.service.cmr.security.AuthorityType;
 import org.alfresco.service.cmr.site.SiteInfo;
 import org.alfresco.service.cmr.site.SiteService;
+import org.alfresco.service.namespace.NamespaceService;
 import org.alfresco.service.namespace.QName;
+import org.alfresco.service.namespace.RegexQNamePattern;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.alfresco.reporting.*;
+import org.alfresco.reporting.db.BatchWriter;
 import org.alfresco.reporting.db.DatabaseHelperBean;
+import org.alfresco.reporting.db.HarvestLease;
+import org.alfresco.reporting.db.RowWriter;
+import org.alfresco.reporting.harvest.ChangeFeedPager;
+import org.alfresco.reporting.harvest.HarvestEngine;
+import org.alfresco.reporting.harvest.HarvestItem;
+import org.alfresco.reporting.harvest.HarvestPager;
+import org.alfresco.reporting.harvest.HarvestSession;
+import org.alfresco.reporting.harvest.NodeListPager;
+import org.alfresco.reporting.harvest.NodeExtractor;
+import org.alfresco.reporting.harvest.PathCache;
+import org.alfresco.reporting.harvest.ProjectionPlan;
+import org.alfresco.reporting.harvest.StoredVersions;
+import org.alfresco.reporting.harvest.ValueConverter;
+import org.alfresco.reporting.harvest.ValueConverters;
 //import org.alfresco.reporting.mybatis.ReportingDAO;
 import org.json.simple.parser.ParseException;
 
@@ -79,23 +108,42 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
 	private AuthorityService authorityService=null;
 	private AuditService auditService=null;
 	private SiteService siteService = null;
+	private NodeBulkLoader nodeBulkLoader = null;
+	private NodeDAO nodeDAO = null;
+	private PathCache pathCache = new PathCache();
 	
 	private Properties globalProperties;
-	private Properties datadictionary;
-	private Properties namespaces = null;
-	private Properties replacementTypes = null;
 	private DatabaseHelperBean dbhb = null;
 	
+	// shared read-only caches, loaded once. Run state lives in a HarvestSession
+	private volatile Properties datadictionary;
+	private volatile Properties namespaces = null;
+	private volatile Properties replacementTypes = null;
+	private volatile String blacklist=",";
+	
 	private NodeRef reportingRootRef = null;
-	private String blacklist=",";
-	private String method = Constants.UPDATE_VERSIONED;
-//	private String table; // this is a dirty basterd! It is a global because it is called from JavaScript. Need to get rid of that!
-	private List<NodeRef> queue = new ArrayList<NodeRef>();
-	private Properties versionNodes = new Properties();
+	// the nodes queued by addToQueue, per script (thread)
+	private final ThreadLocal<List<HarvestItem>> scriptQueue = new ThreadLocal<List<HarvestItem>>();
+	private final AtomicBoolean queueDraining = new AtomicBoolean(false);
+	private Map<String, String> writeModes = new ConcurrentHashMap<String, String>();
+	private Map<String, int[]> commitSizes = new ConcurrentHashMap<String, int[]>();
 	
 	private String reporting_custom_properties = Constants.REPORTING_CUSTOM_PROPERTIES;
 	private String multivalue_seperator = Constants.MULTIVALUE_SEPERATOR;
 	
+	// association types that are never harvested, by short name prefix
+	private static final Pattern SKIPPED_ASSOCIATIONS = Pattern.compile(
+		"trx|act|blg_|wca|wcm|ver|fm_|emailserver_|sys_|"
+		+ "cm_member|cm_subcategories|cm_subscribedBy|cm_attachments|"
+		+ "cm_translations|cm_preference|cm_replaces|cm_ml|cm_failed|"
+		+ "cm_references|cm_avatar|rn_|imap_|usr_");
+	// association type -> column, "" if skipped
+	private final Map<QName, String> associationColumns = new ConcurrentHashMap<QName, String>();
+	// compiled per shape (type and aspects) and per property, see getProjectionPlan
+	private final Map<List<Object>, ProjectionPlan> projectionPlans = new ConcurrentHashMap<List<Object>, ProjectionPlan>();
+	private final Map<QName, ProjectionPlan.PropertyColumn> propertyColumns = new ConcurrentHashMap<QName, ProjectionPlan.PropertyColumn>();
+	private volatile ValueConverters valueConverters = null;
+	
 	// -----------------------------------------------------------------------
 	/**
 	 * the obvious getters and setters from bean definition
@@ -130,6 +178,28 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
 		this.siteService = siteService;
 	}
 	
+	/**
+	 * Optional, loads the nodes of a harvest chunk into the node cache in bulk
+	 */
+	public void setNodeBulkLoader(NodeBulkLoader nodeBulkLoader) {
+		this.nodeBulkLoader = nodeBulkLoader;
+	}
+	
+	/**
+	 * Optional, reads the repository transactions for <table>.harvestMode=CHANGES
+	 */
+	public void setNodeDAO(NodeDAO nodeDAO) {
+		this.nodeDAO = nodeDAO;
+	}
+	
+	/**
+	 * The display path and site per folder, shared with the behaviour that
+	 * clears it on a move or rename
+	 */
+	public void setPathCache(PathCache pathCache) {
+		this.pathCache = pathCache;
+	}
+	
 	public void setDatabaseHelperBean(DatabaseHelperBean databaseHelperBean) {
 		this.dbhb = databaseHelperBean;
 	}
@@ -149,6 +219,7 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
 
 	private void setBlacklist(String list){
 		this.blacklist = list ;
+		invalidateProjectionPlans();
 	}
 	
 	private String getBlacklist(){
@@ -180,6 +251,8 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
 	 */
 	public void setCustomModelProperties(String newFileName){
 		reporting_custom_properties = newFileName;
+		replacementTypes = null;
+		invalidateProjectionPlans();
 	}
 	
 	
@@ -194,6 +267,8 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
 	public void setMultiValueSeperator(String inString){
 		if ((inString!=null) && (inString.length()>0)){
 			multivalue_seperator = inString+" ";
+			valueConverters = null;
+			invalidateProjectionPlans();
 		}
 	}
 		
@@ -314,13 +389,22 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
     }
     
     /**
-     * Set the string value of timestamp in the table 'lastrun'
-     * If the table does not yet exist, the table will be created.
-     * @param timestamp
-     * @throws SQLException
+     * Take the table for this run and set it Running. If the table does not 
+     * yet exist in the table 'lastrun', it will be created.
+     * @return the lease of this run, null if another run has the table
+     */
+    public HarvestLease setLastTimestampStatusRunning(String tablename) {
+    	return dbhb.setLastTimestampStatusRunning(tablename);
+    }
+    
+    /**
+     * End the run holding the lease: set the table Done
+     * @param timestamp the timestamp of this successful run, null to keep the previous one
      */
-    public void setLastTimestampStatusRunning(String tablename) {
-    	dbhb.setLastTimestampStatusRunning(tablename);
+    public void releaseLease(HarvestLease lease, String timestamp){
+    	if (lease!=null){
+    		lease.release(timestamp);
+    	}
     }
     
     public void createLastTimestampTable(String tablename){
@@ -341,13 +425,15 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
      * @throws Exception 
      */
     private Properties getClassToColumnType() throws Exception{
-		if (datadictionary==null){		
+		Properties types = datadictionary;
+		if (types==null){		
 			
 			try {
 				ClassLoader cl = this.getClass().getClassLoader();
 				InputStream is =cl.getResourceAsStream(Constants.REPORTING_PROPERTIES);
 				Properties p = new Properties();
 				p.load(is);
+				types = p;
 				datadictionary = p;
 			} catch (IOException e) {
 				e.printStackTrace();
@@ -355,7 +441,7 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
 			}
 		}
 
-    	return datadictionary;
+    	return types;
     }
     
     /**
@@ -373,21 +459,22 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
      * @return Properties object with as content the key/value pairs from the properties file.
      */
 	private Properties getReplacementDataType(){ 
-		
-		if (replacementTypes==null){		
+		Properties types = replacementTypes;
+		if (types==null){		
 			
 			try {
 				ClassLoader cl = this.getClass().getClassLoader();
 				InputStream is =cl.getResourceAsStream(reporting_custom_properties);
 				Properties p = new Properties();
 				p.load(is);
-				replacementTypes = p;
+				types = p;
 			} catch (Exception e) {
 				//e.printStackTrace();
-				replacementTypes = new Properties();
+				types = new Properties();
 			}
+			replacementTypes = types;
 		}
-      return replacementTypes;
+      return types;
 	}
     
 	
@@ -400,6 +487,46 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
 		logger.info("Starting AlfrescoReporting module (Constructor)");
 	}
 	
+	/**
+	 * Can be called from script.
+	 * @param table the table
+	 * @param writeMode BULK or BATCH (default), from &lt;table&gt;.writeMode in the harvest definition
+	 */
+	public void setWriteMode(String table, String writeMode){
+		if ((writeMode==null) || "".equals(writeMode.trim())){
+			writeModes.remove(table);
+		} else {
+			writeModes.put(table, writeMode.trim().toUpperCase());
+		}
+	}
+	
+	/**
+	 * Can be called from script.
+	 * @param commitSize rows per reporting transaction, from &lt;table&gt;.commitSize, "" for the default
+	 * @param commitInterval ms per transaction, from &lt;table&gt;.commitInterval, "" for the default
+	 */
+	public void setCommitSize(String table, String commitSize, String commitInterval){
+		commitSizes.put(table, parseCommitSize(table, commitSize, commitInterval));
+	}
+	
+	/**
+	 * Can be called from script.
+	 * Re-read the columns of the reporting tables on their next use
+	 */
+	public void invalidateTableColumns(){
+		dbhb.invalidateTableColumns();
+	}
+	
+	/**
+	 * Can be called from script.
+	 * Declare an extra index on a table, created once all its columns exist
+	 * @param name the index, from &lt;table&gt;.index.&lt;name&gt; in the harvest definition
+	 * @param columns comma separated list of columns
+	 */
+	public void setTableIndex(String table, String name, String columns){
+		dbhb.setTableIndex(table, name, columns);
+	}
+	
 	/**
 	 * Can be called from script.
 	 * @table the current active table/query name
@@ -420,7 +547,7 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
 		if (logger.isDebugEnabled()) 
 			logger.debug("addToQueue: Prepare adding scriptNode=" + scriptNode.getName() + " | " + scriptNode.getNodeRef());
 
-		this.queue.add(scriptNode.getNodeRef());
+		getScriptQueue().add(new HarvestItem(scriptNode.getNodeRef()));
 	}
 	
 	/**
@@ -431,8 +558,7 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
 	public void addToQueue(ScriptNode scriptNode, ScriptNode versionNode){
 		if (logger.isDebugEnabled()) 
 			logger.debug("addToQueue: Prepare adding scriptNode=" + scriptNode.getNodeRef() + ", versionNode=" + versionNode.getNodeRef());
-		versionNodes.setProperty(versionNode.getNodeRef().toString(), scriptNode.getNodeRef().toString());
-		this.queue.add(versionNode.getNodeRef());
+		getScriptQueue().add(new HarvestItem(versionNode.getNodeRef(), scriptNode.getNodeRef()));
 	}
 	
 	/**
@@ -443,148 +569,498 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
 	public void executeQueue(String table) throws Exception{
 		if (logger.isDebugEnabled()) 
 			logger.debug("Executing queue");
-		Properties nameSpaces = getNameSpaces();
-		Properties p = getTableDefinitionFromQueue(nameSpaces);
-		setTableDefinition(p, table);
-		processUpdate(table);
+		int[] commitSize = getCommitSize(table);
+		HarvestSession session = new HarvestSession(table, Constants.UPDATE_VERSIONED, 
+				writeModes.get(table), commitSize[0], commitSize[1]);
+		session.addAll(getScriptQueue());
+		processUpdate(session);
 		
 	}
 
 	
 	/**
 	 * Will be called from script.
-	 * This method needs to be called between tables/queries. It will reset 
-	 * all kind of variables 
+	 * This method needs to be called between tables/queries. It will empty 
+	 * the queue of the calling script
 	 */
 	public void resetAll(){
-		this.method=Constants.UPDATE_VERSIONED;
-		this.datadictionary=null;
-		this.queue = new ArrayList<NodeRef>();
-		this.versionNodes = new Properties();
-		this.replacementTypes = null;
+		scriptQueue.remove();
 	}
-
-
-// ----------------------------------------------------------------------------	
-// util methods
-// ----------------------------------------------------------------------------	
-
+	
+	private List<HarvestItem> getScriptQueue(){
+		List<HarvestItem> queue = scriptQueue.get();
+		if (queue==null){
+			queue = new ArrayList<HarvestItem>();
+			scriptQueue.set(queue);
+		}
+		return queue;
+	}
+	
+	private int[] getCommitSize(String table){
+		int[] commitSize = commitSizes.get(table);
+		return (commitSize==null) ? new int[]{-1, -1} : commitSize;
+	}
+	
 	/**
-	 * Given the ScriptNode, get all available associations (parent/child & target/source)
-	 * Create a column to store the noderef if there are any of these associations
-	 * @throws Exception 
-	 * 
-	 */ 
-	private Properties processAssociationDefinitions(Properties definition, NodeRef nodeRef, String defBacklist) throws Exception{
-		//Child References
+	 * @return commit size and interval, -1 for the defaults
+	 */
+	private int[] parseCommitSize(String table, String commitSize, String commitInterval){
+		int[] values = new int[]{-1, -1};
 		try{
-			List<ChildAssociationRef> childCars= serviceRegistry.getNodeService().getChildAssocs(nodeRef);
-			if (childCars.size()>0){
-				String type = getClassToColumnType().getProperty("noderefs","-");
-				if (getReplacementDataType().containsKey("child_noderef")){
-					type = getReplacementDataType().getProperty("child_noderef", "-").trim();
-				}
-				definition.setProperty("child_noderef", type);
+			if ((commitSize!=null) && !"".equals(commitSize.trim()))
+				values[0] = Integer.parseInt(commitSize.trim());
+			if ((commitInterval!=null) && !"".equals(commitInterval.trim()))
+				values[1] = Integer.parseInt(commitInterval.trim());
+		} catch (NumberFormatException nfe){
+			logger.warn("setCommitSize: invalid commit size for " + table + ", using the defaults");
+			values = new int[]{-1, -1};
+		}
+		return values;
+	}
+	
+	/**
+	 * Will be called from script, once per harvest definition.
+	 * Harvests each table=query line of the definition into its reporting 
+	 * table, for each store in reporting.harvest.stores. Lines like 
+	 * &lt;table&gt;.writeMode=BULK are table options. With 
+	 * &lt;table&gt;.harvestMode=CHANGES the table is harvested by the query
+	 * once, and from then on the nodes changed in the repository transactions
+	 * since the last run are harvested (ChangeFeedPager). Tables with
+	 * &lt;table&gt;.harvestMode=EVENTS are harvested by query here, and from 
+	 * the harvest queue in between, see harvestQueue().
+	 * The nodes are harvested by the HarvestEngine: paging on this thread, 
+	 * extracting on a pool of threads, writing on a thread of its own.
+	 * @param harvestDefinition the reporting:harvestDefinition node
+	 */
+	public void harvestQueries(ScriptNode harvestDefinition) throws Exception{
+		Map<String, String> queries = new LinkedHashMap<String, String>();
+		Map<String, String> options = new LinkedHashMap<String, String>();
+		for (Map.Entry<String, String> line : readHarvestDefinition(harvestDefinition.getNodeRef()).entrySet()){
+			if (line.getKey().indexOf('.')<0){
+				queries.put(line.getKey(), line.getValue());
+			} else {
+				options.put(line.getKey(), line.getValue());
 			}
-		} catch (Exception e) {
-			logger.debug("processAssociationDefinitions: child_noderef ERROR!");
-			e.printStackTrace();
-			
 		}
+		logger.info("harvestQueries: " + harvestDefinition.getName() + " tables=" + queries.keySet());
 		
-		try{
-			// Parent References
-			ChildAssociationRef parentCar= serviceRegistry.getNodeService().getPrimaryParent(nodeRef);
-			if (parentCar!=null){
-				String type = getClassToColumnType().getProperty("noderef","-");
-				if (getReplacementDataType().containsKey("parent_noderef")){
-					type = getReplacementDataType().getProperty("parent_noderef", "-").trim();
-				}
-				definition.setProperty("parent_noderef", type);
+		// fill the shared caches before the worker threads use them
+		getClassToColumnType();
+		getReplacementDataType();
+		getNameSpaces();
+		getBlacklist();
+		// a folder changed on another cluster node is seen from the next run on
+		pathCache.clear();
+		// and a model deployed, or a category renamed since the last run
+		invalidateProjectionPlans();
+		getValueConverters().clearCaches();
+		
+		List<StoreRef> storeRefs = new ArrayList<StoreRef>();
+		for (String store : getStoreList().split(",")){
+			if (!"".equals(store.trim())) storeRefs.add(new StoreRef(store.trim()));
+		}
+		for (Map.Entry<String, String> query : queries.entrySet()){
+			try{
+				harvestTable(storeRefs, query.getKey(), query.getValue(), options);
+			} catch (Exception e){
+				logger.error("harvestQueries: " + query.getKey() + " failed: " + e.getMessage());
 			}
-		} catch (Exception e) {
-			logger.debug("processAssociationDefinitions: parent_noderef ERROR!");
-			e.printStackTrace();
-			
 		}
+	}
+	
+	/**
+	 * @return the key=value lines of the content of the harvest definition, 
+	 * in order. Lines starting with # are comments.
+	 */
+	private Map<String, String> readHarvestDefinition(NodeRef harvestDefinition){
+		Map<String, String> lines = new LinkedHashMap<String, String>();
+		ContentReader reader = serviceRegistry.getContentService().getReader(harvestDefinition, ContentModel.PROP_CONTENT);
+		if ((reader==null) || !reader.exists() || (reader.getSize()==0)){
+			logger.warn("readHarvestDefinition: no content in " + harvestDefinition);
+			return lines;
+		}
+		for (String line : reader.getContentString().split("\n")){
+			line = line.trim();
+			int is = line.indexOf('=');
+			if (line.startsWith("#") || (is<=0)) continue;
+			lines.put(line.substring(0, is).trim(), line.substring(is+1).trim());
+		}
+		return lines;
+	}
+	
+	/**
+	 * @return the session for the table, with the table and its options in place
+	 */
+	private HarvestSession createSession(String table, Map<String, String> options){
+		createEmptyTables(table);
+		String writeMode = options.get(table + ".writeMode");
+		int[] commitSize = parseCommitSize(table, options.get(table + ".commitSize"), options.get(table + ".commitInterval"));
+		HarvestSession session = new HarvestSession(table, Constants.UPDATE_VERSIONED,
+				(writeMode==null) ? null : writeMode.trim().toUpperCase(), commitSize[0], commitSize[1]);
+		// extra indexes, table.index.name=col1,col2
+		String indexPrefix = table + ".index.";
+		for (Map.Entry<String, String> option : options.entrySet()){
+			if (option.getKey().startsWith(indexPrefix)){
+				setTableIndex(table, option.getKey().substring(indexPrefix.length()), option.getValue());
+			}
+		}
+		return session;
+	}
+	
+	/**
+	 * @return the harvest mode of the table, HARVEST_MODE_QUERY if not set
+	 */
+	private String getHarvestMode(String table, Map<String, String> options){
+		String mode = options.get(table + ".harvestMode");
+		return ((mode==null) || "".equals(mode.trim())) ? Constants.HARVEST_MODE_QUERY : mode.trim().toUpperCase();
+	}
+	
+	/**
+	 * @return the pager, reading the stored versions of the table, and with
+	 * the query consistency of &lt;table&gt;.queryConsistency or 
+	 * reporting.harvest.queryConsistency
+	 */
+	private <P extends HarvestPager> P configurePager(P pager, String table, Map<String, String> options){
+		pager.setStoredVersions(new TableVersions(table));
+		String consistency = options.get(table + ".queryConsistency");
+		if (consistency==null){
+			consistency = getGlobalProperties().getProperty(Constants.property_harvest_queryConsistency, "");
+		}
+		pager.setQueryConsistency(consistency);
+		return pager;
+	}
+	
+	/**
+	 * @return reporting.harvest.pageSize, results per search
+	 */
+	private int getPageSize(){
+		return Math.max(1, getIntProperty(Constants.property_harvest_pageSize, Constants.DEFAULT_HARVEST_PAGE_SIZE));
+	}
+	
+	/**
+	 * Harvest the table from all stores, under one lease. The last run, the
+	 * change feed watermark and the checkpoint are kept per table, so they 
+	 * only move on when every store is done.
+	 */
+	private void harvestTable(List<StoreRef> storeRefs, String table, String query, Map<String, String> options) throws Exception{
+		HarvestSession session = createSession(table, options);
+		HarvestLease lease = dbhb.acquireLease(table);
+		if (lease==null){
+			logger.info("harvestTable: another run is harvesting " + table + ", skipping");
+			return;
+		}
+		session.setLease(lease);
 		
-		try{	
-			Collection<QName> assocTypes = serviceRegistry.getDictionaryService().getAllAssociations();
-			for (QName type : assocTypes){
-				String key="";
-				String shortName = replaceNameSpaces(type.toString());
-				String store = (String)serviceRegistry.getNodeService().getProperty(nodeRef, ContentModel.PROP_STORE_PROTOCOL);
-				//logger.debug("STORE="+store);
-				boolean stop = nodeRef.toString().startsWith("versionStore") || nodeRef.toString().startsWith("archive");
-				if (stop || shortName.startsWith("trx") || shortName.startsWith("act") ||  shortName.startsWith("blg_") || 
-						shortName.startsWith("wca") || shortName.startsWith("wcm") ||
-						shortName.startsWith("ver") || shortName.startsWith("fm_") ||
-						shortName.startsWith("emailserver_") || shortName.startsWith("sys_") ||
-						shortName.startsWith("cm_member") || shortName.startsWith("cm_subcategories") ||
-						shortName.startsWith("cm_subscribedBy") || shortName.startsWith("cm_attachments") ||
-						shortName.startsWith("cm_translations") || shortName.startsWith("cm_preference") ||
-						shortName.startsWith("cm_replaces") || shortName.startsWith("cm_ml") ||
-						shortName.startsWith("cm_failed") || shortName.startsWith("cm_references") ||
-						shortName.startsWith("cm_avatar") || shortName.startsWith("rn_") ||
-						shortName.startsWith("imap_") || shortName.startsWith("usr_") ){} 
-				else {
-					try{
-						//logger.debug("ASSOCIATIONS: processing " + shortName + " for " + shortName);
-						List<AssociationRef> targetRefs = 
-								serviceRegistry.getNodeService().getTargetAssocs(nodeRef, type);
-						if (targetRefs.size()>0){
-							logger.debug("Found a Target association! " + type.toString());
-							key = type.toString();
-							logger.debug("Target: key1="+key);
-							key = replaceNameSpaces(key);
-							logger.debug("Target: key2="+key);
-							if (!defBacklist.contains(","+key+",") && !type.equals("-")){
-								logger.debug("Target: Still in the game! key="+key);
-								String sType = getClassToColumnType().getProperty("noderefs","-");
-								if (getReplacementDataType().containsKey(key)){
-									sType = getReplacementDataType().getProperty(key, "-").trim();
-								}
-								logger.debug("Target: Setting " + key + "="+sType);
-								definition.setProperty(key, sType);
-								// extensionPoint: Include username, or name property of target
-							}
-						}
-					} catch (Exception e){
-						logger.debug("processAssociationDefinitions: Target_Association ERROR! key="+key);
-						//e.printStackTrace();
+		boolean done = false;
+		// the date to persist if this run is successful
+		Date thisTimestamp = new Date();
+		try{
+			long[] lastTxn = null;
+			long lag = getIntProperty(Constants.property_harvest_changeFeedLag, Constants.DEFAULT_CHANGE_FEED_LAG);
+			boolean changeFeed = Constants.HARVEST_MODE_CHANGES.equals(getHarvestMode(table, options));
+			if (changeFeed && (nodeDAO==null)){
+				logger.warn("harvestTable: no nodeDAO, harvesting " + table + " by query");
+				changeFeed = false;
+			}
+			if (changeFeed){
+				lastTxn = dbhb.getLastTxn(table);
+			}
+			
+			if (lastTxn!=null){
+				// the transactions since the last run, up to the same commit time in every store
+				long toCommitTime = thisTimestamp.getTime()-lag;
+				long[] watermark = lastTxn;
+				for (StoreRef storeRef : storeRefs){
+					ChangeFeedPager feed = configurePager(new ChangeFeedPager(serviceRegistry, nodeDAO, storeRef, query, 
+							lastTxn[0], lastTxn[1], toCommitTime, getPageSize()), table, options);
+					harvest(session, feed);
+					int closed = dbhb.closeDeletedNodes(table, feed.getDeleted(), storeRef.getProtocol());
+					logger.info("harvestTable: " + table + " in " + storeRef + ": " + feed.getTransactions() 
+							+ " transactions, " + closed + " deleted nodes closed");
+					if (feed.getLastCommitTime()>watermark[1] 
+							|| ((feed.getLastCommitTime()==watermark[1]) && (feed.getLastTxnId()>watermark[0]))){
+						watermark = new long[]{feed.getLastTxnId(), feed.getLastCommitTime()};
 					}
-					
-					try{
-						List<AssociationRef> sourceRefs = 
-							serviceRegistry.getNodeService().getSourceAssocs(nodeRef, type);
-						if (sourceRefs.size()>0){
-							logger.debug("Found a Source association! " + type.toString());
-							
-							key = type.toString();
-							key = replaceNameSpaces(key);
-							if (!defBacklist.contains(","+key+",") && !type.equals("-")){
-								String sType = getClassToColumnType().getProperty("noderefs","-");
-								if (getReplacementDataType().containsKey(key)){
-									sType = getReplacementDataType().getProperty(key, "-").trim();
-								}
-								definition.setProperty(key, sType);
-								//extensionPoint: Include username, or name property of source
-							}
-						}
-					} catch (Exception e){
-						logger.debug("processAssociationDefinitions: Source_Association ERROR! key="+key);
-						//e.printStackTrace();
+				}
+				lease.setLastTxn(watermark[0], watermark[1]);
+			} else {
+				// a failed run left a checkpoint: go on in its store where it stopped, with the
+				// query and the timestamp of that run
+				int first = 0;
+				long cursor = -1;
+				for (int i=0;i<storeRefs.size();i++){
+					long[] checkpoint = dbhb.getCheckpoint(table, storeRefs.get(i).toString());
+					if (checkpoint!=null){
+						first = i;
+						cursor = checkpoint[0];
+						thisTimestamp = new Date(checkpoint[1]);
+						logger.info("harvestTable: resuming " + table + " in " + storeRefs.get(i) + " at dbid " + cursor);
+						break;
 					}
-				} // end exclude trx_orphan
-			} // end for
-		} catch (Exception e) {
-			logger.debug("processAssociationDefinitions: source-target ERROR!");
-			e.printStackTrace();
-			
+				}
+				String lastTimestamp = getLastTimestamp(table);
+				String dateQuery = "";
+				if (!"".equals(lastTimestamp)){
+					dateQuery = " AND @cm\\:modified:[" + lastTimestamp + " TO NOW]";
+				}
+				for (int i=first;i<storeRefs.size();i++){
+					StoreRef storeRef = storeRefs.get(i);
+					HarvestPager pager = configurePager(new HarvestPager(serviceRegistry, storeRef, query, dateQuery, 
+							getPageSize()), table, options);
+					if (i==first) pager.setCursor(cursor);
+					session.setCheckpoint(storeRef.toString(), thisTimestamp.getTime());
+					harvest(session, pager);
+					if (i+1<storeRefs.size()){
+						// the stores before the next one are done
+						lease.checkpoint(storeRefs.get(i+1).toString(), 0, thisTimestamp.getTime());
+					}
+				}
+				if (changeFeed){
+					// the first run, the change feed starts from here on
+					lease.setLastTxn(-1, thisTimestamp.getTime()-lag);
+				}
+			}
+			done = true;
+		} finally {
+			// a failed run keeps the last timestamp, and starts from the same point next time
+			lease.release(done 
+					? new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").format(thisTimestamp)
+					: null);
 		}
-		return definition;
-	}	
+	}
 	
+	/**
+	 * Will be called from script, every few seconds (reporting.cron.harvest.queue).
+	 * Harvests the nodes queued by the behaviours into the tables with 
+	 * &lt;table&gt;.harvestMode=EVENTS of all harvest definitions. The nodes 
+	 * leave the queue once every such table took them; a table that is
+	 * being harvested by another run keeps them queued until the next time.
+	 */
+	public void harvestQueue() throws Exception{
+		if (!dbhb.isQueueEnabled()) return;
+		// one drain at a time here, the lease makes it one in the cluster
+		if (!queueDraining.compareAndSet(false, true)) return;
+		try{
+			HarvestLease lease = dbhb.acquireLease(Constants.TABLE_HARVEST_QUEUE);
+			if (lease==null) return;
+			boolean done = false;
+			Date thisTimestamp = new Date();
+			try{
+				Map<String, Long> queued = dbhb.peekQueue(
+						getIntProperty(Constants.property_harvest_queueBatchSize, Constants.DEFAULT_QUEUE_BATCH_SIZE));
+				if (!queued.isEmpty() && harvestQueued(queued)){
+					dbhb.dequeueNodes(queued);
+				}
+				done = true;
+			} finally {
+				lease.release(done 
+						? new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").format(thisTimestamp)
+						: null);
+			}
+		} finally {
+			queueDraining.set(false);
+		}
+	}
+	
+	/**
+	 * @param queued noderef -&gt; queued at
+	 * @return true if all tables took the nodes
+	 */
+	private boolean harvestQueued(Map<String, Long> queued) throws Exception{
+		Map<String, String> queries = new LinkedHashMap<String, String>();
+		Map<String, String> options = new LinkedHashMap<String, String>();
+		for (NodeRef harvestDefinition : getEventHarvestDefinitions()){
+			Map<String, String> lines = readHarvestDefinition(harvestDefinition);
+			for (Map.Entry<String, String> line : lines.entrySet()){
+				if (line.getKey().indexOf('.')<0){
+					if (Constants.HARVEST_MODE_EVENTS.equals(getHarvestMode(line.getKey(), lines))){
+						queries.put(line.getKey(), line.getValue());
+					}
+				} else {
+					options.put(line.getKey(), line.getValue());
+				}
+			}
+		}
+		// nothing to harvest them into
+		if (queries.isEmpty()) return true;
+		
+		// the queued nodes per harvested store
+		Map<StoreRef, Map<NodeRef, Long>> perStore = new LinkedHashMap<StoreRef, Map<NodeRef, Long>>();
+		for (String store : getStoreList().split(",")){
+			if (!"".equals(store.trim())) perStore.put(new StoreRef(store.trim()), new LinkedHashMap<NodeRef, Long>());
+		}
+		for (Map.Entry<String, Long> entry : queued.entrySet()){
+			if (!NodeRef.isNodeRef(entry.getKey())) continue;
+			NodeRef nodeRef = new NodeRef(entry.getKey());
+			Map<NodeRef, Long> nodes = perStore.get(nodeRef.getStoreRef());
+			if (nodes!=null) nodes.put(nodeRef, entry.getValue());
+		}
+		
+		// fill the shared caches before the worker threads use them
+		getClassToColumnType();
+		getReplacementDataType();
+		getNameSpaces();
+		getBlacklist();
+		
+		boolean done = true;
+		for (Map.Entry<StoreRef, Map<NodeRef, Long>> store : perStore.entrySet()){
+			if (store.getValue().isEmpty()) continue;
+			for (Map.Entry<String, String> query : queries.entrySet()){
+				try{
+					done &= harvestQueuedTable(store.getKey(), query.getKey(), query.getValue(), options, store.getValue());
+				} catch (Exception e){
+					logger.error("harvestQueue: " + query.getKey() + " in " + store.getKey() + " failed: " + e.getMessage());
+					done = false;
+				}
+			}
+		}
+		return done;
+	}
+	
+	/**
+	 * @return false if another run holds the table
+	 */
+	private boolean harvestQueuedTable(StoreRef storeRef, String table, String query, Map<String, String> options, 
+			Map<NodeRef, Long> nodes) throws Exception{
+		HarvestSession session = createSession(table, options);
+		HarvestLease lease = dbhb.acquireLease(table);
+		if (lease==null){
+			logger.debug("harvestQueuedTable: another run is harvesting " + table + ", keeping the queue");
+			return false;
+		}
+		session.setLease(lease);
+		try{
+			NodeListPager pager = configurePager(new NodeListPager(serviceRegistry, storeRef, query, nodes, 
+					getPageSize()), table, options);
+			harvest(session, pager);
+			dbhb.closeDeletedNodes(table, pager.getDeleted(), storeRef.getProtocol());
+		} finally {
+			// the last run date belongs to the harvest by query
+			lease.release(null);
+		}
+		return true;
+	}
+	
+	/**
+	 * @return the harvest definitions with query tables, a table in them may 
+	 * have harvestMode=EVENTS
+	 */
+	private List<NodeRef> getEventHarvestDefinitions(){
+		List<NodeRef> definitions = new ArrayList<NodeRef>();
+		SearchParameters sp = new SearchParameters();
+		sp.setLanguage(SearchService.LANGUAGE_LUCENE);
+		sp.addStore(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE);
+		sp.setQuery("TYPE:\"reporting:harvestDefinition\"");
+		ResultSet rs = searchService.query(sp);
+		try{
+			for (NodeRef nodeRef : rs.getNodeRefs()){
+				if (Boolean.TRUE.equals(nodeService.getProperty(nodeRef, ReportingModel.PROP_REPORTING_QUERYTABLES_ENABLED))){
+					definitions.add(nodeRef);
+				}
+			}
+		} finally {
+			rs.close();
+		}
+		return definitions;
+	}
+	
+	private long harvest(HarvestSession session, HarvestPager pager) throws Exception{
+		// a connection of its own for the writer thread
+		Connection conn = dbhb.borrowConnection();
+		RowWriter writer = null;
+		try{
+			if (Constants.SINGLE_INSTANCE.equals(session.getMethod())){
+				dbhb.ensureUniqueKey(session.getTable());
+			}
+			conn.setAutoCommit(true);
+			writer = dbhb.createRowWriter(conn, session.getWriteMode(), session.getCommitSize(), session.getCommitInterval());
+			HarvestEngine engine = new HarvestEngine(
+					serviceRegistry.getTransactionService().getRetryingTransactionHelper(),
+					new Extractor(),
+					getIntProperty(Constants.property_harvest_threads, Constants.DEFAULT_HARVEST_THREADS),
+					getIntProperty(Constants.property_harvest_queueSize, Constants.DEFAULT_HARVEST_QUEUE_SIZE),
+					getIntProperty(Constants.property_harvest_chunkSize, Constants.DEFAULT_HARVEST_CHUNK_SIZE));
+			engine.setCheckpointInterval(getIntProperty(Constants.property_harvest_checkpointInterval, 
+					Constants.DEFAULT_CHECKPOINT_INTERVAL));
+			long rows = engine.run(session, pager, writer);
+			writer.close();
+			writer = null;
+			return rows;
+		} finally {
+			if (writer!=null){
+				writer.discard();
+				try{
+					writer.close();
+				}catch(SQLException se){
+				}// nothing we can do
+			}
+			try{
+				conn.close();
+			}catch(SQLException se){
+			}// nothing we can do
+		}
+	}
+	
+	private int getIntProperty(String key, int defaultValue){
+		try{
+			return Integer.parseInt(getGlobalProperties().getProperty(key, String.valueOf(defaultValue)).trim());
+		} catch (NumberFormatException nfe){
+			logger.warn("Invalid value for " + key + ", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+	
+	/**
+	 * The property and association extraction, for the HarvestEngine
+	 */
+	private class Extractor implements NodeExtractor{
+		
+		public void prefetch(List<HarvestItem> items){
+			prefetchNodes(items);
+		}
+		
+		public void extract(HarvestItem item, Properties definition, ReportLine rl) throws Exception{
+			processNode(definition, rl, item.getNodeRef(), item.getOrigNodeRef(), getReplacementDataType());
+		}
+		
+		public void defineColumns(String table, Properties definition) throws SQLException{
+			setTableDefinition(definition, table);
+		}
+	}
+
+
+	/**
+	 * The versions stored in a reporting table. All rows of a node, live and
+	 * versions, have the uuid of the live node in sys_node_uuid.
+	 */
+	private class TableVersions implements StoredVersions{
+		
+		private final String table;
+		
+		TableVersions(String table){
+			this.table = table;
+		}
+		
+		public Map<NodeRef, String> getLatestLabels(List<NodeRef> nodeRefs){
+			List<String> uuids = new ArrayList<String>(nodeRefs.size());
+			for (NodeRef nodeRef : nodeRefs){
+				uuids.add(nodeRef.getId());
+			}
+			Map<String, String> labels = dbhb.getLatestVersionLabels(table, uuids);
+			Map<NodeRef, String> latestLabels = new HashMap<NodeRef, String>();
+			for (NodeRef nodeRef : nodeRefs){
+				String label = labels.get(nodeRef.getId());
+				if (label!=null) latestLabels.put(nodeRef, label);
+			}
+			return latestLabels;
+		}
+	}
+
+
+// ----------------------------------------------------------------------------	
+// util methods
+// ----------------------------------------------------------------------------	
+
 	/**
 	 * 
 	 * @param definition
@@ -643,84 +1119,388 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
 				}
 			} // end while
 		} catch (Exception e){
-			e.printStackTrace();
+			e.printStackTrace();
+		}
+		//logger.debug("Exit processPropertyDefinitions");
+		return definition;
+	}
+	
+	/**
+	 * Harvest a node in a single pass: fill the ReportLine with its values,
+	 * and add the columns they need to the definition. The properties, type,
+	 * aspects and associations are read from the NodeService once.
+	 * @param origNodeRef the original noderef if nodeRef is a version, else null
+	 */
+	private void processNode(Properties definition, ReportLine rl, NodeRef nodeRef, 
+			NodeRef origNodeRef, Properties replacementTypes) throws Exception{
+		NodeService nodeService = serviceRegistry.getNodeService();
+		Properties columnTypes = getClassToColumnType();
+		String blacklist = getBlacklist();
+		
+		Map<QName, Serializable> properties = nodeService.getProperties(nodeRef);
+		QName myType = nodeService.getType(nodeRef);
+		ProjectionPlan plan = getProjectionPlan(myType, nodeService.getAspects(nodeRef));
+		if (logger.isDebugEnabled())
+			logger.debug("processNode: " + properties.get(ContentModel.PROP_NAME) + " (" + nodeRef + ")");
+		
+		if (plan.isContent()){
+			// pre-set, they need to be cleared for cases the checkout has been undone
+			rl.setLine("cm_workingcopylink", columnTypes.getProperty("noderef",""), null, replacementTypes);
+			rl.setLine("cm_lockOwner", columnTypes.getProperty("noderef",""), null, replacementTypes);
+			rl.setLine("cm_lockType", columnTypes.getProperty("noderef",""), null, replacementTypes);
+			rl.setLine("cm_expiryDate", columnTypes.getProperty("datetime",""), null, replacementTypes);
+		}
+		
+		// Properties, those of the type and aspects through the plan
+		int planned = 0;
+		for (ProjectionPlan.PropertyColumn column : plan.getProperties()){
+			Serializable value = properties.get(column.getQName());
+			if ((value==null) && !properties.containsKey(column.getQName())) continue;
+			planned++;
+			if (!column.isSkipped()){
+				setProperty(definition, rl, column, value);
+			}
+		}
+		if (planned<properties.size()){
+			// residual properties, not defined by the type or its aspects
+			for (Map.Entry<QName, Serializable> entry : properties.entrySet()){
+				if (plan.hasProperty(entry.getKey())) continue;
+				ProjectionPlan.PropertyColumn column = getPropertyColumn(entry.getKey());
+				if (!column.isSkipped()){
+					setProperty(definition, rl, column, entry.getValue());
+				}
+			}
+		}
+		
+		// Child and Parent References
+		try{
+			List<ChildAssociationRef> childCars = nodeService.getChildAssocs(nodeRef);
+			if (childCars.size()>0){
+				StringBuilder value = new StringBuilder();
+				for (ChildAssociationRef car : childCars){
+					if (value.length()>0) value.append(",");
+					value.append(car.getChildRef());
+				}
+				setColumn(definition, rl, "child_noderef", columnTypes.getProperty("noderefs","-"), value.toString(), replacementTypes);
+			}
+		} catch (Exception e){
+			logger.error("processNode: child_noderef of " + nodeRef + ": " + e.getMessage());
+		}
+		ChildAssociationRef parentCar = null;
+		try{
+			parentCar = nodeService.getPrimaryParent(nodeRef);
+			if (parentCar!=null){
+				setColumn(definition, rl, "parent_noderef", columnTypes.getProperty("noderef","-"), 
+						parentCar.getParentRef().toString(), replacementTypes);
+			}
+		} catch (Exception e){
+			logger.debug("processNode: parent_noderef of " + nodeRef + ": " + e.getMessage());
+		}
+		
+		// Target and Source associations, not for versions and archived nodes.
+		// A single fetch of each for all association types, grouped per type
+		if (!nodeRef.toString().startsWith("versionStore") && !nodeRef.toString().startsWith("archive")){
+			try{
+				// extensionPoint: Include username, or name property of target
+				for (Map.Entry<String, StringBuilder> target : groupAssociations(
+						nodeService.getTargetAssocs(nodeRef, RegexQNamePattern.MATCH_ALL), true, blacklist).entrySet()){
+					setColumn(definition, rl, target.getKey(), columnTypes.getProperty("noderefs","-"), 
+							target.getValue().toString(), replacementTypes);
+				}
+			} catch (Exception e){
+				logger.debug("processNode: Target_Association ERROR! " + nodeRef + ": " + e.getMessage());
+			}
+			try{
+				// extensionPoint: Include username, or name property of source
+				for (Map.Entry<String, StringBuilder> source : groupAssociations(
+						nodeService.getSourceAssocs(nodeRef, RegexQNamePattern.MATCH_ALL), false, blacklist).entrySet()){
+					setColumn(definition, rl, source.getKey(), columnTypes.getProperty("noderefs","-"), 
+							source.getValue().toString(), replacementTypes);
+				}
+			} catch (Exception e){
+				logger.debug("processNode: Source_Association ERROR! " + nodeRef + ": " + e.getMessage());
+			}
+		}
+		
+		// the columns of the shape: noderef, path, site, and for content, versions and persons their own
+		definition.putAll(plan.getDefinition());
+		rl.setLine("noderef", columnTypes.getProperty("noderef"), nodeRef.toString(), replacementTypes);
+		PathCache.Location location = getLocation(nodeRef, plan.isSite(), properties.get(ContentModel.PROP_NAME), parentCar);
+		if (location.getPath()!=null){
+			rl.setLine("path", columnTypes.getProperty("path"), location.getPath(), replacementTypes);
+		}
+		if (location.getSite()!=null){
+			rl.setLine("site", columnTypes.getProperty("site"), location.getSite(), replacementTypes);
+		}
+		
+		if (plan.isContent()){
+			// the cm:content property, read with the others
+			ContentData contentData = (ContentData)properties.get(ContentModel.PROP_CONTENT);
+			if (contentData!=null){
+				rl.setLine("size", columnTypes.getProperty("size"), Long.toString(contentData.getSize()), replacementTypes);
+				String mimetype = contentData.getMimetype();
+				if (mimetype==null) mimetype="NULL";
+				rl.setLine("mimetype", columnTypes.getProperty("mimetype"), mimetype, replacementTypes);
+			} else {
+				logger.debug("Huh, no content?");
+			}
+			rl.setLine("orig_noderef", columnTypes.getProperty("noderef"), 
+					(origNodeRef!=null) ? origNodeRef.toString() : nodeRef.toString(), replacementTypes);
+		} else {
+			logger.debug(myType.toString() + " is no content subclass!");
+		}
+		
+		// if it is a versioned noderef, add the original noderef too
+		if (origNodeRef!=null){
+			definition.setProperty("orig_noderef", columnTypes.getProperty("noderef","-"));
+		}
+	}
+	
+	/**
+	 * Define the column of the property, and set its value
+	 */
+	private void setProperty(Properties definition, ReportLine rl, ProjectionPlan.PropertyColumn column, Serializable value){
+		if ((column.getDefinitionType()!=null) && !definition.containsKey(column.getColumn())){
+			definition.setProperty(column.getColumn(), column.getDefinitionType());
+		}
+		if (column.getValueType()!=null){
+			try{
+				rl.setLine(column.getColumn(), column.getValueType(), column.getConverter().convert(value));
+			} catch (Exception e){
+				logger.info("processNode: Error in object, property "+column.getColumn()+" not found! (" + column.getDataType() +")");
+			}
+		}
+	}
+	
+	/**
+	 * @param aspects the aspects of the node
+	 * @return the plan for nodes of this type with these aspects, compiled on first use
+	 */
+	private ProjectionPlan getProjectionPlan(QName type, Set<QName> aspects) throws Exception{
+		List<Object> shape = Arrays.asList(type, aspects);
+		ProjectionPlan plan = projectionPlans.get(shape);
+		if (plan==null){
+			plan = compileProjectionPlan(type, aspects);
+			projectionPlans.put(Arrays.<Object>asList(type, new HashSet<QName>(aspects)), plan);
+		}
+		return plan;
+	}
+	
+	private ProjectionPlan compileProjectionPlan(QName type, Set<QName> aspects) throws Exception{
+		if (logger.isDebugEnabled())
+			logger.debug("compileProjectionPlan: " + type + " " + aspects);
+		DictionaryService dictionaryService = serviceRegistry.getDictionaryService();
+		Properties columnTypes = getClassToColumnType();
+		Properties replacementTypes = getReplacementDataType();
+		
+		Map<QName, ProjectionPlan.PropertyColumn> columns = new LinkedHashMap<QName, ProjectionPlan.PropertyColumn>();
+		try{
+			TypeDefinition shape = dictionaryService.getAnonymousType(type, aspects);
+			for (QName qname : shape.getProperties().keySet()){
+				columns.put(qname, getPropertyColumn(qname));
+			}
+		} catch (RuntimeException e){
+			// a type or aspect of a model that is gone, its properties are residual then
+			logger.warn("compileProjectionPlan: " + type + ": " + e.getMessage());
+		}
+		
+		Properties shapeDefinition = new Properties();
+		shapeDefinition.setProperty("noderef", columnTypes.getProperty("noderef","-"));
+		shapeDefinition.setProperty("path", columnTypes.getProperty("path","-"));
+		shapeDefinition.setProperty("site", columnTypes.getProperty("site","-"));
+		boolean content = dictionaryService.isSubClass(type, ContentModel.TYPE_CONTENT);
+		if (content){
+			shapeDefinition.setProperty("size", columnTypes.getProperty("size","-"));
+			shapeDefinition.setProperty("mimetype", columnTypes.getProperty("mimetype","-"));
+			shapeDefinition.setProperty("orig_noderef", columnTypes.getProperty("noderef","-"));
+			// and some stuff default reporting is dependent on
+			shapeDefinition.setProperty("cm_workingcopylink", columnTypes.getProperty("noderef","-"));
+			shapeDefinition.setProperty("cm_lockOwner", columnTypes.getProperty("noderef","-"));
+			shapeDefinition.setProperty("cm_lockType", columnTypes.getProperty("noderef","-"));
+			shapeDefinition.setProperty("cm_expiryDate", columnTypes.getProperty("datetime","-"));
+			shapeDefinition.setProperty("sys_archivedDate", columnTypes.getProperty("datetime","-"));
+			shapeDefinition.setProperty("sys_archivedBy", columnTypes.getProperty("noderef","-"));
+			shapeDefinition.setProperty("sys_archivedOriginalOwner", columnTypes.getProperty("noderef","-"));
+			if (aspects.contains(ContentModel.ASPECT_VERSIONABLE)){
+				String versionType = columnTypes.getProperty("text","-");
+				if (replacementTypes.containsKey("cm_versionLabel")){
+					versionType = replacementTypes.getProperty("cm_versionLabel", "-").trim();
+				} 
+				shapeDefinition.setProperty("cm_versionLabel", versionType);
+				versionType = columnTypes.getProperty("text","-");
+				if (replacementTypes.containsKey("cm_versionType")){
+					versionType = replacementTypes.getProperty("cm_versionType", "-").trim();
+				}
+				shapeDefinition.setProperty("cm_versionType", versionType);
+			}
+		}
+		if (dictionaryService.isSubClass(type, ContentModel.TYPE_PERSON)){
+			shapeDefinition.setProperty("enabled", columnTypes.getProperty("boolean","-"));
+		}
+		return new ProjectionPlan(columns, shapeDefinition, content, SiteModel.TYPE_SITE.equals(type));
+	}
+	
+	/**
+	 * @return how the property becomes a column, resolved on first use
+	 */
+	private ProjectionPlan.PropertyColumn getPropertyColumn(QName qname) throws Exception{
+		ProjectionPlan.PropertyColumn column = propertyColumns.get(qname);
+		if (column==null){
+			column = compilePropertyColumn(qname);
+			propertyColumns.put(qname, column);
+		}
+		return column;
+	}
+	
+	private ProjectionPlan.PropertyColumn compilePropertyColumn(QName qname) throws Exception{
+		String key = qname.toString();
+		if (key.startsWith("{urn:schemas_microsoft_com:}")){
+			// created when doing WebDAV
+			return new ProjectionPlan.PropertyColumn(qname, null, null, null, null, null);
+		}
+		key = replaceNameSpaces(key);
+		if (getBlacklist().contains(","+key+",")){
+			return new ProjectionPlan.PropertyColumn(qname, null, null, null, null, null);
+		}
+		Properties replacementTypes = getReplacementDataType();
+		String dtype = "";
+		String type = "-";
+		ValueConverter converter = null;
+		PropertyDefinition propertyDefinition = serviceRegistry.getDictionaryService().getProperty(qname);
+		if ((propertyDefinition!=null) && (propertyDefinition.getDataType()!=null)){
+			dtype = propertyDefinition.getDataType().toString();
+			dtype = dtype.substring(dtype.indexOf("}")+1, dtype.length()).trim();
+			type = getClassToColumnType().getProperty(dtype,"-");
+			converter = getValueConverters().get(propertyDefinition.getDataType().getName(), propertyDefinition.isMultiValued());
+		}
+		String definitionType = replacementTypes.containsKey(key) 
+				? replacementTypes.getProperty(key, "-").trim() : type;
+		if ("-".equals(definitionType) || "".equals(definitionType)){
+			definitionType = null;
+		}
+		ColumnType valueType = null;
+		if (!"-".equals(type)){
+			// the replacement type wins, as in ReportLine.setLine
+			valueType = ColumnType.forDefinition(replacementTypes.getProperty(key, type).trim());
+		}
+		return new ProjectionPlan.PropertyColumn(qname, key, definitionType, valueType, dtype, converter);
+	}
+	
+	/**
+	 * Drop the compiled plans, for a changed blacklist, replacement types or model
+	 */
+	private void invalidateProjectionPlans(){
+		projectionPlans.clear();
+		propertyColumns.clear();
+		associationColumns.clear();
+	}
+	
+	/**
+	 * Load the nodes, their properties and aspects into the node cache with a
+	 * few bulk queries, instead of a few queries per node during extraction.
+	 * Nothing is done without a NodeBulkLoader.
+	 */
+	private void prefetchNodes(List<HarvestItem> items){
+		if ((nodeBulkLoader==null) || items.isEmpty()) return;
+		List<NodeRef> nodeRefs = new ArrayList<NodeRef>(items.size());
+		for (HarvestItem item : items){
+			nodeRefs.add(item.getNodeRef());
+		}
+		try{
+			nodeBulkLoader.cacheNodes(nodeRefs);
+		} catch (RuntimeException e){
+			// only an optimization, the nodes are read one by one then
+			logger.warn("prefetchNodes: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * The display path and site of the node, derived from those of its primary
+	 * parent. The parent is resolved once, and then kept in the PathCache.
+	 */
+	private PathCache.Location getLocation(NodeRef nodeRef, boolean isSite, Serializable name, ChildAssociationRef parentCar){
+		NodeRef parentRef = (parentCar==null) ? null : parentCar.getParentRef();
+		if (parentRef==null){
+			// the root, or a node without a primary parent (versionStore?!)
+			return resolveLocation(nodeRef);
+		}
+		PathCache.Location parent = pathCache.get(parentRef);
+		if (parent==null){
+			parent = resolveLocation(parentRef);
+			pathCache.put(parentRef, parent);
+		}
+		String path = null;
+		if (parent.getPath()!=null){
+			path = ("/".equals(parent.getPath()) ? "" : parent.getPath()) + "/" + name;
+		}
+		String site = isSite ? (String)name : parent.getSite();
+		return new PathCache.Location(path, site);
+	}
+	
+	/**
+	 * Walk up the tree for the display path and site of the node
+	 * @return the location, path or site null if the node has none
+	 */
+	private PathCache.Location resolveLocation(NodeRef nodeRef){
+		String path = null;
+		String site = null;
+		try{
+			path = toDisplayPath(serviceRegistry.getNodeService().getPath(nodeRef));
+		} catch (Exception e){
+			// it does not have a path. Bad luck. Don't crash (versionStore?!)
 		}
-		//logger.debug("Exit processPropertyDefinitions");
-		return definition;
+		try{
+			site = getSiteName(nodeRef);
+		} catch (Exception e) {
+			// it is not in a site. Bad luck. Don't crash (versionStore?!)
+		}
+		return new PathCache.Location(path, site);
 	}
 	
-	private Properties getTableDefinitionFromQueue(Properties nameSpaces) throws Exception{
-		logger.debug("Enter getTableDefinitionFromQueue");
-		Properties definition = new Properties(); // set of propname-proptype
-		String defBacklist = ",sys_node_uuid,"+getBlacklist();
-		int queuesize = queue.size();
-		for (int q=0;q<queue.size();q++){
-		//for (NodeRef nodeRef : queue){
-			NodeRef nodeRef = queue.get(q);
-			try{
-				String name = (String)serviceRegistry.getNodeService().getProperty(nodeRef, ContentModel.PROP_NAME);
-				
-				logger.debug("getTableDefinitionFromQueue: "+q+"/"+queuesize+ ": " + name);
-				// Process Properties
-				definition = processPropertyDefinitions(definition, nodeRef, getBlacklist());
-		//logger.debug("getTableDefinitionFromQueue: Returned from processPropertyDefinitions");
-			
-				// if it is a versioned noderef, add the original noderef too
-				if (versionNodes.containsKey(nodeRef.toString())){
-					definition.setProperty("orig_noderef", getClassToColumnType().getProperty("noderef","-"));
-				}
-			} catch (Exception e) {
-				logger.debug("getTableDefinitionFromQueue: ERROR: versionNodes.containsKey or before");
-				e.printStackTrace();
-			}
-	//logger.debug("getTableDefinitionFromQueue: try/catch survived");
-					
-			// Process 'manual' properties
-			definition.setProperty("site", getClassToColumnType().getProperty("site","-"));
-			definition.setProperty("path", getClassToColumnType().getProperty("path","-"));
-			definition.setProperty("noderef", getClassToColumnType().getProperty("noderef","-"));
-	//logger.debug("getTableDefinitionFromQueue: custom props survived");
-			QName myType = serviceRegistry.getNodeService().getType(nodeRef);
-			if (serviceRegistry.getDictionaryService().isSubClass(myType, ContentModel.TYPE_CONTENT)){
-				definition.setProperty("size", getClassToColumnType().getProperty("size","-"));
-				definition.setProperty("mimetype", getClassToColumnType().getProperty("mimetype","-"));
-				definition.setProperty("orig_noderef", getClassToColumnType().getProperty("noderef","-"));
-				// and some stuff default reporting is dependent on
-				definition.setProperty("cm_workingcopylink", getClassToColumnType().getProperty("noderef","-"));
-				definition.setProperty("cm_lockOwner", getClassToColumnType().getProperty("noderef","-"));
-				definition.setProperty("cm_lockType", getClassToColumnType().getProperty("noderef","-"));
-				definition.setProperty("cm_expiryDate", getClassToColumnType().getProperty("datetime","-"));
-				definition.setProperty("sys_archivedDate", getClassToColumnType().getProperty("datetime","-"));
-				definition.setProperty("sys_archivedBy", getClassToColumnType().getProperty("noderef","-"));
-				definition.setProperty("sys_archivedOriginalOwner", getClassToColumnType().getProperty("noderef","-"));
-			}
-			if (serviceRegistry.getDictionaryService().isSubClass(myType, ContentModel.TYPE_PERSON)){
-				definition.setProperty("enabled", getClassToColumnType().getProperty("boolean","-"));
-			}
-			QName objectType = serviceRegistry.getNodeService().getType(nodeRef);
-			if ((serviceRegistry.getNodeService().hasAspect(nodeRef, ContentModel.ASPECT_VERSIONABLE)) &&
-					(serviceRegistry.getDictionaryService().isSubClass(objectType, ContentModel.TYPE_CONTENT))){
-				String type = getClassToColumnType().getProperty("text","-");
-				if (getReplacementDataType().containsKey("cm_versionLabel")){
-					type = getReplacementDataType().getProperty("cm_versionLabel", "-").trim();
-				} 
-				definition.setProperty("cm_versionLabel", type);
-					
-				type = getClassToColumnType().getProperty("text","-");
-				if (getReplacementDataType().containsKey("cm_versionType")){
-					type = getReplacementDataType().getProperty("cm_versionType", "-").trim();
-				}
-				definition.setProperty("cm_versionType", type);
-				
+	/**
+	 * Set the value, and define the column with its replacement type if any
+	 */
+	private void setColumn(Properties definition, ReportLine rl, String key, String type, 
+			String value, Properties replacementTypes){
+		definition.setProperty(key, replacementTypes.containsKey(key) 
+				? replacementTypes.getProperty(key, "-").trim() : type);
+		rl.setLine(key, type, value, replacementTypes);
+	}
+	
+	/**
+	 * Group the associations of a node per column, skipped and blacklisted
+	 * types left out
+	 * @param targets true to collect the targets, false for the sources
+	 * @return column -&gt; comma separated noderefs
+	 */
+	private Map<String, StringBuilder> groupAssociations(List<AssociationRef> assocs, boolean targets, String blacklist){
+		Map<String, StringBuilder> grouped = new LinkedHashMap<String, StringBuilder>();
+		for (AssociationRef ar : assocs){
+			String key = getAssociationColumn(ar.getTypeQName());
+			if ((key==null) || blacklist.contains(","+key+",")) continue;
+			StringBuilder value = grouped.get(key);
+			if (value==null){
+				value = new StringBuilder();
+				grouped.put(key, value);
+			} else {
+				value.append(",");
 			}
-	//logger.debug("getTableDefinitionFromQueue: content specific props survived");		
-			// Process Associations
-			definition = processAssociationDefinitions(definition, nodeRef, getBlacklist());
-	//logger.debug("getTableDefinitionFromQueue: associations survived");		
-			//list door property keys
-		} // end for sn:queue
-		logger.debug("Exit getTableDefinitionFromQueue");
-		return definition;
+			value.append(targets ? ar.getTargetRef() : ar.getSourceRef());
+		}
+		return grouped;
+	}
+	
+	/**
+	 * @return the column of the association type, null if it is never harvested
+	 */
+	private String getAssociationColumn(QName type){
+		String key = associationColumns.get(type);
+		if (key==null){
+			key = replaceNameSpaces(type.toString());
+			if (SKIPPED_ASSOCIATIONS.matcher(key).lookingAt()) key = "";
+			associationColumns.put(type, key);
+		}
+		return "".equals(key) ? null : key;
 	}
 	
 	/**
@@ -731,12 +1511,11 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
 	 */
 	private void setTableDefinition(Properties props, String tableName) throws SQLException{
 		logger.debug("Enter setTableDefinition tableName="+tableName);
-		// get the existing table definition
-		Connection conn = dbhb.getConnection();
-		conn.setAutoCommit(true);
-		Statement stmt =conn.createStatement();
-		
-		Properties tableDesc = dbhb.getTableDescription(stmt, tableName);
+		// get the existing table definition, from the schema registry
+		Map<String, String> tableDesc = dbhb.getTableColumns(tableName);
+		Map<String, String> missing = new LinkedHashMap<String, String>();
+		Connection conn = null;
+		Statement stmt = null;
 		
 		// check if our properties are defined or not
 		Enumeration keys = props.keys();
@@ -747,12 +1526,35 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
 			if ((!"-".equals(type)) && ((!"".equals(type))) && (!tableDesc.containsKey(key))){ 
 				if (logger.isDebugEnabled())
 					logger.debug("Adding column: " + key +"=" + type);
-				dbhb.extendTable(stmt, tableName, key, type);
+				missing.put(key, type);
 			} else {
 				if (logger.isDebugEnabled())
 					logger.debug("DEFINITION Column " + key + " already exists.");
 			} // end if else
 		} // end while
+		
+		if (missing.isEmpty() && !dbhb.isAutoIndex()){
+			logger.debug("Exit setTableDefinition");
+			return;
+		}
+		// a connection of its own, harvests of other tables may run at the same time
+		conn = dbhb.borrowConnection();
+		try{
+			conn.setAutoCommit(true);
+			if (!missing.isEmpty()){
+				// all new columns in a single ALTER TABLE
+				stmt = conn.createStatement();
+				dbhb.extendTable(stmt, tableName, missing);
+			}
+			if (dbhb.isAutoIndex()){
+				dbhb.ensureIndexes(conn, tableName);
+			}
+		} finally {
+			if (stmt!=null){
+				stmt.close();
+			}
+			conn.close();
+		}
 		logger.debug("Exit setTableDefinition");
 	} // end setTableDefinition
 	
@@ -824,94 +1626,6 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
 		return rl;
 	}
 	
-	/**
-	 * 
-	 * @param rl
-	 * @param sn
-	 * @return
-	 * @throws Exception 
-	 */
-	private ReportLine processAssociationValues(ReportLine rl, NodeRef nodeRef, String defBacklist) throws Exception{
-		//Child References
-		try{
-			List<ChildAssociationRef> childCars= serviceRegistry.getNodeService().getChildAssocs(nodeRef);
-			if (childCars.size()>0){
-				String value="";
-				for (ChildAssociationRef car:childCars){
-					if (value.length()>0) value +=",";
-					value += car.getChildRef(); 
-				}
-				rl.setLine("child_noderef", getClassToColumnType().getProperty("noderefs","-"), value, getReplacementDataType());
-			}
-		} catch (Exception e){
-			logger.error("Error in processing processAssociationValues");
-			e.printStackTrace();
-		}
-		
-		// Parent References
-		try{
-			ChildAssociationRef parentCar= serviceRegistry.getNodeService().getPrimaryParent(nodeRef);
-			if (parentCar!=null){
-				String value = parentCar.getParentRef().toString();
-				rl.setLine("parent_noderef", getClassToColumnType().getProperty("noderef","-"), value, getReplacementDataType());
-			}
-		} catch (Exception e){}
-		
-		
-		// Other associations
-		Collection<QName> assocTypes = serviceRegistry.getDictionaryService().getAllAssociations();
-		for (QName type : assocTypes){
-			String shortName = replaceNameSpaces(type.toString());
-			//logger.debug("ASSOCIATIONS: processing " + shortName + " for " + sn.getTypeShort());
-			if (shortName.startsWith("trx") || shortName.startsWith("act") || shortName.startsWith("wca")){
-				// nothing. Dont like these namespaces, that's all.
-			} 
-			else {
-				try{
-					List<AssociationRef> targetRefs = 
-							serviceRegistry.getNodeService().getTargetAssocs(nodeRef, type);
-					if (targetRefs.size()>0){
-						String key = type.toString();
-						key = replaceNameSpaces(key);
-						if (!defBacklist.contains(","+key+",") && !type.equals("-")){
-							if ((targetRefs!=null) && targetRefs.size()>0){
-								String valueRef="";
-								for (AssociationRef ar:targetRefs){
-									if (valueRef.length()>0) valueRef +=",";
-									valueRef += ar.getTargetRef().toString(); 
-								}
-								rl.setLine(key, getClassToColumnType().getProperty("noderefs","-"), valueRef, getReplacementDataType());
-							}
-						} // end if blacklist
-						// extensionPoint: Include username, or name property of target
-					}
-				} catch (Exception e){}
-				try{
-					List<AssociationRef> sourceRefs = 
-						serviceRegistry.getNodeService().getSourceAssocs(nodeRef, type);
-					if (sourceRefs.size()>0){
-						String key = type.toString();
-						key = replaceNameSpaces(key);
-						if (!defBacklist.contains(","+key+",") && !type.equals("-")){
-							if ((sourceRefs!=null) && sourceRefs.size()>0){
-								String value="";
-								for (AssociationRef ar:sourceRefs){
-									if (value.length()>0) value +=",";
-									value += ar.getSourceRef().toString(); 
-								}
-								rl.setLine(key, getClassToColumnType().getProperty("noderefs","-"), value, getReplacementDataType());
-							}
-							//extensionPoint: Include username, or name property of source
-						} // end if blacklist
-					}
-					
-				} catch (Exception e){}
-			} // it is not a trx_
-		} // end or
-		
-		return rl;
-	}
-	
 	 /**
      * @param path
      * @return  display path
@@ -940,7 +1654,7 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
         return displayPath.toString();
     }
    
-    private void storeRegionPath(Statement stmt, ReportLine rl, NodeRef nodeRef, String regionPath, String columnName, String labelValue){
+    private void storeRegionPath(BatchWriter writer, ReportLine rl, NodeRef nodeRef, String regionPath, String columnName, String labelValue){
     	//logger.debug("storeRegionPath: " + table + " | " + regionPath);
     	columnName = columnName.replaceAll(" ", "_").trim();
     	columnName = columnName.replaceAll("-", "_").trim();
@@ -949,8 +1663,7 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
     		rl.setLine("sys_node_uuid", getClassToColumnType().getProperty("noderef"), uuid.split("SpacesStore/")[1], getReplacementDataType());
     		rl.setLine(columnName, getClassToColumnType().getProperty("path"), regionPath, getReplacementDataType());
     		rl.setLine("label", getClassToColumnType().getProperty("label"), labelValue, getReplacementDataType());
-    		int numberOfRows = dbhb.insertIntoTable(stmt, rl);
-			//logger.debug("storeRegionPath: " + numberOfRows+ " rows inserted");
+    		writer.insert(rl);
 	    } catch (Exception e){
 			e.printStackTrace();
 		} finally {
@@ -961,22 +1674,27 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
     /**
      * 
      * @param table
+     * @return false if the table could not be filled completely
      */
-    public void processPerson(String tableName){
+    public boolean processPerson(String tableName){
     	tableName = tableName.replaceAll(" ", "_").trim();
     	tableName = tableName.replaceAll("-", "_").trim();
     	logger.debug("Enter processPerson");
     	dbhb.createEmptyTables(tableName);
+    	dbhb.ensureUniqueKey(tableName);
     	ReportLine rl = new ReportLine(tableName);
     	Statement stmt = null;
+    	BatchWriter writer = null;
     	Properties definition = new Properties(); // set of propname-proptype
     	Properties replacementTypes = getReplacementDataType();
+    	boolean done = true;
     	
     	try{
     		long highestDbId=0;
     		Connection conn = dbhb.getConnection();
 			conn.setAutoCommit(true);
 			stmt = conn.createStatement();
+			writer = dbhb.createBatchWriter(conn);
 			boolean continueSearchCycle=true;
 			String query = "+TYPE:\"cm:person\"";
 			//setTable(tableName);
@@ -1072,19 +1790,15 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
 							}	
 						
 							
-							int numberOfRows=0;
-							if (dbhb.rowExists(stmt, rl)){
-								numberOfRows = dbhb.updateIntoTable(stmt, rl);
-								//logger.debug(numberOfRows+ " rows updated");
-							} else {
-								numberOfRows = dbhb.insertIntoTable(stmt, rl);
-								//logger.debug(numberOfRows+ " rows inserted");
-								
-							} // end if/else
+							writer.upsert(rl);
 						} // end while
+						writer.flush();
 					} // end if !continueSearchCycle
 				} catch (Exception e){
+					logger.error("processPerson: stopping at dbid " + highestDbId + ": " + e.getMessage());
 					e.printStackTrace();
+					done = false;
+					continueSearchCycle = false;
 				} finally {
 					if (rs!=null){
 						rs.close();
@@ -1096,16 +1810,21 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
 		} catch (Exception e) {
 			logger.fatal("1#############################################");
 			e.printStackTrace();
+			done = false;
 		} finally {
 			rl.reset();
 			try{
+				 if(writer!=null)
+					writer.close();
 			     if(stmt!=null)
 			        stmt.close();
 			}catch(SQLException se2){
 				logger.fatal("2#############################################");
+				done = false;
 		    }// nothing we can do
 		}
     	logger.debug("Exit processPerson");
+    	return done;
     }
     
     
@@ -1136,6 +1855,7 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
 	    	ReportLine rl = new ReportLine(tableName);
 	    	Properties replacementTypes = getReplacementDataType();
 	    	Statement stmt = null;
+	    	BatchWriter writer = null;
 	    	
 			
 	    	
@@ -1147,12 +1867,14 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
 	    		definition.setProperty("username", getClassToColumnType().getProperty("name","-"));
 	    		//definition.setProperty("success", getClassToColumnType().getProperty("boolean","-"));
 	    		setTableDefinition(definition, tableName);
+	    		dbhb.ensureUniqueKey(tableName);
 	    		//logger.debug("processAuditingExport: Done prepping table columns");
 	        	
 	    		
 	    		Connection conn = dbhb.getConnection();
 				conn.setAutoCommit(true);
 				stmt = conn.createStatement();
+				writer = dbhb.createBatchWriter(conn);
 				int maxAmount = 50000;
 				/*
 				try{
@@ -1171,7 +1893,7 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
 		            logger.fatal("Auditing for " + auditFeeds + " is disabled!");
 		        }
 				*/
-	        	EntryIdCallback changeLogCollectingCallback = new EntryIdCallback(true, stmt, rl, replacementTypes, tableName, auditFeed)
+	        	EntryIdCallback changeLogCollectingCallback = new EntryIdCallback(true, stmt, writer, rl, replacementTypes, tableName, auditFeed)
 	            {
 	        		private String validateColumnName(String tablename){
 	        			logger.debug("enter validateColumnName: " + tablename);
@@ -1279,16 +2001,8 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
 	    					e.printStackTrace();
 	    				}
 	    				
-	    				int numberOfRows=0;
 	    				try {
-							if (dbhb.rowExists(getStatement(), getRl())){
-								numberOfRows = dbhb.updateIntoTable(getStatement(), getRl());
-								//logger.debug(numberOfRows+ " rows updated");
-							} else {
-								numberOfRows = dbhb.insertIntoTable(getStatement(), getRl());
-								//logger.debug(numberOfRows+ " rows inserted");
-								
-							}
+							getWriter().upsert(getRl());
 						} catch (SQLException e) {
 							// TODO Auto-generated catch block
 							e.printStackTrace();
@@ -1320,6 +2034,8 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
 			} finally {
 				rl.reset();
 				try{
+					 if(writer!=null)
+						writer.close();
 				     if(stmt!=null)
 				        stmt.close();
 				}catch(SQLException se2){
@@ -1333,8 +2049,9 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
     /**
      * 
      * @param tableName
+     * @return false if the table could not be filled completely
      */
-    public void processGroups(String tableName){
+    public boolean processGroups(String tableName){
     	tableName = tableName.replaceAll(" ", "_").trim();
     	tableName = tableName.replaceAll("-", "_").trim();
     	logger.debug("enter processGroups");
@@ -1343,7 +2060,8 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
     	//setTable(tableName);
     	ReportLine rl = new ReportLine(tableName);
     	Properties replacementTypes = getReplacementDataType();
-    	Statement stmt = null;
+    	BatchWriter writer = null;
+    	boolean done = true;
     	
     	try{
     		// first make sure our table has the right set of columns
@@ -1358,7 +2076,7 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
     		
     		Connection conn = dbhb.getConnection();
 			conn.setAutoCommit(true);
-			stmt = conn.createStatement();
+			writer = dbhb.createBatchWriter(conn);
 	    	Set<String> groupNames = authorityService.getAllAuthorities(AuthorityType.GROUP);
 	    	for (String groupName : groupNames){
 	    		String groupDisplayName=authorityService.getAuthorityDisplayName(groupName);
@@ -1384,33 +2102,38 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
 						e.printStackTrace();
 					}
 					
-					int numberOfRows=0;
-					numberOfRows = dbhb.insertIntoTable(stmt, rl);
+					writer.insert(rl);
 	    		}
 	    	}
     	} catch (Exception e) {
 			logger.fatal("processGroups - terrible error:");
 			e.printStackTrace();
+			done = false;
 		} finally {
 			rl.reset();
 			try{
-			     if(stmt!=null)
-			        stmt.close();
+			     if(writer!=null)
+			        writer.close();
 			}catch(SQLException se2){
 				logger.fatal("2#############################################");
+				done = false;
 		    }// nothing we can do
 		}
     	logger.debug("Exit processGroups");	
-    	
+    	return done;
     }
     
-    public void processSitePerson(String tableName){
+    /**
+     * @return false if the table could not be filled completely
+     */
+    public boolean processSitePerson(String tableName){
     	tableName = tableName.replaceAll(" ", "_").trim();
     	tableName = tableName.replaceAll("-", "_").trim();
     	logger.debug("enter processSitePerson");
     	ReportLine rl = new ReportLine(tableName);
     	Properties replacementTypes = getReplacementDataType();
-    	Statement stmt = null;
+    	BatchWriter writer = null;
+    	boolean done = true;
     	
     	try{
     		// first make sure our table has the right set of columns
@@ -1426,7 +2149,7 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
     		
     		Connection conn = dbhb.getConnection();
 			conn.setAutoCommit(true);
-			stmt = conn.createStatement();
+			writer = dbhb.createBatchWriter(conn);
 			
 			List<String> roleList = siteService.getSiteRoles();
 	
@@ -1455,8 +2178,7 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
 							e.printStackTrace();
 						}
 							
-						int numberOfRows=0;
-						numberOfRows = dbhb.insertIntoTable(stmt, rl);
+						writer.insert(rl);
 	    			} // end for key in keySet
 	    			
 	    		} // end for role in roleList
@@ -1464,18 +2186,19 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
     	} catch (Exception e) {
 			logger.fatal("processSitePerson - terrible error:");
 			e.printStackTrace();
+			done = false;
 		} finally {
 			rl.reset();
 			try{
-			     if(stmt!=null)
-			        stmt.close();
+			     if(writer!=null)
+			        writer.close();
 			}catch(SQLException se2){
 				logger.fatal("2#############################################");
+				done = false;
 		    }// nothing we can do
 		}
     	logger.debug("Exit processSitePerson");	
-
-    	
+    	return done;
     }
     
     public void processCategoriesAsPath(String table, final String rootName, String columnName) throws Exception{
@@ -1483,7 +2206,7 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
     	logger.debug("Currently supporting 3 levels deep structures only!!");
     	if ((rootName!=null) && (!"".equals(rootName))){
 	    	ReportLine rl = new ReportLine(table.toLowerCase().replaceAll(" ", "_").replaceAll("-", "_").trim());
-	    	Statement stmt = null;
+	    	BatchWriter writer = null;
 	    	Properties definition = new Properties(); // set of propname-proptype
 			definition.setProperty(columnName, getClassToColumnType().getProperty("path","-"));
 			definition.setProperty("label", getClassToColumnType().getProperty("label","-"));
@@ -1491,8 +2214,8 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
 			try{
 				//setTable(table.toLowerCase());
 				setTableDefinition(definition, table);
-				stmt = dbhb.getConnection().createStatement();
 				dbhb.getConnection().setAutoCommit(true);
+				writer = dbhb.createBatchWriter(dbhb.getConnection());
 				
 		    	Collection<ChildAssociationRef> car = serviceRegistry.getCategoryService().getRootCategories(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, ContentModel.ASPECT_GEN_CLASSIFIABLE);
 		    	for (ChildAssociationRef rootRef:car){
@@ -1505,7 +2228,7 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
 		    			for (ChildAssociationRef regionChildRef:rcrs){
 		    	    		NodeRef regionRef = regionChildRef.getChildRef();
 		    	    		String regionPath = (String)serviceRegistry.getNodeService().getProperty(regionRef, ContentModel.PROP_NAME);
-		    	    		storeRegionPath(stmt, rl, regionRef, regionPath, columnName, regionPath);
+		    	    		storeRegionPath(writer, rl, regionRef, regionPath, columnName, regionPath);
 		    	    		rl.reset();
 		    	    		
 		    	    		// get Country refs
@@ -1515,7 +2238,7 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
 		    	    	    		NodeRef countryRef = countryChildRef.getChildRef();
 		    	    	    		labelValue = (String)serviceRegistry.getNodeService().getProperty(countryRef, ContentModel.PROP_NAME);
 		    	    	    		String countryPath = regionPath + "/" + labelValue;
-		    	    	    		storeRegionPath(stmt, rl, countryRef, countryPath, columnName, labelValue);
+		    	    	    		storeRegionPath(writer, rl, countryRef, countryPath, columnName, labelValue);
 		    	    	    		rl.reset();
 		
 		    	    	    		// get countryDiv refs
@@ -1525,7 +2248,7 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
 		    	    	    	    		NodeRef countryDivRef = countryDivChildRef.getChildRef();
 		    	    	    	    		labelValue = (String)serviceRegistry.getNodeService().getProperty(countryDivRef, ContentModel.PROP_NAME);
 		    	    	    	    		String countryDivPath = countryPath + "/" + labelValue;
-		    	    	    	    		storeRegionPath(stmt, rl, countryDivRef, countryDivPath, columnName, labelValue);
+		    	    	    	    		storeRegionPath(writer, rl, countryDivRef, countryDivPath, columnName, labelValue);
 		    	    	    	    		rl.reset();
 		    	    	    			}
 		    	    	    		} // end if cdcrs
@@ -1539,8 +2262,8 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
 			} finally {
 				rl.reset();
 				try{
-				     if(stmt!=null)
-				        stmt.close();
+				     if(writer!=null)
+				        writer.close();
 				}catch(SQLException se2){
 			    }// nothing we can do
 			}
@@ -1586,213 +2309,111 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
 		return siteName;
 	}
 	
-	private void processUpdate(String table) throws Exception{
+	/**
+	 * Harvest the queue of the session in chunks. Each node is read once; the
+	 * columns a chunk needs are added before its rows are written. A node 
+	 * that cannot be read is skipped; a write that fails (the TransactionalWriter
+	 * retried it already) fails the harvest, so the run is not set Done.
+	 */
+	private void processUpdate(HarvestSession session) throws Exception{
+		String table = session.getTable();
+		String method = session.getMethod();
+		List<HarvestItem> queue = session.getQueue();
 		logger.debug("Enter processUpdate table=" + table);
-
-		//Statement stmt = null;
-		//Properties tableDesc = dbhb.getTableDescription(stmt, table);
 		
 		logger.debug("************ Found " + queue.size() + " entries in " + table + " **************** " + method);
-		ReportLine rl = new ReportLine(table);
 		Properties replacementTypes = getReplacementDataType();
+		int chunkSize = Math.max(1, getIntProperty(Constants.property_harvest_chunkSize, Constants.DEFAULT_HARVEST_CHUNK_SIZE));
+		Properties defined = new Properties();
 		
-		Connection conn = dbhb.getConnection();
-		Statement stmt=null;
+		// a connection of its own for the writer
+		Connection conn = dbhb.borrowConnection();
+		RowWriter writer=null;
 		try{
-			conn.setAutoCommit(true);
-			stmt = conn.createStatement();
-			if (stmt == null){
-				throw new Exception("Something wrong with DB connection!!");
+			if (Constants.SINGLE_INSTANCE.equals(method)){
+				dbhb.ensureUniqueKey(table);
 			}
+			conn.setAutoCommit(true);
+			writer = dbhb.createRowWriter(conn, session.getWriteMode(), session.getCommitSize(), session.getCommitInterval());
 
-			int queuesize = queue.size();
-			for (int q=0;q<queue.size();q++){
-				//for (NodeRef nodeRef : queue){
-				
-				NodeRef nodeRef = queue.get(q);	
-				
-				if (logger.isDebugEnabled()){
-					String name = (String)serviceRegistry.getNodeService().getProperty(nodeRef, ContentModel.PROP_NAME);
-					logger.debug("getTableDefinitionFromQueue: "+q+"/"+queuesize+ ": " + name);
-				}
-				
-				try{
-					rl = processPropertyValues(rl, nodeRef, getBlacklist());
-				} catch (Exception e){
-					logger.error("processUpdate: That is weird, processPropertyValues crashed! " + nodeRef);
-					e.printStackTrace();
-				}
-				
-				try{
-					rl = processAssociationValues(rl, nodeRef, getBlacklist());
-				} catch (Exception e){
-					logger.error("processUpdate: That is weird, processAssociationValues crashed! " + nodeRef);
-					e.printStackTrace();
-				}
-				
-				try{
-					rl.setLine("noderef", getClassToColumnType().getProperty("noderef"), nodeRef.toString(), replacementTypes);
-				} catch (Exception e){
-					logger.error("processUpdate: That is weird, rl.setLine(noderef) crashed! " + nodeRef);
-					e.printStackTrace();
-				}
-				
-				Path path;
-				String displayPath="";
-				try{
-					path = serviceRegistry.getNodeService().getPath(nodeRef);
-					displayPath = toDisplayPath(path);
-					rl.setLine("path", getClassToColumnType().getProperty("path"), displayPath, replacementTypes);
-				} catch (Exception e){
-					// it does not have a path. Bad luck. Don't crash (versionStore?!)
-				}
-				
-				String site =""; 
-				try{
-					site = getSiteName(nodeRef);
-					rl.setLine("site", getClassToColumnType().getProperty("site"), site, replacementTypes);
-				} catch (Exception e) {
-					// it is not in a site. Bad luck. Don't crash (versionStore?!)
-				}
-				QName myType = serviceRegistry.getNodeService().getType(nodeRef);
-				if (serviceRegistry.getDictionaryService().isSubClass(myType, ContentModel.TYPE_CONTENT)){
-					long size = 0;
-					String sizeString="0";
-					try{
-						size = serviceRegistry.getFileFolderService()
-										.getFileInfo(nodeRef).getContentData().getSize();
-						
-						if (size==0){
-							sizeString = "0";
-						} else {
-							sizeString = Long.toString(size);
-						}
-						rl.setLine("size", getClassToColumnType().getProperty("size"), sizeString,replacementTypes);
-					} catch (Exception e) {
-						logger.debug("Huh, no size?");
-						sizeString="0";
-					}
-					
+			for (int start=0;start<queue.size();start+=chunkSize){
+				List<HarvestItem> chunk = queue.subList(start, Math.min(queue.size(), start+chunkSize));
+				Properties definition = new Properties();
+				List<ReportLine> lines = new ArrayList<ReportLine>(chunk.size());
+				prefetchNodes(chunk);
+				for (HarvestItem item : chunk){
+					ReportLine rl = new ReportLine(table);
 					try{
-						String mimetype = serviceRegistry.getFileFolderService()
-								.getFileInfo(nodeRef).getContentData().getMimetype();
-						if (mimetype==null) mimetype="NULL";
-						rl.setLine("mimetype", getClassToColumnType().getProperty("mimetype"), mimetype, replacementTypes);
-					} catch (Exception e) {
-						logger.debug("Huh, no mimetype?");
-					}
-					
-					try{
-						if (versionNodes.containsKey(nodeRef.toString())){
-							//logger.debug("Setting nodeRef to orig_noderef - VERSION!!!");
-							rl.setLine("orig_noderef", getClassToColumnType().getProperty("noderef"), (String)versionNodes.getProperty(nodeRef.toString(),""), replacementTypes);
-						} else {
-							rl.setLine("orig_noderef", getClassToColumnType().getProperty("noderef"), nodeRef.toString(), replacementTypes);
-							//logger.debug("Setting currentRef to orig_noderef!!!");
-						}
-							
-						/*
-						if (nodeRef.toString().contains("version2Store")){
-							logger.debug("VERSION!!!");
-							//NodeRef workspaceRef = getWorkspaceNodeRefForVersion2StoreNodeRef(nodeRef);
-							//rl.setLine("orig_noderef", getClassToColumnType().getProperty("noderef"), workspaceRef.toString());
-						}
-						*/
-							
-						//	} // end if content
+						processNode(definition, rl, item.getNodeRef(), item.getOrigNodeRef(), replacementTypes);
 					} catch (Exception e){
-						// don't crash... (versionStore?!)
+						logger.error("processUpdate: skipping " + item + ": " + e.getMessage());
+						continue;
 					}
-				} // end if
-				else {
-					logger.debug(myType.toString() + " is no content subclass!");
+					if (rl.size()>0) lines.add(rl);
 				}
 				
-				int numberOfRows;
-				logger.debug("Current method=" + this.method);
-				try{ //SINGLE_INSTANCE, 
-					//logger.debug(method + " ##### " + rl.size());
-					if ( (rl.size()>0) /* && (rl.getValue("sys_node_uuid").length()>5)*/){
-	    				//logger.debug("method="+method+" && row exists?");
-	    				
-						if (this.method.equals(Constants.INSERT_ONLY) ){
-	    					//if (logger.isDebugEnabled()) logger.debug("Going INSERT_ONLY");
-	    					
-	    					numberOfRows = dbhb.insertIntoTable(stmt, rl);
-	    					//logger.debug(numberOfRows+ " rows inserted");
-	    				}
-	    				
-	    				// -------------------------------------------------------------
-	    				
-	    				if (this.method.equals(Constants.SINGLE_INSTANCE) ) {
-	    					//if (logger.isDebugEnabled()) logger.debug("Going SINGLE_INSTANCE");
-	    					
-	    					if (dbhb.rowExists(stmt, rl)){
-	    						numberOfRows = dbhb.updateIntoTable(stmt, rl);
-	    						//logger.debug(numberOfRows+ " rows updated");
-	    					} else {
-	    						numberOfRows = dbhb.insertIntoTable(stmt, rl);
-	    						//logger.debug(numberOfRows+ " rows inserted");
-	    						
-	    					}
-	    					
-	    				}
-	    				
-	    				// -------------------------------------------------------------
-	    				
-	    				if (this.method.equals(Constants.UPDATE_VERSIONED)) {
-	    					if (logger.isDebugEnabled()) logger.debug("Going UPDATE_VERSIONED");
-	    					if (dbhb.rowExists(stmt, rl)){
-		    					numberOfRows = dbhb.updateVersionedIntoTable(stmt, rl);
-		    					//logger.debug(numberOfRows+ " rows updated");
-	    					} else {
-	    						numberOfRows = dbhb.insertIntoTable(stmt, rl);
-	    						//logger.debug(numberOfRows+ " rows inserted");
-	    						
-	    					}
-	    				}
-					} // end if rl.size>0
-	
-				} catch (Exception e){
-					logger.fatal(e);
-					e.printStackTrace();
-				} finally {
-					rl.reset();
+				if (!defined.keySet().containsAll(definition.keySet())){
+					// no open reporting transaction while the table is altered
+					writer.flush();
+					setTableDefinition(definition, table);
+					defined.putAll(definition);
 				}
-			} // end for scriptnode in queue
-		} catch (SQLException e) {
-			// TODO Auto-generated catch block
-			logger.error(e);
-			e.printStackTrace();
+				
+				logger.debug("Current method=" + method);
+				for (ReportLine rl : lines){
+					if (method.equals(Constants.INSERT_ONLY) ){
+    					writer.insert(rl);
+    				}
+    				if (method.equals(Constants.SINGLE_INSTANCE) ) {
+    					writer.upsert(rl);
+    				}
+    				if (method.equals(Constants.UPDATE_VERSIONED)) {
+    					// closes the current version (if any) and inserts the new one
+    					writer.insertVersion(rl);
+    				}
+				}
+			} // end for chunk in queue
+			// the last batch, a failure is thrown
+			writer.close();
+			writer = null;
 		} finally {
 		      //finally block used to close resources
+			  if (writer!=null){
+				  writer.discard();
+				  try{
+					  writer.close();
+				  }catch(SQLException se2){
+				  }// nothing we can do
+			  }
 			  try{
-			     if(stmt!=null)
-			        stmt.close();
+				  if (conn!=null)
+					  conn.close();
 			  }catch(SQLException se2){
-		      }// nothing we can do
+			  }// nothing we can do
 		}    	
 		logger.debug("Exit processUpdate");
 	}
 
-	
 	/**
 	 * Get the full list of namespaces and their short form. Cache for future need.
 	 * @return
 	 */
 	private Properties getNameSpaces(){
-		if (this.namespaces == null){
-			this.namespaces = new Properties();
+		Properties prefixes = this.namespaces;
+		if (prefixes == null){
+			// complete it before other threads can see it
+			prefixes = new Properties();
 			Collection<String> keys = serviceRegistry.getNamespaceService().getPrefixes(); 
 			for (String key : keys){
 				String value = serviceRegistry.getNamespaceService().getNamespaceURI(key);
 				String into = key + "_";
 				String from = "{" + value + "}";
-				this.namespaces.setProperty(into, from);
+				prefixes.setProperty(into, from);
 				//logger.debug("Replacing: " + from + " into: " + into);
 			}
+			this.namespaces = prefixes;
 		} 
-		return this.namespaces;
+		return prefixes;
 	}
 	
 	
@@ -1860,139 +2481,21 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
 									final QName qname, 
 									final String dtype, 
 									final boolean multiValued){
-		logger.debug("Enter getPropertyValue");
-		String returnValue = "";
-		Serializable s = serviceRegistry.getNodeService().getProperty(nodeRef, qname);
-		// Tjarda: Check of s!=null wel valide is! Bij Tags en Categories
-		if (multiValued && !"category".equals(dtype)){
-			ArrayList<Object> values = new ArrayList();
-			
-			values = (ArrayList)serviceRegistry.getNodeService().getProperty(nodeRef, qname);
-			
-			if ((values!=null) && (!values.isEmpty()) && (values.size()>0)){
-				
-				if (dtype.equals("date") || dtype.equals("datetime")){
-					SimpleDateFormat dateformat = new SimpleDateFormat(Constants.DATE_FORMAT_DATABASE);
-					Calendar c = Calendar.getInstance();
-					
-					for (int v=0;v<values.size();v++){
-						returnValue += dateformat.format((Date)values.get(v)) + multivalue_seperator;		
-					}
-				}
-				
-				if (dtype.equals("id") || dtype.equals("long")){
-					for (int v=0;v<values.size();v++){
-						returnValue += Long.toString((Long)values.get(v)) + multivalue_seperator;		
-					}
-				}
-				
-				if (dtype.equals("int")){
-					for (int v=0;v<values.size();v++){
-						returnValue += Integer.toString((Integer)values.get(v)) + multivalue_seperator;		
-					}
-				}
-				
-				if (dtype.equals("float") || dtype.equals("double") ){
-					for (int v=0;v<values.size();v++){
-						returnValue += Double.toString((Double)values.get(v)) + multivalue_seperator;		
-					}
-				}
-				
-				if (dtype.equals("boolean")){
-					for (int v=0;v<values.size();v++){
-						returnValue += Boolean.toString((Boolean)values.get(v)) + multivalue_seperator;		
-					}
-				}
-			
-				if (dtype.equals("text")){
-					for (int v=0;v<values.size();v++){
-						returnValue += (String)values.get(v) + multivalue_seperator;		
-					}
-				}
-				
-				if (dtype.equals("noderef")){
-					for (int v=0;v<values.size();v++){
-						returnValue += values.get(v).toString() + multivalue_seperator;		
-					}
-				}
-				
-				if (returnValue.equals("")){
-					for (int v=0;v<values.size();v++){
-						returnValue += (String)values.get(v) + multivalue_seperator;		
-					}
-				}
-			} 
-			// end multivalue
-		} else {
-			if ((s!=null) && !"category".equals(dtype)){
-
-				if (dtype.equals("date") || dtype.equals("datetime")){
-					SimpleDateFormat dateformat = new SimpleDateFormat("yyyy-MM-dd hh:mm:ss");
-					Calendar c = Calendar.getInstance();
-					c.setTimeInMillis( ((Date)s).getTime() );
-					returnValue = dateformat.format((Date)s);
-					//returnValue = c.YEAR + "/"+ prefix(c.MONTH+1, 2, "0") + "/"+ prefix(c.DAY_OF_MONTH, 2, "0") + "T" + prefix(c.HOUR_OF_DAY, 2, "0")+":"+prefix(c.MINUTE, 2, "0")+":"+prefix(c.SECOND, 2, "0"); 
-				}
-				
-				if (dtype.equals("id") || dtype.equals("long")){
-					returnValue = Long.toString((Long)s);
-				}
-
-				if (dtype.equals("int")){
-					returnValue = Integer.toString((Integer)s);
-				}
-				
-				if (dtype.equals("float") || dtype.equals("double") ){
-					returnValue = Double.toString((Double)s);
-				}
-				
-				if (dtype.equals("boolean")){
-						returnValue = Boolean.toString((Boolean)s);
-				}
-			
-				if (dtype.equals("text")){
-					returnValue = s.toString();
-				}
-				
-				if (dtype.equals("noderef")){
-					returnValue = s.toString();
-				}
-				
-				if (returnValue.equals("")){
-					returnValue = s.toString();
-				}
-			}
-		} // end single valued
-		/*
-		if (qname.toString().endsWith("taggable")) {
-			logger.error("I am a taggable!");
-			List<String> tags = serviceRegistry.getTaggingService().getTags(nodeRef);
-			logger.error("Found " + tags.size() + " tags!");
-			for (String tag : tags){
-				logger.error("processing tag: " + tag);
-				if (returnValue.length()>0) returnValue+=",";
-				returnValue+=tag;
-			}
-		} // end taggable
-		*/
-		
-		if (dtype.equals("category")){
-			logger.debug("I am a category!");
-			List<NodeRef> categories = (List<NodeRef>) nodeService.getProperty(nodeRef, qname);
-			if (categories != null){
-				
-				for (NodeRef cat : categories){
-					String catName = nodeService.getProperty(
-							cat, ContentModel.PROP_NAME).toString(); 
-					
-					if (returnValue.length()>0) returnValue+=",";
-					returnValue+= catName;
-				} // end for
-			} // end if categories != null
-		} // end category
+		QName dataType = QName.createQName(NamespaceService.DICTIONARY_MODEL_1_0_URI, dtype);
+		return getValueConverters().get(dataType, multiValued)
+				.convert(serviceRegistry.getNodeService().getProperty(nodeRef, qname));
+	}
 	
-		logger.debug("Exit getPropertyValue, returning: " + returnValue);
-		return returnValue; 
+	/**
+	 * @return the converters of property values, by data type
+	 */
+	private ValueConverters getValueConverters(){
+		ValueConverters converters = valueConverters;
+		if (converters==null){
+			converters = new ValueConverters(serviceRegistry.getNodeService(), multivalue_seperator);
+			valueConverters = converters;
+		}
+		return converters;
 	}
 
 // ----------------------------------------------------------------------------
@@ -2020,6 +2523,28 @@ public class AlfrescoReporting extends BaseScopableProcessorExtension {
     	dbhb.createEmptyTables(tablesToCreate);
     }
 
+    /**
+     * Create an empty shadow table to build a full refresh of tableName in
+     * 
+     * @param tableName the table to refresh
+     * @return the name of the shadow table to fill
+     */
+    public String createShadowTable(String tableName){
+    	logger.debug("Starting createShadowTable: " + tableName);
+    	return dbhb.createShadowTable(tableName);
+    }
+    
+    /**
+     * Atomically replace tableName by its (filled) shadow table
+     * 
+     * @param tableName the table to refresh
+     * @throws SQLException if the swap failed, the current table stays
+     */
+    public void swapShadowTable(String tableName) throws SQLException{
+    	logger.debug("Starting swapShadowTable: " + tableName);
+    	dbhb.swapShadowTable(tableName);
+    }
+    
     public boolean tableIsRunning(String tableName){
     	logger.debug("Starting tableIsRunning: " + tableName);
     	return dbhb.tableIsRunning(tableName);
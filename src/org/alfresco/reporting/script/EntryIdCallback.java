@@ -25,6 +25,7 @@ import java.util.Properties;
 
 import org.alfresco.error.AlfrescoRuntimeException;
 import org.alfresco.reporting.ReportLine;
+import org.alfresco.reporting.db.BatchWriter;
 import org.alfresco.service.cmr.audit.AuditService.AuditQueryCallback;
 
 
@@ -34,15 +35,17 @@ public class EntryIdCallback implements AuditQueryCallback
         private Long entryId;
         private String LOGIN_AUDIT_APPLICATION = "ReportingLoginAudit";
         private Statement stmt;
+        private BatchWriter writer;
         private ReportLine rl;
         private Properties replacementTypes;
         private String tableName;
         private Properties cache = new Properties();
 
-        public EntryIdCallback(boolean valuesRequired, Statement stmt, ReportLine rl, Properties replacementTypes, String tableName, String feedName)
+        public EntryIdCallback(boolean valuesRequired, Statement stmt, BatchWriter writer, ReportLine rl, Properties replacementTypes, String tableName, String feedName)
         {
             this.valuesRequired = valuesRequired;
             this.stmt = stmt;
+            this.writer = writer;
             this.rl = rl;
             this.replacementTypes = replacementTypes;
             this.tableName = tableName;
@@ -92,6 +95,10 @@ public class EntryIdCallback implements AuditQueryCallback
         	return this.stmt;
         }
         
+        public BatchWriter getWriter(){
+        	return this.writer;
+        }
+        
         public String getTableName(){
         	return this.tableName;
         }
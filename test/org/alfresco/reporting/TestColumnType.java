@@ -0,0 +1,68 @@
+/**
+ * Copyright (C) 2011 - 2013 Alfresco Business Reporting project
+ *
+ * This file is part of the Alfresco Business Reporting project.
+ *
+ * Licensed under the GNU LGPL, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.gnu.org/licenses/lgpl.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.alfresco.reporting;
+
+import java.sql.Timestamp;
+import java.sql.Types;
+
+import junit.framework.TestCase;
+
+/**
+ * Parsing of column definitions and ColumnType.convert
+ */
+public class TestColumnType extends TestCase {
+
+	public void testDefinition(){
+		ColumnType varchar = ColumnType.forDefinition("VARCHAR(10)");
+		assertSame(varchar, ColumnType.forDefinition("VARCHAR(10)"));
+		assertEquals(ColumnType.Kind.VARCHAR, varchar.getKind());
+		assertEquals(10, varchar.getLength());
+		assertEquals(ColumnType.Kind.DATETIME, ColumnType.forDefinition("TIMESTAMP").getKind());
+		assertEquals(Types.DOUBLE, ColumnType.forDefinition("DOUBLE PRECISION").getSqlType());
+		assertEquals(ColumnType.Kind.OTHER, ColumnType.forDefinition("TEXT").getKind());
+	}
+
+	public void testConvert(){
+		ColumnType varchar = ColumnType.forDefinition("VARCHAR(10)");
+		assertEquals("abc", varchar.convert("abc"));
+		assertEquals("", varchar.convert(""));
+		// too long, chopped with some room for multi byte characters
+		assertEquals("abcdef", varchar.convert("abcdefghijkl"));
+
+		ColumnType bigint = ColumnType.forDefinition("BIGINT");
+		assertEquals(Long.valueOf(12), bigint.convert("12"));
+		assertNull(bigint.convert("twelve"));
+		assertNull(bigint.convert(""));
+		assertNull(bigint.convert("-"));
+		assertNull(bigint.convert(null));
+
+		assertEquals(Integer.valueOf(-3), ColumnType.forDefinition("INTEGER").convert("-3"));
+		assertEquals(Double.valueOf(1.5), ColumnType.forDefinition("FLOAT").convert("1.5"));
+
+		ColumnType bool = ColumnType.forDefinition("BOOLEAN");
+		assertEquals(Boolean.TRUE, bool.convert("true"));
+		assertEquals(Boolean.TRUE, bool.convert("1"));
+		assertEquals(Boolean.FALSE, bool.convert("no"));
+
+		ColumnType datetime = ColumnType.forDefinition("DATETIME");
+		assertEquals(new Timestamp(1000), datetime.convert("1000"));
+		// any other format is parsed by the database
+		assertEquals("2013-01-01T10:00:00", datetime.convert("2013-01-01T10:00:00"));
+	}
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2011 - 2013 Alfresco Business Reporting project
+ *
+ * This file is part of the Alfresco Business Reporting project.
+ *
+ * Licensed under the GNU LGPL, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.gnu.org/licenses/lgpl.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.alfresco.reporting.db;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * The SQL of ReportingDialect and UpsertDialect
+ */
+public class TestReportingDialect extends TestCase {
+
+	private static final String[] COLUMNS = new String[]{"sys_node_uuid", "cm_name", "validFrom"};
+	private static final Set<String> KEEP_ON_UPDATE = new HashSet<String>(Arrays.asList(new String[]{"validFrom"}));
+
+	public void testResolve(){
+		assertEquals(ReportingDialect.MYSQL, ReportingDialect.resolve("org.hibernate.dialect.MySQLInnoDBDialect", null));
+		assertEquals(ReportingDialect.POSTGRESQL, ReportingDialect.resolve("org.hibernate.dialect.PostgreSQLDialect", null));
+		assertEquals(ReportingDialect.GENERIC, ReportingDialect.resolve("org.hibernate.dialect.Dialect", null));
+		assertEquals(ReportingDialect.GENERIC, ReportingDialect.resolve(null, null));
+	}
+
+	public void testGetUpsert(){
+		assertSame(UpsertDialect.MYSQL, ReportingDialect.MYSQL.getUpsert());
+		assertSame(UpsertDialect.POSTGRESQL, ReportingDialect.POSTGRESQL.getUpsert());
+		assertNull(ReportingDialect.GENERIC.getUpsert());
+	}
+
+	public void testBuildInsert(){
+		assertEquals("INSERT INTO `t` (sys_node_uuid, cm_name, validFrom) VALUES (?, ?, ?)", 
+				ReportingDialect.MYSQL.buildInsert("t", COLUMNS).toString());
+		assertEquals("INSERT INTO \"t\" (a) SELECT a FROM \"t__stage\"", 
+				ReportingDialect.POSTGRESQL.buildInsertFromStaging("t", "t__stage", new String[]{"a"}).toString());
+	}
+
+	public void testMySQLUpsert(){
+		assertEquals("INSERT INTO `t` (sys_node_uuid, cm_name, validFrom) VALUES (?, ?, ?)" +
+				" ON DUPLICATE KEY UPDATE cm_name=VALUES(cm_name)", 
+				UpsertDialect.MYSQL.buildUpsert("t", COLUMNS, "sys_node_uuid", KEEP_ON_UPDATE));
+		// nothing to update
+		assertEquals("INSERT INTO `t` (sys_node_uuid) VALUES (?) ON DUPLICATE KEY UPDATE sys_node_uuid=sys_node_uuid", 
+				UpsertDialect.MYSQL.buildUpsert("t", new String[]{"sys_node_uuid"}, "sys_node_uuid", Collections.<String>emptySet()));
+	}
+
+	public void testPostgreSQLUpsert(){
+		assertEquals("INSERT INTO \"t\" (sys_node_uuid, cm_name, validFrom) VALUES (?, ?, ?)" +
+				" ON CONFLICT (sys_node_uuid) DO UPDATE SET cm_name=EXCLUDED.cm_name", 
+				UpsertDialect.POSTGRESQL.buildUpsert("t", COLUMNS, "sys_node_uuid", KEEP_ON_UPDATE));
+		assertEquals("INSERT INTO \"t\" (sys_node_uuid) SELECT sys_node_uuid FROM \"s\" ON CONFLICT (sys_node_uuid) DO NOTHING", 
+				UpsertDialect.POSTGRESQL.buildUpsertFromStaging("t", "s", new String[]{"sys_node_uuid"}, "sys_node_uuid", 
+						Collections.<String>emptySet()));
+	}
+
+	public void testBuildSwap(){
+		assertEquals(Arrays.asList(new String[]{"RENAME TABLE `t` TO `t__old`, `t__new` TO `t`"}), 
+				ReportingDialect.MYSQL.buildSwap("t", "t__new", "t__old", true));
+		assertEquals(Arrays.asList(new String[]{"RENAME TABLE `t__new` TO `t`"}), 
+				ReportingDialect.MYSQL.buildSwap("t", "t__new", "t__old", false));
+		assertEquals(Arrays.asList(new String[]{"ALTER TABLE \"t\" RENAME TO \"t__old\"", "ALTER TABLE \"t__new\" RENAME TO \"t\""}), 
+				ReportingDialect.POSTGRESQL.buildSwap("t", "t__new", "t__old", true));
+	}
+
+	public void testBuildAddColumns(){
+		Map<String, String> columns = new LinkedHashMap<String, String>();
+		columns.put("a", "BIGINT");
+		columns.put("b", "VARCHAR(10)");
+		List<String> mysql = ReportingDialect.MYSQL.buildAddColumns("t", columns);
+		assertEquals(3, mysql.size());
+		assertEquals("ALTER TABLE `t` ADD COLUMN a BIGINT, ADD COLUMN b VARCHAR(10), ALGORITHM=INSTANT", mysql.get(0));
+		assertEquals("ALTER TABLE `t` ADD COLUMN a BIGINT, ADD COLUMN b VARCHAR(10)", mysql.get(2));
+		assertEquals(Arrays.asList(new String[]{"ALTER TABLE \"t\" ADD COLUMN a BIGINT, ADD COLUMN b VARCHAR(10)"}), 
+				ReportingDialect.POSTGRESQL.buildAddColumns("t", columns));
+	}
+
+	public void testIndexNames(){
+		String[] columns = new String[]{"sys_node_uuid", "isLatest"};
+		StringBuilder longTable = new StringBuilder();
+		while (longTable.length()<100) longTable.append("document_");
+		String name = DatabaseHelperBean.buildIndexName("ix_", longTable.toString(), columns);
+		assertTrue(name, name.length()<=59);
+		assertTrue(name, name.startsWith("ix_document_"));
+		assertEquals(name, DatabaseHelperBean.buildIndexName("ix_", longTable.toString(), columns));
+		assertFalse(name.equals(DatabaseHelperBean.buildIndexName("ix_", longTable.toString(), new String[]{"sys_node_uuid"})));
+		assertFalse(DatabaseHelperBean.buildIndexName("ix_", "a", columns).equals(DatabaseHelperBean.buildIndexName("ix_", "b", columns)));
+
+		assertNull(ReportingDialect.MYSQL.buildRenameIndex("ix_a", "ix_b"));
+		assertEquals("ALTER INDEX \"ix_a\" RENAME TO \"ix_b\"", ReportingDialect.POSTGRESQL.buildRenameIndex("ix_a", "ix_b"));
+	}
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright (C) 2011 - 2013 Alfresco Business Reporting project
+ *
+ * This file is part of the Alfresco Business Reporting project.
+ *
+ * Licensed under the GNU LGPL, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.gnu.org/licenses/lgpl.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.alfresco.reporting.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.alfresco.reporting.ColumnType;
+import org.alfresco.reporting.ReportLine;
+import org.alfresco.reporting.TableSchema;
+
+/**
+ * The ordering of VersionEngine, against a database without stored versions
+ */
+public class TestVersionEngine extends TestCase {
+
+	private static final ColumnType TYPE_UUID = ColumnType.forDefinition("VARCHAR(50)");
+	private static final ColumnType TYPE_LABEL = ColumnType.forDefinition("VARCHAR(20)");
+	private static final ColumnType TYPE_DATETIME = ColumnType.forDefinition("DATETIME");
+
+	public void testCompareLabels(){
+		assertTrue(VersionEngine.compareLabels("1.9", "1.10")<0);
+		assertTrue(VersionEngine.compareLabels("1.10", "1.9")>0);
+		assertTrue(VersionEngine.compareLabels("2.0", "1.10")>0);
+		assertEquals(0, VersionEngine.compareLabels("1.0", " 1.0 "));
+		assertTrue(VersionEngine.compareLabels("1.0", "1.0.1")<0);
+		assertTrue(VersionEngine.compareLabels("1.0.1", "1.0")>0);
+		// not a number, compared as text
+		assertTrue(VersionEngine.compareLabels("1.a", "1.b")<0);
+	}
+
+	public void testMergeOutOfOrder() throws SQLException{
+		String table = "test_merge_order";
+		List<BufferedRow> rows = new ArrayList<BufferedRow>();
+		rows.add(row(table, "a", 3000, "1.2"));
+		rows.add(row(table, "a", 1000, "1.0"));
+		rows.add(row(table, "a", 2000, "1.1"));
+
+		TableSchema schema = TableSchema.forTable(table);
+		List<BufferedRow> merged = new VersionEngine(emptyDatabase(), ReportingDialect.MYSQL).merge(table, schema, rows);
+
+		assertEquals(3, merged.size());
+		assertSame(rows.get(1), merged.get(0));
+		assertSame(rows.get(2), merged.get(1));
+		assertSame(rows.get(0), merged.get(2));
+		assertClosed(schema, merged.get(0), 2000);
+		assertClosed(schema, merged.get(1), 3000);
+		assertLatest(schema, merged.get(2));
+	}
+
+	public void testMergeEqualModified() throws SQLException{
+		String table = "test_merge_equal";
+		List<BufferedRow> rows = new ArrayList<BufferedRow>();
+		rows.add(row(table, "a", 1000, "1.0"));
+		rows.add(row(table, "b", 1000, "1.0"));
+		rows.add(row(table, "a", 1000, "1.1"));
+
+		TableSchema schema = TableSchema.forTable(table);
+		List<BufferedRow> merged = new VersionEngine(emptyDatabase(), ReportingDialect.MYSQL).merge(table, schema, rows);
+
+		// the same cm_modified keeps the order of arrival, per node
+		assertEquals(3, merged.size());
+		assertSame(rows.get(0), merged.get(0));
+		assertSame(rows.get(2), merged.get(1));
+		assertSame(rows.get(1), merged.get(2));
+		assertClosed(schema, rows.get(0), 1000);
+		assertLatest(schema, rows.get(2));
+		assertLatest(schema, rows.get(1));
+	}
+
+	// ------------------------------------------------------------------------
+
+	private static BufferedRow row(String table, String uuid, long modified, String label){
+		ReportLine rl = new ReportLine(table);
+		rl.setValue("sys_node_uuid", TYPE_UUID, uuid);
+		rl.setValue("cm_modified", TYPE_DATETIME, new Timestamp(modified));
+		rl.setValue("cm_versionLabel", TYPE_LABEL, label);
+		return new BufferedRow(rl);
+	}
+
+	private static void assertClosed(TableSchema schema, BufferedRow row, long validUntil){
+		assertEquals(Boolean.FALSE, row.get(schema.ordinalOf("isLatest")));
+		assertEquals(new Timestamp(validUntil), row.get(schema.ordinalOf("validUntil")));
+	}
+
+	private static void assertLatest(TableSchema schema, BufferedRow row){
+		assertEquals(Boolean.TRUE, row.get(schema.ordinalOf("isLatest")));
+		assertNull(row.get(schema.ordinalOf("validUntil")));
+	}
+
+	/**
+	 * A connection whose queries return no rows
+	 */
+	private static Connection emptyDatabase(){
+		final ResultSet rs = (ResultSet)proxy(ResultSet.class, null);
+		final PreparedStatement ps = (PreparedStatement)proxy(PreparedStatement.class, rs);
+		return (Connection)proxy(Connection.class, ps);
+	}
+
+	private static Object proxy(Class<?> type, final Object result){
+		return Proxy.newProxyInstance(TestVersionEngine.class.getClassLoader(), new Class<?>[]{type}, 
+				new InvocationHandler(){
+					public Object invoke(Object proxy, Method method, Object[] args){
+						if (method.getName().equals("prepareStatement") || method.getName().equals("executeQuery")){
+							return result;
+						}
+						if (method.getReturnType()==boolean.class){
+							return Boolean.FALSE;
+						}
+						if (method.getReturnType()==int.class){
+							return Integer.valueOf(0);
+						}
+						return null;
+					}
+				});
+	}
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright (C) 2011 - 2013 Alfresco Business Reporting project
+ *
+ * This file is part of the Alfresco Business Reporting project.
+ *
+ * Licensed under the GNU LGPL, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.gnu.org/licenses/lgpl.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.alfresco.reporting.harvest;
+
+import junit.framework.TestCase;
+
+/**
+ * The cursor of HarvestEngine.PageProgress, with chunks written out of order
+ */
+public class TestPageProgress extends TestCase {
+
+	public void testCursor(){
+		HarvestEngine.PageProgress progress = new HarvestEngine.PageProgress();
+		assertEquals(-1, progress.getCursor());
+
+		progress.add(0, 2, 100);
+		progress.add(1, 1, 200);
+		progress.add(2, 1, 300);
+		assertEquals(-1, progress.getCursor());
+
+		// a later page is done, but page 0 is not
+		progress.written(1);
+		assertEquals(-1, progress.getCursor());
+
+		progress.written(0);
+		assertEquals(-1, progress.getCursor());
+		progress.written(0);
+		assertEquals(200, progress.getCursor());
+
+		progress.written(2);
+		assertEquals(300, progress.getCursor());
+		// stays at the last page done
+		assertEquals(300, progress.getCursor());
+	}
+
+	public void testEmptyPage(){
+		HarvestEngine.PageProgress progress = new HarvestEngine.PageProgress();
+		progress.add(0, 0, 100);
+		assertEquals(100, progress.getCursor());
+	}
+}